@@ -24,10 +24,9 @@ import com.jakeapp.violet.actions.global.StopProjectAction;
 import com.jakeapp.violet.actions.project.connect.InviteUserAction;
 import com.jakeapp.violet.actions.project.connect.SuggestUsersToInviteAction;
 import com.jakeapp.violet.actions.project.connect.UserInfo;
+import com.jakeapp.violet.actions.project.interact.AdaptiveUserOrderStrategy;
 import com.jakeapp.violet.actions.project.interact.AnnounceAction;
 import com.jakeapp.violet.actions.project.interact.PokeAction;
-import com.jakeapp.violet.actions.project.interact.SimpleUserOrderStrategy;
-import com.jakeapp.violet.actions.project.interact.UserOrderStrategy;
 import com.jakeapp.violet.actions.project.interact.pull.DownloadAction;
 import com.jakeapp.violet.actions.project.interact.pull.PullAction;
 import com.jakeapp.violet.actions.project.local.FileInfoAction;
@@ -77,8 +76,7 @@ public class JakeCommander extends Commander {
 		public void handleArguments() {
 			try {
 				System.out.println("closing project ...");
-				AvailableLaterWaiter.await(new StopProjectAction(project
-						.getModel()));
+				AvailableLaterWaiter.await(new StopProjectAction(project));
 				project = null;
 				System.out.println("closing project done");
 			} catch (Exception e) {
@@ -183,7 +181,8 @@ public class JakeCommander extends Commander {
 			System.out.println("Starting to download...");
 			try {
 				File f = AvailableLaterWaiter.await(new DownloadAction(project
-						.getModel(), jo, userorder));
+						.getModel(), jo, new AdaptiveUserOrderStrategy(project
+						.getModel())));
 				System.out.println("downloaded succeeded... file provided at "
 						+ f.getAbsolutePath());
 			} catch (Exception e) {
@@ -596,7 +595,7 @@ public class JakeCommander extends Commander {
 			System.out.println("Starting to pull...");
 			try {
 				AvailableLaterWaiter.await(new PullAction(project.getModel(),
-						jo, userorder));
+						jo, new AdaptiveUserOrderStrategy(project.getModel())));
 				System.out.println("pull succeeded...");
 			} catch (Exception e) {
 				System.out.println("pull failed!");
@@ -707,8 +706,7 @@ public class JakeCommander extends Commander {
 		protected void handleArguments() {
 			try {
 				System.out.println("opening project");
-				AvailableLaterWaiter.await(new StopProjectAction(project
-						.getModel()));
+				AvailableLaterWaiter.await(new StopProjectAction(project));
 				System.out.println("opening project done");
 			} catch (Exception e) {
 				System.out.println("opening project failed");
@@ -764,8 +762,6 @@ public class JakeCommander extends Commander {
 
 	private User inviteProjectUser;
 
-	private final UserOrderStrategy userorder = new SimpleUserOrderStrategy();
-
 	private final Passwords wallet = new JsonPasswords(new File(
 			"jake.passwords"));
 
@@ -0,0 +1,106 @@
+package com.jakeapp.violet.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jakeapp.jake.fss.FSService;
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.actions.project.local.AttributedCalculator;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.LogImpl;
+
+/**
+ * The status of every file of a synthetic project tree, as the file list of
+ * the GUI needs it. A third of the files are unchanged, a third modified
+ * locally and a third only known from the log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributedCalculatorBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int files;
+
+	private File dir;
+
+	private FSService fss;
+
+	private LogImpl log;
+
+	private List<JakeObject> objects = new ArrayList<JakeObject>();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = Fixtures.createTempDir("attributedbench");
+		File root = new File(dir, "project");
+		root.mkdirs();
+		fss = new FSService();
+		fss.setRootPath(new ProjectDir(root));
+		log = Fixtures.createLog(dir);
+		log.connect();
+
+		Random random = new Random(1);
+		List<LogEntry> entries = new ArrayList<LogEntry>();
+		byte[] content = new byte[4096];
+		for (int i = 0; i < files; i++) {
+			String path = Fixtures.path(i);
+			JakeObject jo = new JakeObject(path);
+			objects.add(jo);
+			String hash = "";
+			if (i % 3 != 2) {
+				File f = new File(root, path);
+				f.getParentFile().mkdirs();
+				random.nextBytes(content);
+				FileOutputStream os = new FileOutputStream(f);
+				os.write(content);
+				os.close();
+				if (i % 3 == 0)
+					hash = fss.calculateHashOverFile(path).toString();
+			}
+			if (hash.isEmpty())
+				hash = Long.toHexString(random.nextLong());
+			entries.add(new LogEntry(null, new Timestamp(1000000000000L + i),
+					Fixtures.user(i), jo, "", hash, i % 10 != 0));
+		}
+		log.addAll(entries);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		log.disconnect();
+		fss.unsetRootPath();
+		Fixtures.delete(dir);
+	}
+
+	@Benchmark
+	public void calculateAll(Blackhole bh) throws Exception {
+		for (JakeObject jo : objects) {
+			bh.consume(AttributedCalculator.calculateAttributed(fss, log, jo));
+		}
+	}
+}
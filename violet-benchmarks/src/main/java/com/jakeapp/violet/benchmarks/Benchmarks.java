@@ -0,0 +1,30 @@
+package com.jakeapp.violet.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, by default to
+ * <code>jmh-result.json</code>, so runs of different builds can be compared.
+ * Takes the usual JMH command line options, e.g. <code>-p size=10000</code>
+ * or a benchmark name pattern.
+ */
+public class Benchmarks {
+
+	public static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(cmd);
+		if (!cmd.getResultFormat().hasValue())
+			builder.resultFormat(ResultFormatType.JSON);
+		if (!cmd.getResult().hasValue())
+			builder.result(RESULT_FILE);
+		Options options = builder.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,83 @@
+package com.jakeapp.violet.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.LogImpl;
+import com.jakeapp.violet.model.User;
+
+/**
+ * Synthetic data shared by the benchmarks. Everything is derived from a fixed
+ * seed, so runs are comparable.
+ */
+final class Fixtures {
+
+	static final int USERS = 10;
+
+	/**
+	 * every this many entries is unprocessed
+	 */
+	static final int UNPROCESSED_EVERY = 20;
+
+	private Fixtures() {
+	}
+
+	static String path(int i) {
+		return "dir" + (i % 37) + "/sub" + (i % 11) + "/file" + i + ".txt";
+	}
+
+	static User user(int i) {
+		return new User("user" + (i % USERS) + "@localhost");
+	}
+
+	/**
+	 * @param paths
+	 *            how many different JakeObjects the entries are spread over
+	 */
+	static List<LogEntry> entries(int n, int paths, long seed) {
+		Random random = new Random(seed);
+		List<LogEntry> entries = new ArrayList<LogEntry>(n);
+		long when = 1000000000000L;
+		for (int i = 0; i < n; i++) {
+			when += random.nextInt(60000);
+			entries.add(new LogEntry(new UUID(random.nextLong(), random
+					.nextLong()), new Timestamp(when), user(i), new JakeObject(
+					path(random.nextInt(paths))), "commit " + i,
+					Long.toHexString(random.nextLong()),
+					i % UNPROCESSED_EVERY != 0));
+		}
+		return entries;
+	}
+
+	static LogImpl createLog(File dir) {
+		LogImpl log = new LogImpl(new File(dir, "bench"));
+		log.setDbDriver("h2");
+		log.setDbUsername("sa");
+		log.setDbPassword("");
+		return log;
+	}
+
+	static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
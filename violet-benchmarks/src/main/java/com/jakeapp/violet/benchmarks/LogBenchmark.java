@@ -0,0 +1,110 @@
+package com.jakeapp.violet.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.LogImpl;
+import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
+
+/**
+ * The frequent operations of {@link LogImpl} on logs of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+
+	private static final int FILL_BATCH = 10000;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int size;
+
+	private File dir;
+
+	private LogImpl log;
+
+	private UUID[] ids;
+
+	private JakeObject[] paths;
+
+	private Random random = new Random(42);
+
+	private int added = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = Fixtures.createTempDir("logbench");
+		log = Fixtures.createLog(dir);
+		log.connect();
+		int pathCount = Math.max(size / 10, 1);
+		List<LogEntry> entries = Fixtures.entries(size, pathCount, 1);
+		for (int i = 0; i < entries.size(); i += FILL_BATCH) {
+			log.addAll(entries.subList(i,
+					Math.min(i + FILL_BATCH, entries.size())));
+		}
+		ids = new UUID[1024];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = entries.get(random.nextInt(entries.size())).getId();
+		}
+		paths = new JakeObject[1024];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = new JakeObject(Fixtures.path(random.nextInt(pathCount)));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		log.disconnect();
+		Fixtures.delete(dir);
+	}
+
+	@Benchmark
+	public void add() {
+		int i = added++;
+		log.add(new LogEntry(null, null, Fixtures.user(i), paths[i
+				% paths.length], "", "abc", true));
+	}
+
+	@Benchmark
+	public LogEntry getById() throws NoSuchLogEntryException {
+		return log.getById(ids[random.nextInt(ids.length)], true);
+	}
+
+	@Benchmark
+	public LogEntry getLastOfJakeObject() throws NoSuchLogEntryException {
+		return log.getLastOfJakeObject(paths[random.nextInt(paths.length)],
+				true);
+	}
+
+	@Benchmark
+	public List<LogEntry> getUnprocessedOfJakeObject() {
+		return log.getUnprocessed(paths[random.nextInt(paths.length)]);
+	}
+
+	@Benchmark
+	public List<LogEntry> getUnprocessed() {
+		return log.getUnprocessed();
+	}
+}
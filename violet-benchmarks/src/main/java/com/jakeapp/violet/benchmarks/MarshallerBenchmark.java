@@ -0,0 +1,124 @@
+package com.jakeapp.violet.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.jake.ics.impl.mock.MockUserId;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.protocol.files.RequestFileMessage;
+import com.jakeapp.violet.protocol.files.RequestMarshaller;
+import com.jakeapp.violet.protocol.msg.ILogEntryReceiver;
+import com.jakeapp.violet.protocol.msg.PokeMessage;
+import com.jakeapp.violet.protocol.msg.impl.LogEntryMarshaller;
+import com.jakeapp.violet.protocol.msg.impl.MessageMarshaller;
+
+/**
+ * Encoding and decoding of what goes over the wire: log lists, pokes and
+ * file requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarshallerBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int entries;
+
+	private UUID projectid = new UUID(21, 42);
+
+	private UserId userid = new MockUserId("me@localhost");
+
+	private LogEntryMarshaller logEntryMarshaller = new LogEntryMarshaller();
+
+	private MessageMarshaller messageMarshaller = new MessageMarshaller(
+			logEntryMarshaller);
+
+	private RequestMarshaller requestMarshaller = new RequestMarshaller();
+
+	private List<LogEntry> logs;
+
+	private byte[] packed;
+
+	private PokeMessage poke;
+
+	private String serializedPoke;
+
+	private RequestFileMessage request;
+
+	private String serializedRequest;
+
+	@Setup
+	public void setup() throws IOException {
+		logs = Fixtures.entries(entries, entries / 10 + 1, 1);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		logEntryMarshaller.packLogEntries(projectid, logs.iterator(), os);
+		packed = os.toByteArray();
+
+		poke = PokeMessage.createPokeMessage(projectid, userid, logs.get(0));
+		serializedPoke = messageMarshaller.serialize(poke);
+		request = RequestFileMessage.createRequestFileMessage(projectid,
+				userid, logs.get(0));
+		serializedRequest = requestMarshaller.serialize(request);
+	}
+
+	@Benchmark
+	public int packLogEntries() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(packed.length);
+		logEntryMarshaller.packLogEntries(projectid, logs.iterator(), os);
+		return os.size();
+	}
+
+	@Benchmark
+	public void unpackLogEntries(final Blackhole bh) throws IOException {
+		logEntryMarshaller.unpackLogEntries(projectid,
+				new ByteArrayInputStream(packed), new ILogEntryReceiver() {
+
+					@Override
+					public void received(LogEntry le) {
+						bh.consume(le);
+					}
+				});
+	}
+
+	@Benchmark
+	public String serializePoke() throws IOException {
+		return messageMarshaller.serialize(poke);
+	}
+
+	@Benchmark
+	public PokeMessage decodePoke() throws IOException {
+		return messageMarshaller.decodePokeMessage(serializedPoke, userid);
+	}
+
+	@Benchmark
+	public String serializeRequest() {
+		return requestMarshaller.serialize(request);
+	}
+
+	@Benchmark
+	public RequestFileMessage decodeRequest() {
+		return requestMarshaller.decodeRequestFileMessage(serializedRequest,
+				userid);
+	}
+}
@@ -9,16 +9,27 @@ import com.jakeapp.jake.fss.IFSService;
 import com.jakeapp.jake.fss.ProjectDir;
 import com.jakeapp.jake.ics.ICService;
 import com.jakeapp.jake.ics.filetransfer.IFileTransferService;
+import com.jakeapp.violet.actions.global.serve.TransferRuntime;
+import com.jakeapp.violet.actions.project.interact.SyncScheduler;
 import com.jakeapp.violet.context.Context;
 import com.jakeapp.violet.context.ContextFactory;
 import com.jakeapp.violet.context.ProjectActions;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.di.ICSFactory;
+import com.jakeapp.violet.di.IGlobalPreferencesFactory;
+import com.jakeapp.violet.di.IHashCacheFactory;
 import com.jakeapp.violet.di.ILogFactory;
+import com.jakeapp.violet.di.IPeerStatsFactory;
 import com.jakeapp.violet.di.IProjectPreferencesFactory;
+import com.jakeapp.violet.di.ISignatureCacheFactory;
+import com.jakeapp.violet.di.ITransferSpoolFactory;
 import com.jakeapp.violet.di.IUserIdFactory;
+import com.jakeapp.violet.model.HashCache;
 import com.jakeapp.violet.model.Log;
+import com.jakeapp.violet.model.PeerStats;
 import com.jakeapp.violet.model.ProjectPreferences;
+import com.jakeapp.violet.model.SignatureCache;
+import com.jakeapp.violet.model.TransferSpool;
 import com.jakeapp.violet.model.User;
 
 /**
@@ -44,6 +55,21 @@ public class StartProjectAction extends AvailableLaterObject<Context> {
 	@Inject
 	private ILogFactory logFactory;
 
+	@Inject
+	private ISignatureCacheFactory signatureCacheFactory;
+
+	@Inject
+	private IHashCacheFactory hashCacheFactory;
+
+	@Inject
+	private ITransferSpoolFactory transferSpoolFactory;
+
+	@Inject
+	private IPeerStatsFactory peerStatsFactory;
+
+	@Inject
+	private IGlobalPreferencesFactory globalPreferencesFactory;
+
 	@Inject
 	private ContextFactory contextFactory;
 
@@ -58,6 +84,9 @@ public class StartProjectAction extends AvailableLaterObject<Context> {
 	@Override
 	public Context calculate() throws Exception {
 		fss.setRootPath(dir);
+		// the rates of all projects together
+		TransferRuntime.getInstance().setSettings(
+				globalPreferencesFactory.get());
 		ProjectPreferences prefs = projectPreferencesFactory.get(dir);
 		UUID projectid = UUID.fromString(prefs
 				.get(ProjectModel.PROJECT_ID_PROPERTY_KEY));
@@ -69,9 +98,23 @@ public class StartProjectAction extends AvailableLaterObject<Context> {
 
 		Log db = logFactory.getLog(dir);
 
+		SignatureCache signatures = signatureCacheFactory
+				.getSignatureCache(dir);
+		fss.addModificationListener(signatures);
+
+		HashCache hashes = hashCacheFactory.getHashCache(dir, fss);
+		fss.addModificationListener(hashes);
+
+		TransferSpool spool = transferSpoolFactory.getTransferSpool(dir);
+
+		PeerStats peerStats = peerStatsFactory.getPeerStats(dir);
+
 		ProjectModel model = contextFactory.createProjectModel(fss, db, prefs,
-				ics, transfer);
+				ics, transfer, signatures, hashes, spool, peerStats);
 		ProjectActions actions = contextFactory.createProjectActions();
-		return contextFactory.createContext(model, actions);
+		SyncScheduler scheduler = actions.getInteractActions().syncScheduler(
+				model, null);
+		scheduler.start();
+		return contextFactory.createContext(model, actions, scheduler);
 	}
 }
\ No newline at end of file
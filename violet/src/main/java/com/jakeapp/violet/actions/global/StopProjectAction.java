@@ -1,7 +1,7 @@
 package com.jakeapp.violet.actions.global;
 
 import com.jakeapp.availablelater.AvailableLaterObject;
-import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.context.Context;
 
 /**
  * <code>AvailableLaterObject</code> which is responsible for starting or
@@ -9,10 +9,10 @@ import com.jakeapp.violet.context.ProjectModel;
  */
 public class StopProjectAction extends AvailableLaterObject<Void> {
 
-	private ProjectModel model;
+	private Context context;
 
-	public StopProjectAction(ProjectModel model) {
-		this.model = model;
+	public StopProjectAction(Context context) {
+		this.context = context;
 	}
 
 	/**
@@ -20,8 +20,9 @@ public class StopProjectAction extends AvailableLaterObject<Void> {
 	 */
 	@Override
 	public Void calculate() throws Exception {
-		model.getFss().unsetRootPath();
-		model.getLog().disconnect();
+		context.getSyncScheduler().stop();
+		context.getModel().getFss().unsetRootPath();
+		context.getModel().getLog().disconnect();
 		return null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package com.jakeapp.violet.actions.global.serve;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.violet.model.ProjectPreferences;
+import com.jakeapp.violet.protocol.files.RequestFileMessage.RequestType;
+
+/**
+ * Keeps the transfers of a project within the upload and download rates set
+ * in its preferences and within the global rates of the
+ * {@link TransferRuntime}. Changed rates take effect right away.
+ * 
+ * The ICS reads and writes the files itself, so the bytes of a running
+ * transfer can't be held back. Instead the {@link TransferRuntime} takes them
+ * from the buckets while they are transferred, and no further transfer
+ * starts while a bucket is in debt: requests are rejected instead of served,
+ * and wait before they are sent. Log syncs, signatures, manifests and other
+ * small transfers always go through, but still count.
+ */
+public class BandwidthShaper {
+
+	private static final Logger log = Logger.getLogger(BandwidthShaper.class);
+
+	/**
+	 * in KB/s, none or 0 for no limit. Also read from the global settings.
+	 */
+	public static final String UPLOAD_RATE_PROPERTY_KEY = "transfer.upload.rate";
+
+	/**
+	 * in KB/s, none or 0 for no limit. Also read from the global settings.
+	 */
+	public static final String DOWNLOAD_RATE_PROPERTY_KEY = "transfer.download.rate";
+
+	/**
+	 * transfers up to this size (in bytes) don't wait
+	 */
+	static final long SMALL = 64 * 1024;
+
+	private final ProjectPreferences preferences;
+
+	private final TokenBucket upload = new TokenBucket();
+
+	private final TokenBucket download = new TokenBucket();
+
+	public BandwidthShaper(ProjectPreferences preferences) {
+		this.preferences = preferences;
+	}
+
+	/**
+	 * @return whether requests of the type are sent and served without waiting
+	 */
+	public static boolean isPriority(RequestType type) {
+		return type == RequestType.LOGS || type == RequestType.LOGS_SINCE
+				|| type == RequestType.RECONCILE
+				|| type == RequestType.SIGNATURE
+				|| type == RequestType.MANIFEST;
+	}
+
+	/**
+	 * doesn't wait
+	 * 
+	 * @param bytes
+	 *            what will be sent, 0 if not known
+	 * @param priority
+	 *            sent anyway, see {@link #isPriority(RequestType)}
+	 * @return false if the upload rates are used up for now
+	 */
+	public boolean mayUpload(long bytes, boolean priority) {
+		if (priority || (bytes > 0 && bytes <= SMALL))
+			return true;
+		return TransferRuntime.getInstance().getUploadBucket().getTokens() >= 0
+				&& getUpload().getTokens() >= 0;
+	}
+
+	/**
+	 * counts bytes that were sent
+	 */
+	public void uploaded(long bytes) {
+		TransferRuntime.getInstance().getUploadBucket().charge(bytes);
+		getUpload().charge(bytes);
+	}
+
+	/**
+	 * waits until a file may be requested
+	 * 
+	 * @param priority
+	 *            the file is requested right away, see
+	 *            {@link #isPriority(RequestType)}
+	 * @throws InterruptedException
+	 */
+	public void beforeDownload(boolean priority) throws InterruptedException {
+		TransferRuntime.getInstance().getDownloadBucket().take(0, priority);
+		getDownload().take(0, priority);
+	}
+
+	/**
+	 * counts bytes that arrived
+	 */
+	public void downloaded(long bytes) {
+		TransferRuntime.getInstance().getDownloadBucket().charge(bytes);
+		getDownload().charge(bytes);
+	}
+
+	private TokenBucket getUpload() {
+		upload.setRate(getRate(preferences, UPLOAD_RATE_PROPERTY_KEY));
+		return upload;
+	}
+
+	private TokenBucket getDownload() {
+		download.setRate(getRate(preferences, DOWNLOAD_RATE_PROPERTY_KEY));
+		return download;
+	}
+
+	/**
+	 * @param preferences
+	 *            may be null
+	 * @return in bytes per second, 0 for no limit
+	 */
+	static long getRate(ProjectPreferences preferences, String key) {
+		if (preferences == null)
+			return 0;
+		String rate = preferences.get(key);
+		if (rate == null)
+			return 0;
+		try {
+			return Math.max(Long.parseLong(rate), 0) * 1024;
+		} catch (NumberFormatException e) {
+			log.warn("invalid " + key + ": " + rate);
+			return 0;
+		}
+	}
+}
@@ -36,6 +36,14 @@ public class BlockingFileTransfer {
 		final FileRequest sigfr = new FileRequest(filename, false,
 				msg.getUser());
 
+		BandwidthShaper shaper = TransferRuntime.getInstance().getShaper(model);
+		try {
+			shaper.beforeDownload(BandwidthShaper.isPriority(msg.getType()));
+		} catch (InterruptedException e) {
+			log.debug("interrupted waiting to request " + filename);
+			return null;
+		}
+
 		IFileTransfer ft;
 		try {
 			ft = AvailableLaterWaiter.await(new FileTransferNegotiationWaiter(
@@ -45,7 +53,7 @@ public class BlockingFileTransfer {
 			return null;
 		}
 		try {
-			AvailableLaterWaiter.await(new FileTransferWaiter(ft));
+			AvailableLaterWaiter.await(new FileTransferWaiter(ft, shaper));
 		} catch (Exception e1) {
 			log.error("transfer failed", e1);
 			return null;
@@ -6,7 +6,6 @@ import com.jakeapp.availablelater.AvailabilityListener;
 import com.jakeapp.availablelater.AvailableLater;
 import com.jakeapp.jake.ics.filetransfer.AdditionalFileTransferData;
 import com.jakeapp.jake.ics.filetransfer.ITransferListener;
-import com.jakeapp.jake.ics.filetransfer.TransferWatcher;
 import com.jakeapp.jake.ics.filetransfer.runningtransfer.IFileTransfer;
 import com.jakeapp.jake.ics.filetransfer.runningtransfer.Status;
 
@@ -17,9 +16,16 @@ final class FileTransferWaiter implements
 
 	private final IFileTransfer ft;
 
+	private final BandwidthShaper shaper;
 
-	public FileTransferWaiter(IFileTransfer ft) {
+
+	/**
+	 * @param shaper
+	 *            counts what arrives, may be null
+	 */
+	public FileTransferWaiter(IFileTransfer ft, BandwidthShaper shaper) {
 		this.ft = ft;
+		this.shaper = shaper;
 	}
 
 	@Override
@@ -41,6 +47,6 @@ final class FileTransferWaiter implements
 	@Override
 	public void setListener(AvailabilityListener<Void> listener) {
 		this.listener = listener;
-		new Thread(new TransferWatcher(ft, this)).start();
+		TransferRuntime.getInstance().watch(ft, this, shaper, false);
 	}
 }
\ No newline at end of file
@@ -7,7 +7,9 @@ import com.jakeapp.violet.model.User;
 public interface ISyncListener {
 
 	/**
-	 * we received a poke. Do a LogSync when you get a chance!
+	 * we received a poke. Do a LogSync when you get a chance! The
+	 * {@link com.jakeapp.violet.actions.project.interact.SyncScheduler} of
+	 * the project does, it coalesces many pokes into few syncs.
 	 * 
 	 * @param user
 	 */
@@ -1,10 +1,13 @@
 package com.jakeapp.violet.actions.global.serve;
 
+import java.io.IOException;
+
 import javax.inject.Inject;
 
 import org.apache.log4j.Logger;
 
 import com.jakeapp.jake.ics.msgservice.IMessageReceiveListener;
+import com.jakeapp.violet.actions.project.interact.LogSyncAction;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.model.User;
 import com.jakeapp.violet.protocol.Message;
@@ -30,6 +33,10 @@ public class ProjectMessageListener implements IMessageReceiveListener {
 	@Override
 	public void receivedMessage(com.jakeapp.jake.ics.UserId from_userid,
 			String content) {
+		if (messageMarshaller.isSignatureMessage(content)) {
+			// for the ProjectRequestListener
+			return;
+		}
 		try {
 			User user = new User(from_userid.getUserId());
 			PokeMessage msg = messageMarshaller.decodePokeMessage(content,
@@ -38,12 +45,17 @@ public class ProjectMessageListener implements IMessageReceiveListener {
 
 			if (!isForThisProject(msg))
 				return;
-			if (msg.getLogEntry() == null) {
+			if (msg.getLogEntries().isEmpty()) {
 				// other user wants us to do a logsync
 				listener.poke(user);
 			} else {
 				listener.startReceiving(user);
-				model.getLog().add(msg.getLogEntry());
+				// we may know some already from a logsync
+				long before = model.getLog().getLastSequence();
+				int stored = model.getLog().addAll(msg.getLogEntries());
+				log.debug("stored " + stored + " of "
+						+ msg.getLogEntries().size() + " pushed log entries");
+				skipPushed(user, before, stored);
 				listener.finishedReceiving(user);
 			}
 		} catch (Exception e) {
@@ -51,6 +63,29 @@ public class ProjectMessageListener implements IMessageReceiveListener {
 		}
 	}
 
+	/**
+	 * The peer has the entries it pushed, so they are left out of what we
+	 * push to it. Only if it had all of ours before, and nothing else was
+	 * added meanwhile.
+	 * 
+	 * @param before
+	 *            our last sequence number before the entries were stored
+	 */
+	private void skipPushed(User user, long before, int stored) {
+		String key = LogSyncAction.PUSHED_PROPERTY_PREFIX + user.getUserId();
+		if (stored == 0 || !Long.toString(before).equals(
+				model.getPreferences().get(key)))
+			return;
+		long last = model.getLog().getLastSequence();
+		if (last != before + stored)
+			return;
+		try {
+			model.getPreferences().set(key, Long.toString(last));
+		} catch (IOException e) {
+			log.warn("storing sequence number failed", e);
+		}
+	}
+
 	private boolean isForThisProject(Message msg) {
 		if (msg == null || msg.getProjectId() == null
 				|| !msg.getProjectId().equals(model.getProjectid())) {
@@ -1,12 +1,23 @@
 package com.jakeapp.violet.actions.global.serve;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
@@ -18,17 +29,21 @@ import org.metastatic.rsync.Rdiff;
 import com.jakeapp.jake.fss.FSService;
 import com.jakeapp.jake.fss.exceptions.InvalidFilenameException;
 import com.jakeapp.jake.fss.exceptions.NotAReadableFileException;
+import com.jakeapp.jake.ics.UserId;
 import com.jakeapp.jake.ics.filetransfer.AdditionalFileTransferData;
 import com.jakeapp.jake.ics.filetransfer.FileRequestFileMapper;
 import com.jakeapp.jake.ics.filetransfer.ITransferListener;
 import com.jakeapp.jake.ics.filetransfer.IncomingTransferListener;
-import com.jakeapp.jake.ics.filetransfer.TransferWatcher;
 import com.jakeapp.jake.ics.filetransfer.negotiate.FileRequest;
 import com.jakeapp.jake.ics.filetransfer.runningtransfer.IFileTransfer;
 import com.jakeapp.jake.ics.filetransfer.runningtransfer.Status;
+import com.jakeapp.jake.ics.msgservice.IMessageReceiveListener;
 import com.jakeapp.violet.actions.project.local.AttributedCalculator;
 import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.model.ChunkManifest;
 import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogCursor;
+import com.jakeapp.violet.model.LogDigest;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.model.User;
 import com.jakeapp.violet.model.attributes.Attributed;
@@ -36,23 +51,107 @@ import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
 import com.jakeapp.violet.protocol.files.IRequestMarshaller;
 import com.jakeapp.violet.protocol.files.RequestFileMessage;
 import com.jakeapp.violet.protocol.files.RequestFileMessage.RequestType;
+import com.jakeapp.violet.protocol.files.TransferCompression;
 import com.jakeapp.violet.protocol.msg.ILogEntryMarshaller;
+import com.jakeapp.violet.protocol.msg.IMessageMarshaller;
+import com.jakeapp.violet.protocol.msg.SignatureMessage;
 
+/**
+ * Serves the files and logs peers request. Also register it for messages, it
+ * keeps the signatures peers send along with their delta requests.
+ */
 public class ProjectRequestListener implements IncomingTransferListener,
-		FileRequestFileMapper {
+		FileRequestFileMapper, IMessageReceiveListener {
 
 	private static Logger log = Logger.getLogger(ProjectRequestListener.class);
 
+	/**
+	 * supplied signatures kept until their delta is requested
+	 */
+	static final int MAX_SUPPLIED = 32;
+
+	/**
+	 * largest supplied signature we keep, in bytes
+	 */
+	static final int MAX_SUPPLIED_LENGTH = 64 * 1024;
+
+	/**
+	 * chunk manifests kept for peers that download from us in chunks
+	 */
+	static final int MAX_MANIFESTS = 16;
+
 	@Inject
 	private IRequestMarshaller requestMarshaller;
 
 	@Inject
 	private ILogEntryMarshaller logEntryMarshaller;
 
+	@Inject
+	private IMessageMarshaller messageMarshaller;
+
 	private ProjectModel model;
 
 	private ISyncListener listener;
 
+	private final TransferRuntime runtime = TransferRuntime.getInstance();
+
+	/**
+	 * digest of our log for reconciling peers, rebuilt when the log grew
+	 */
+	private LogDigest digest;
+
+	/**
+	 * hash -&gt; manifest of the version, least recently used first
+	 */
+	private final Map<String, ChunkManifest> manifests = new LinkedHashMap<String, ChunkManifest>(
+			16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, ChunkManifest> eldest) {
+			return size() > MAX_MANIFESTS;
+		}
+	};
+
+	/**
+	 * size and modification time of a file served from the project directory
+	 * when it was hashed
+	 */
+	private static class Snapshot {
+
+		private final File file;
+
+		private final long length;
+
+		private final long modified;
+
+		Snapshot(File file) {
+			this.file = file;
+			this.length = file.length();
+			this.modified = file.lastModified();
+		}
+
+		boolean isUnchanged() {
+			return file.length() == length && file.lastModified() == modified;
+		}
+	}
+
+	/**
+	 * userid and request -&gt; the file being served
+	 */
+	private final ConcurrentMap<String, Snapshot> served = new ConcurrentHashMap<String, Snapshot>();
+
+	/**
+	 * userid and log entry id -&gt; signature, the oldest first
+	 */
+	private final Map<String, byte[]> supplied = new LinkedHashMap<String, byte[]>() {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > MAX_SUPPLIED;
+		}
+	};
+
 	public ProjectRequestListener(ProjectModel model, ISyncListener l) {
 		this.model = model;
 		this.listener = l;
@@ -67,7 +166,7 @@ public class ProjectRequestListener implements IncomingTransferListener,
 	 *         corresponding logEntry otherwise
 	 */
 	private LogEntry getLogEntryForRequest(RequestFileMessage req) {
-		UUID leuuid = UUID.fromString(req.getIdentifier());
+		UUID leuuid = getLogEntryId(req);
 		LogEntry le;
 		try {
 			le = model.getLog().getById(leuuid, false);
@@ -92,7 +191,7 @@ public class ProjectRequestListener implements IncomingTransferListener,
 		Attributed status;
 		try {
 			status = AttributedCalculator.calculateAttributed(model.getFss(),
-					model.getLog(), fo);
+					model.getHashes(), model.getLog(), fo);
 		} catch (Exception e) {
 			log.debug("status of the requested object is weird", e);
 			return null;
@@ -118,6 +217,15 @@ public class ProjectRequestListener implements IncomingTransferListener,
 					new JakeObject(req.getIdentifier()))) {
 				return false;
 			}
+			if (!runtime.getShaper(model).mayUpload(getSize(req),
+					BandwidthShaper.isPriority(req.getType()))) {
+				log.info("upload rate used up, rejecting the request");
+				return false;
+			}
+			if (!runtime.admit(fr.getPeer().getUserId(), getServedKey(fr))) {
+				log.info("too busy, rejecting the request");
+				return false;
+			}
 
 			log.info("we accept the request");
 			return true;
@@ -127,14 +235,59 @@ public class ProjectRequestListener implements IncomingTransferListener,
 		}
 	}
 
+	@Override
+	public void receivedMessage(UserId from_userid, String content) {
+		if (!messageMarshaller.isSignatureMessage(content))
+			return;
+		try {
+			SignatureMessage msg = messageMarshaller.decodeSignatureMessage(
+					content, from_userid);
+			if (!model.getProjectid().equals(msg.getProjectId()))
+				return;
+			if (msg.getSignature().length > MAX_SUPPLIED_LENGTH) {
+				log.debug("ignoring oversized signature from " + from_userid);
+				return;
+			}
+			log.debug("got signature for " + msg.getLogEntryId() + " from "
+					+ from_userid);
+			synchronized (supplied) {
+				supplied.put(getSuppliedKey(from_userid, msg.getLogEntryId()),
+						msg.getSignature());
+			}
+		} catch (Exception e) {
+			log.warn("handling signature failed", e);
+		}
+	}
+
+	/**
+	 * @return the signature the peer sent for the delta, null if there is none
+	 */
+	private byte[] takeSupplied(UserId peer, UUID leuuid) {
+		synchronized (supplied) {
+			return supplied.remove(getSuppliedKey(peer, leuuid));
+		}
+	}
+
+	private static String getSuppliedKey(UserId peer, UUID leuuid) {
+		return peer.getUserId() + "/" + leuuid;
+	}
+
 	@Override
 	public void started(final IFileTransfer t) {
 		log.debug("we are transmitting." + t);
-		new Thread(new TransferWatcher(t, new ITransferListener() {
+		final String key = getServedKey(t.getFileRequest());
+		runtime.started(key);
+		runtime.watch(t, new ITransferListener() {
 
 			@Override
 			public void onFailure(AdditionalFileTransferData transfer,
 					String error) {
+				runtime.release(key);
+				served.remove(key);
+				failed(error);
+			}
+
+			private void failed(String error) {
 				log.warn("transmitting failed: " + error);
 				listener.sendingFailed(new User(t.getPeer().getUserId()), t
 						.getFileRequest().getFileName(), error);
@@ -142,6 +295,13 @@ public class ProjectRequestListener implements IncomingTransferListener,
 
 			@Override
 			public void onSuccess(AdditionalFileTransferData transfer) {
+				runtime.release(key);
+				Snapshot snapshot = served.remove(key);
+				if (snapshot != null && !snapshot.isUnchanged()) {
+					// the peer's hash check rejects what it got
+					failed("file was modified while sending it");
+					return;
+				}
 				log.info("transmitting was successful");
 				listener.sendingSucceeded(new User(t.getPeer().getUserId()), t
 						.getFileRequest().getFileName());
@@ -156,7 +316,39 @@ public class ProjectRequestListener implements IncomingTransferListener,
 								.getFileName(), status.toString(), progress);
 			}
 
-		})).start();
+		}, runtime.getShaper(model), true);
+	}
+
+	private static String getServedKey(FileRequest fr) {
+		return fr.getPeer().getUserId() + "/" + fr.getFileName();
+	}
+
+	/**
+	 * A full version is sent right from the project directory instead of a
+	 * copy. {@link #canHandleFileRequest(RequestFileMessage)} checked its
+	 * hash, if it changes until the transfer is finished that is reported as
+	 * a failure.
+	 * 
+	 * @return the file in the project directory
+	 */
+	private File serveFile(FileRequest fr, RequestFileMessage req)
+			throws Exception {
+		LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+		File file = new File(model.getFss().getFullpath(
+				le.getWhat().getRelPath()));
+		served.put(getServedKey(fr), new Snapshot(file));
+		log.info("serving " + file);
+		return file;
+	}
+
+	/**
+	 * @return false if compressing the requested version isn't worth it, it
+	 *         is sent as it is then
+	 */
+	private boolean isCompressible(RequestFileMessage req) throws IOException {
+		LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+		return TransferCompression.isCompressible(new File(model.getFss()
+				.getFullpath(le.getWhat().getRelPath())));
 	}
 
 	private File getDeliveryDirectory() {
@@ -170,12 +362,39 @@ public class ProjectRequestListener implements IncomingTransferListener,
 	}
 
 	private boolean canHandleFileRequest(RequestFileMessage req) {
-		if (req.getType() == RequestType.LOGS) {
+		if (req.isCompressed() && req.getType() != RequestType.FILE
+				&& req.getType() != RequestType.RANGE
+				&& req.getType() != RequestType.DELTA
+				&& req.getType() != RequestType.DELTA_SUPPLIED) {
+			log.debug("can't compress " + req.getType());
+			return false;
+		}
+		if (req.getType() == RequestType.LOGS
+				|| req.getType() == RequestType.LOGS_SINCE) {
+			return true;
+		} else if (req.getType() == RequestType.RECONCILE) {
+			for (String bucket : getBuckets(req)) {
+				if (bucket.isEmpty())
+					return false;
+				char what = bucket.charAt(0);
+				String prefix = bucket.substring(1);
+				if (!LogDigest.isPrefix(prefix))
+					return false;
+				if (what == RequestFileMessage.RECONCILE_ENTRIES)
+					continue;
+				if (what != RequestFileMessage.RECONCILE_CHILDREN
+						|| prefix.length() == LogDigest.MAX_DEPTH)
+					return false;
+			}
 			return true;
 		} else {
 			if (req.getType() == RequestType.FILE
 					|| req.getType() == RequestType.SIGNATURE
-					|| req.getType() == RequestType.DELTA) {
+					|| req.getType() == RequestType.DELTA
+					|| req.getType() == RequestType.DELTA_SUPPLIED
+					|| req.getType() == RequestType.MANIFEST
+					|| req.getType() == RequestType.CHUNK
+					|| req.getType() == RequestType.RANGE) {
 				LogEntry le = getLogEntryForRequest(req);
 				if (le == null) {
 					return false;
@@ -194,8 +413,7 @@ public class ProjectRequestListener implements IncomingTransferListener,
 					}
 				} else {
 					try {
-						if (!model.getFss()
-								.calculateHashOverFile(fo.getRelPath())
+						if (!model.getHashes().getHash(fo.getRelPath())
 								.equals(hash)) {
 							log.debug("file was modified locally, so can't send it");
 							return false;
@@ -207,6 +425,10 @@ public class ProjectRequestListener implements IncomingTransferListener,
 					} catch (NotAReadableFileException e) {
 						return false;
 					}
+					if (req.getType() == RequestType.CHUNK)
+						return isInFile(req, fo);
+					if (req.getType() == RequestType.RANGE)
+						return isRangeInFile(req, fo);
 					return true;
 				}
 			}
@@ -215,10 +437,154 @@ public class ProjectRequestListener implements IncomingTransferListener,
 		}
 	}
 
+	/**
+	 * @return the id of the requested version
+	 */
+	private static UUID getLogEntryId(RequestFileMessage req) {
+		return UUID.fromString(req.getIdentifier().split(
+				RequestFileMessage.CHUNK_SEPARATOR)[0]);
+	}
+
+	/**
+	 * @return offset and length of the requested chunk or run of chunks
+	 */
+	private static long[] getChunkRange(RequestFileMessage req) {
+		String[] parts = req.getIdentifier().split(
+				RequestFileMessage.CHUNK_SEPARATOR);
+		if (parts.length != 3)
+			throw new IllegalArgumentException("malformed chunk: "
+					+ req.getIdentifier());
+		return new long[] { Long.parseLong(parts[1]),
+				Long.parseLong(parts[2]) };
+	}
+
+	private boolean isInFile(RequestFileMessage req, JakeObject fo) {
+		try {
+			long[] range = getChunkRange(req);
+			File file = new File(model.getFss().getFullpath(fo.getRelPath()));
+			return range[0] >= 0 && range[1] > 0
+					&& range[1] <= ChunkManifest.MAX_RUN
+					&& range[0] + range[1] <= file.length();
+		} catch (Exception e) {
+			log.debug("can't serve chunk", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return where the requested range starts
+	 */
+	private static long getRangeOffset(RequestFileMessage req) {
+		String[] parts = req.getIdentifier().split(
+				RequestFileMessage.CHUNK_SEPARATOR);
+		if (parts.length != 2)
+			throw new IllegalArgumentException("malformed range: "
+					+ req.getIdentifier());
+		return Long.parseLong(parts[1]);
+	}
+
+	private boolean isRangeInFile(RequestFileMessage req, JakeObject fo) {
+		try {
+			long offset = getRangeOffset(req);
+			File file = new File(model.getFss().getFullpath(fo.getRelPath()));
+			return offset >= 0 && offset <= file.length();
+		} catch (Exception e) {
+			log.debug("can't serve range", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return about how many bytes are sent for the request, 0 if not known
+	 */
+	private long getSize(RequestFileMessage req) {
+		try {
+			if (req.getType() == RequestType.CHUNK)
+				return getChunkRange(req)[1];
+			if (req.getType() != RequestType.FILE
+					&& req.getType() != RequestType.RANGE)
+				return 0;
+			LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+			File file = new File(model.getFss().getFullpath(
+					le.getWhat().getRelPath()));
+			if (req.getType() == RequestType.RANGE)
+				return Math.max(file.length() - getRangeOffset(req), 0);
+			return file.length();
+		} catch (Exception e) {
+			log.debug("can't tell the size of " + req, e);
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the manifest of the version, null if the file was modified
+	 *         meanwhile
+	 */
+	private ChunkManifest getManifest(LogEntry le) throws Exception {
+		synchronized (manifests) {
+			ChunkManifest manifest = manifests.get(le.getHow());
+			if (manifest != null)
+				return manifest;
+		}
+		String relpath = le.getWhat().getRelPath();
+		InputStream is = new BufferedInputStream(
+				FSService.readFileStreamAbs(new File(model.getFss()
+						.getFullpath(relpath))));
+		ChunkManifest manifest;
+		try {
+			manifest = ChunkManifest.of(le.getHow(), is);
+		} finally {
+			is.close();
+		}
+		if (!model.getHashes().getHash(relpath).equals(le.getHow())) {
+			log.debug("file was modified while cutting it into chunks");
+			return null;
+		}
+		synchronized (manifests) {
+			manifests.put(le.getHow(), manifest);
+		}
+		return manifest;
+	}
+
+	private static String[] getBuckets(RequestFileMessage req) {
+		return req.getIdentifier().split(
+				RequestFileMessage.RECONCILE_SEPARATOR);
+	}
+
+	private synchronized LogDigest getDigest() {
+		if (digest == null
+				|| digest.getSequence() != model.getLog().getLastSequence())
+			digest = LogDigest.of(model.getLog());
+		return digest;
+	}
+
 	@Override
 	public File getFileForRequest(FileRequest fr) {
+		String key = getServedKey(fr);
+		runtime.preparing(key);
+		File f = prepareFile(fr);
+		runtime.prepared(key);
+		if (f == null)
+			runtime.cancel(key);
+		return f;
+	}
+
+	/**
+	 * @return the file to send, null if the request can't be served
+	 */
+	private File prepareFile(FileRequest fr) {
 		try {
 			log.info("incoming request: " + fr);
+			RequestFileMessage req = requestMarshaller
+					.decodeRequestFileMessage(fr.getFileName(), fr.getPeer());
+
+			if (!canHandleFileRequest(req))
+				return null;
+
+			if (req.getType() == RequestType.FILE
+					&& (!req.isCompressed() || !isCompressible(req)))
+				return serveFile(fr, req);
+
 			File od = File.createTempFile(fr.getPeer().getUserId(), "",
 					getDeliveryDirectory());
 			od.delete();
@@ -227,24 +593,140 @@ public class ProjectRequestListener implements IncomingTransferListener,
 			File tempfile = new File(od, fr.getFileName());
 			tempfile.deleteOnExit();
 			OutputStream os = new FileOutputStream(tempfile);
+			if (req.isCompressed()) {
+				LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+				os = TransferCompression.compress(os, new File(model.getFss()
+						.getFullpath(le.getWhat().getRelPath())));
+			}
 
-			RequestFileMessage req = requestMarshaller
-					.decodeRequestFileMessage(fr.getFileName(), fr.getPeer());
+			if (req.getType() == RequestType.FILE) {
+				LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+				InputStream is = FSService.readFileStreamAbs(new File(model
+						.getFss().getFullpath(le.getWhat().getRelPath())));
+				try {
+					byte[] buf = new byte[64 * 1024];
+					int n;
+					while ((n = is.read(buf)) >= 0)
+						os.write(buf, 0, n);
+				} finally {
+					is.close();
+					os.close();
+				}
+				log.debug("compressed file provided");
+				return tempfile;
+			} else if (req.getType() == RequestType.LOGS) {
+				GZIPOutputStream zos = new GZIPOutputStream(os);
+				logEntryMarshaller.packLogEntries(model.getProjectid(),
+						LogCursor.withArchive(model.getLog()), zos);
+				zos.close();
+				return tempfile;
+			} else if (req.getType() == RequestType.LOGS_SINCE) {
+				long since = Long.parseLong(req.getIdentifier());
+				long watermark = model.getLog().getLastSequence();
+				if (since > watermark) {
+					log.debug("peer is ahead of our log, it must have been "
+							+ "recreated. sending everything.");
+					since = 0;
+				}
+				Iterator<LogEntry> logs;
+				if (since == 0) {
+					// the whole log, page by page. entries added meanwhile
+					// may be sent twice, which is harmless
+					logs = LogCursor.withArchive(model.getLog());
+				} else {
+					logs = model.getLog().getAllSince(since, watermark)
+							.iterator();
+				}
+				log.debug("sending log entries after " + since);
 
-			if (!canHandleFileRequest(req))
-				return null;
+				GZIPOutputStream zos = new GZIPOutputStream(os);
+				logEntryMarshaller.packLogEntriesSince(model.getProjectid(),
+						watermark, logs, zos);
+				zos.close();
+				return tempfile;
+			} else if (req.getType() == RequestType.RECONCILE) {
+				LogDigest digest = getDigest();
+				List<LogDigest.Bucket> buckets = new ArrayList<LogDigest.Bucket>();
+				List<LogEntry> logs = new ArrayList<LogEntry>();
+				for (String bucket : getBuckets(req)) {
+					String prefix = bucket.substring(1);
+					if (bucket.charAt(0) == RequestFileMessage.RECONCILE_CHILDREN) {
+						buckets.addAll(digest.getChildren(prefix));
+					} else {
+						// the peer only asks for small buckets
+						for (UUID id : digest.getIds(prefix)) {
+							logs.add(model.getLog().getById(id, true));
+						}
+					}
+				}
+				log.debug("sending " + buckets.size() + " buckets and "
+						+ logs.size() + " log entries");
 
-			if (req.getType() == RequestType.LOGS) {
-				List<LogEntry> logs = model.getLog().getAll(true);
+				GZIPOutputStream zos = new GZIPOutputStream(os);
+				logEntryMarshaller.packReconciliation(model.getProjectid(),
+						digest.getSequence(), buckets, logs.iterator(), zos);
+				zos.close();
+				return tempfile;
+			} else if (req.getType() == RequestType.MANIFEST) {
+				LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+				ChunkManifest manifest = getManifest(le);
+				if (manifest == null)
+					return null;
+				log.debug("sending manifest of " + manifest.getChunks().size()
+						+ " chunks");
 
-				logEntryMarshaller.packLogEntries(model.getProjectid(), logs,
-						new GZIPOutputStream(os));
+				GZIPOutputStream zos = new GZIPOutputStream(os);
+				manifest.write(zos);
+				zos.close();
+				return tempfile;
+			} else if (req.getType() == RequestType.CHUNK) {
+				LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+				long[] range = getChunkRange(req);
+				File origfile = new File(model.getFss().getFullpath(
+						le.getWhat().getRelPath()));
+				// the peer checks the digests of the chunks
+				RandomAccessFile raf = new RandomAccessFile(origfile, "r");
+				try {
+					raf.seek(range[0]);
+					byte[] buf = new byte[64 * 1024];
+					long left = range[1];
+					while (left > 0) {
+						int n = raf.read(buf, 0, (int) Math.min(buf.length,
+								left));
+						if (n < 0)
+							throw new EOFException("file was truncated");
+						os.write(buf, 0, n);
+						left -= n;
+					}
+				} finally {
+					raf.close();
+					os.close();
+				}
+				return tempfile;
+			} else if (req.getType() == RequestType.RANGE) {
+				LogEntry le = model.getLog().getById(getLogEntryId(req), false);
+				long offset = getRangeOffset(req);
+				File origfile = new File(model.getFss().getFullpath(
+						le.getWhat().getRelPath()));
+				log.debug("sending " + origfile + " from byte " + offset);
+				// the peer checks the hash of the whole version
+				RandomAccessFile raf = new RandomAccessFile(origfile, "r");
+				try {
+					raf.seek(offset);
+					byte[] buf = new byte[64 * 1024];
+					int n;
+					while ((n = raf.read(buf)) >= 0)
+						os.write(buf, 0, n);
+				} finally {
+					raf.close();
+					os.close();
+				}
 				return tempfile;
 			} else {
-				if (req.getType() == RequestType.FILE
-						|| req.getType() == RequestType.SIGNATURE
-						|| req.getType() == RequestType.DELTA) {
-					LogEntry le = model.getLog().getById(req.getProjectId(),
+				if (req.getType() == RequestType.SIGNATURE
+						|| req.getType() == RequestType.DELTA
+						|| req.getType() == RequestType.DELTA_SUPPLIED) {
+					LogEntry le = model.getLog().getById(getLogEntryId(req),
 							false);
 					String hash = le.getHow();
 					JakeObject fo = le.getWhat();
@@ -252,46 +734,56 @@ public class ProjectRequestListener implements IncomingTransferListener,
 							fo.getRelPath()));
 					log.info("original file at " + origfile);
 
-					if (req.getType() == RequestType.DELTA) {
+					if (req.getType() == RequestType.DELTA
+							|| req.getType() == RequestType.DELTA_SUPPLIED) {
 						// so the other guy wants a delta
 						// what a smart-ass
-						// he has to send his signature first, so lets ask him
-						log.debug("requesting signature");
-						RequestFileMessage msg = RequestFileMessage
-								.createRequestSignatureMessage(
-										model.getProjectid(), fr.getPeer(), le);
-
-						InputStream fis = BlockingFileTransfer.requestFile(
-								model, requestMarshaller, msg, null);
+						InputStream fis = null;
+						if (req.getType() == RequestType.DELTA_SUPPLIED) {
+							byte[] signature = takeSupplied(fr.getPeer(),
+									le.getId());
+							if (signature != null)
+								fis = new ByteArrayInputStream(signature);
+							else
+								log.debug("signature was not supplied");
+						}
 						if (fis == null) {
-							log.debug("requesting signatures did not succeed.");
-							return null;
+							// he has to send his signature first, so lets
+							// ask him
+							log.debug("requesting signature");
+							RequestFileMessage msg = RequestFileMessage
+									.createRequestSignatureMessage(
+											model.getProjectid(),
+											fr.getPeer(), le);
+
+							fis = BlockingFileTransfer.requestFile(model,
+									requestMarshaller, msg, null);
+							if (fis == null) {
+								log.debug("requesting signatures did not succeed.");
+								return null;
+							}
 						}
 						log.debug("creating delta from signature");
 						Rdiff rdiff = new Rdiff();
 						List<ChecksumPair> sums = rdiff.readSignatures(fis);
 						InputStream is = FSService.readFileStreamAbs(origfile);
-						rdiff.makeDeltas(sums, is, os);
+						try {
+							rdiff.makeDeltas(sums, is, os);
+						} finally {
+							is.close();
+							os.close();
+						}
 						log.debug("delta created");
-					}
-					if (req.getType() == RequestType.SIGNATURE) {
-						// create a signature file
-						Rdiff rdiff = new Rdiff();
-						InputStream is = FSService.readFileStreamAbs(origfile);
-						rdiff.makeSignatures(is, os);
-						log.debug("signature created");
 					} else {
-						// just ship the file
-						if (!model.getFss()
-								.calculateHashOverFile(fo.getRelPath())
-								.equals(hash)) {
-							log.debug("can not provide file as we modified it.");
-							return null;
+						// the file is not modified locally, so this is the
+						// hash of its content
+						try {
+							model.getSignatures().writeSignature(
+									fo.getRelPath(), hash, origfile, os);
+						} finally {
+							os.close();
 						}
-						// copy the whole file
-						FSService.writeFileStreamAbs(tempfile,
-								FSService.readFileStreamAbs(origfile));
-						log.debug("file duplicated");
+						log.debug("signature provided");
 					}
 				} else {
 					log.warn("can't understand message");
@@ -0,0 +1,100 @@
+package com.jakeapp.violet.actions.global.serve;
+
+/**
+ * Limits the average rate of transfers. A transfer takes its bytes from the
+ * bucket, which fills up at the rate and holds at most a second's worth. A
+ * transfer waits until the bucket is not empty, and may empty it below zero,
+ * so the bytes of a piece are paid for before the next piece is sent.
+ */
+public class TokenBucket {
+
+	/**
+	 * bytes per second, 0 for no limit
+	 */
+	private long rate = 0;
+
+	private double tokens = 0;
+
+	private long updated = now();
+
+	/**
+	 * @return the time in ms
+	 */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * takes effect right away, also for transfers that are waiting
+	 * 
+	 * @param rate
+	 *            bytes per second, 0 for no limit
+	 */
+	public synchronized void setRate(long rate) {
+		rate = Math.max(rate, 0);
+		if (rate == this.rate)
+			return;
+		refill();
+		this.rate = rate;
+		if (rate == 0)
+			tokens = 0;
+		else
+			tokens = Math.min(rate, tokens);
+		notifyAll();
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return the bytes that may be transferred right away, negative if
+	 *         transfers have to wait
+	 */
+	public synchronized double getTokens() {
+		refill();
+		return tokens;
+	}
+
+	/**
+	 * waits until the bucket is not empty, then takes the bytes
+	 * 
+	 * @param priority
+	 *            takes the bytes without waiting
+	 * @throws InterruptedException
+	 */
+	public synchronized void take(long bytes, boolean priority)
+			throws InterruptedException {
+		while (true) {
+			refill();
+			if (rate == 0)
+				return;
+			if (priority || tokens >= 0) {
+				tokens -= bytes;
+				return;
+			}
+			wait((long) (-tokens * 1000 / rate) + 1);
+		}
+	}
+
+	/**
+	 * takes the bytes without waiting
+	 * 
+	 * @param bytes
+	 *            negative to give back bytes that were not transferred
+	 */
+	public synchronized void charge(long bytes) {
+		refill();
+		if (rate == 0)
+			return;
+		tokens = Math.min(rate, tokens - bytes);
+		notifyAll();
+	}
+
+	private void refill() {
+		long now = now();
+		if (rate != 0)
+			tokens = Math.min(rate, tokens + (now - updated) * rate / 1000.0);
+		updated = now;
+	}
+}
@@ -0,0 +1,495 @@
+package com.jakeapp.violet.actions.global.serve;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.jake.ics.filetransfer.AdditionalFileTransferData;
+import com.jakeapp.jake.ics.filetransfer.ITransferListener;
+import com.jakeapp.jake.ics.filetransfer.runningtransfer.IFileTransfer;
+import com.jakeapp.jake.ics.filetransfer.runningtransfer.Status;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.model.ProjectPreferences;
+
+/**
+ * Watches all running transfers and limits how many we serve at once.
+ * 
+ * One thread polls the transfers and reports their progress, instead of a
+ * <code>TransferWatcher</code> thread per transfer. Finished transfers are
+ * reported on a small pool, so a slow listener doesn't hold up the others.
+ * Files requested from several users at once are requested on another pool,
+ * see {@link #getRequestPool()}.
+ * 
+ * Incoming requests get a slot before they are accepted: at most
+ * {@link #MAX_SERVING} at once, at most {@link #MAX_SERVING_PER_PEER} of them
+ * for the same user. Requests that find no free slot are rejected right
+ * away, the requester asks again later. Each transfer has its own slot, also
+ * when the same file is requested twice at once. A slot is given back when
+ * its transfer finished, or after {@link #LEASE_TIMEOUT} if it never started.
+ * The time its file is prepared doesn't count, see {@link #preparing(String)}.
+ * 
+ * The upload and download rates of all projects together are read from the
+ * global settings, see {@link #setSettings(ProjectPreferences)}, those of each
+ * project from its preferences by its {@link BandwidthShaper}. The bytes of
+ * the transfers watched with a shaper are counted against them as they are
+ * transferred.
+ */
+public class TransferRuntime {
+
+	private static final Logger log = Logger.getLogger(TransferRuntime.class);
+
+	/**
+	 * in ms
+	 */
+	static final long POLL_INTERVAL = 200;
+
+	/**
+	 * threads reporting finished transfers
+	 */
+	static final int LISTENER_THREADS = 4;
+
+	/**
+	 * threads requesting files, see {@link #getRequestPool()}
+	 */
+	static final int REQUEST_THREADS = 8;
+
+	/**
+	 * transfers we serve at once
+	 */
+	static final int MAX_SERVING = 16;
+
+	/**
+	 * transfers we serve to the same user at once
+	 */
+	static final int MAX_SERVING_PER_PEER = 4;
+
+	/**
+	 * how long a slot is kept for a transfer that didn't start, in ms
+	 */
+	static final long LEASE_TIMEOUT = 60 * 1000;
+
+	private static final TransferRuntime instance = new TransferRuntime();
+
+	private static class Watched {
+
+		private final IFileTransfer ft;
+
+		private final ITransferListener listener;
+
+		/**
+		 * counts the transferred bytes, may be null
+		 */
+		private final BandwidthShaper shaper;
+
+		private final boolean upload;
+
+		/**
+		 * bytes counted so far
+		 */
+		private long counted = 0;
+
+		Watched(IFileTransfer ft, ITransferListener listener,
+				BandwidthShaper shaper, boolean upload) {
+			this.ft = ft;
+			this.listener = listener;
+			this.shaper = shaper;
+			this.upload = upload;
+		}
+	}
+
+	private static class Slot {
+
+		private final String peer;
+
+		private final String key;
+
+		/**
+		 * when the slot was given or its file was prepared
+		 */
+		private long granted;
+
+		private boolean preparing = false;
+
+		private boolean started = false;
+
+		Slot(String peer, String key) {
+			this.peer = peer;
+			this.key = key;
+		}
+	}
+
+	private static class DaemonFactory implements ThreadFactory {
+
+		private final String name;
+
+		DaemonFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	private final List<Watched> watched = new ArrayList<Watched>();
+
+	/**
+	 * key -&gt; granted slots, the oldest first
+	 */
+	private final Map<String, List<Slot>> slots = new HashMap<String, List<Slot>>();
+
+	/**
+	 * slots given out
+	 */
+	private int serving = 0;
+
+	/**
+	 * userid -&gt; granted slots
+	 */
+	private final Map<String, Integer> perPeer = new HashMap<String, Integer>();
+
+	/**
+	 * the global settings, may be null
+	 */
+	private volatile ProjectPreferences settings;
+
+	private final TokenBucket uploadBucket = new TokenBucket();
+
+	private final TokenBucket downloadBucket = new TokenBucket();
+
+	/**
+	 * projectid -&gt; shaper
+	 */
+	private final Map<UUID, BandwidthShaper> shapers = new HashMap<UUID, BandwidthShaper>();
+
+	private final ScheduledExecutorService watcher;
+
+	private final ExecutorService listeners;
+
+	private final ExecutorService requests;
+
+	/**
+	 * @return the runtime shared by all projects
+	 */
+	public static TransferRuntime getInstance() {
+		return instance;
+	}
+
+	TransferRuntime() {
+		this.watcher = new ScheduledThreadPoolExecutor(1, new DaemonFactory(
+				"transfer watcher"));
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(LISTENER_THREADS,
+				LISTENER_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonFactory(
+						"transfer listener"));
+		pool.allowCoreThreadTimeOut(true);
+		this.listeners = pool;
+		pool = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new DaemonFactory("file request"));
+		pool.allowCoreThreadTimeOut(true);
+		this.requests = pool;
+		this.watcher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				poll();
+				expire();
+			}
+		}, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the threads to request a file from several users at once on,
+	 *         shared by all projects. Tasks wait in line while all are busy,
+	 *         so a task must not wait for another one.
+	 */
+	public ExecutorService getRequestPool() {
+		return requests;
+	}
+
+	/**
+	 * reports the progress of the transfer to the listener until it is done,
+	 * like a <code>TransferWatcher</code>
+	 */
+	public void watch(IFileTransfer ft, ITransferListener listener) {
+		watch(ft, listener, null, false);
+	}
+
+	/**
+	 * like {@link #watch(IFileTransfer, ITransferListener)}, and counts the
+	 * bytes against the rates of the shaper while they are transferred
+	 * 
+	 * @param upload
+	 *            whether we send the file
+	 */
+	public void watch(IFileTransfer ft, ITransferListener listener,
+			BandwidthShaper shaper, boolean upload) {
+		synchronized (watched) {
+			watched.add(new Watched(ft, listener, shaper, upload));
+		}
+	}
+
+	/**
+	 * counts the bytes transferred since the last time
+	 */
+	private static void count(Watched w) {
+		if (w.shaper == null)
+			return;
+		long bytes = w.ft.getAmountWritten() - w.counted;
+		if (bytes <= 0)
+			return;
+		w.counted += bytes;
+		if (w.upload)
+			w.shaper.uploaded(bytes);
+		else
+			w.shaper.downloaded(bytes);
+	}
+
+	private void poll() {
+		List<Watched> current;
+		synchronized (watched) {
+			current = new ArrayList<Watched>(watched);
+		}
+		for (Watched w : current) {
+			try {
+				count(w);
+				if (w.ft.isDone()) {
+					synchronized (watched) {
+						watched.remove(w);
+					}
+					finished(w);
+				} else {
+					w.listener.onUpdate(getData(w.ft), w.ft.getStatus(), w.ft
+							.getProgress());
+				}
+			} catch (RuntimeException e) {
+				log.warn("watching " + w.ft + " failed", e);
+			}
+		}
+	}
+
+	private void finished(final Watched w) {
+		listeners.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (w.ft.getStatus() == Status.complete)
+					w.listener.onSuccess(getData(w.ft));
+				else
+					w.listener.onFailure(getData(w.ft), w.ft.getError());
+			}
+		});
+	}
+
+	private static AdditionalFileTransferData getData(IFileTransfer ft) {
+		return ft.getFileRequest().getData();
+	}
+
+	/**
+	 * takes a slot to serve a request in, doesn't wait
+	 * 
+	 * @param peer
+	 *            the userid of the requester
+	 * @param key
+	 *            names the request, for {@link #started(String)},
+	 *            {@link #release(String)} and {@link #cancel(String)}
+	 * @return false if there is no free slot
+	 */
+	public synchronized boolean admit(String peer, String key) {
+		Integer count = perPeer.get(peer);
+		if (count == null)
+			count = 0;
+		if (serving >= MAX_SERVING || count >= MAX_SERVING_PER_PEER) {
+			log.debug("no slot for " + key);
+			return false;
+		}
+		Slot s = new Slot(peer, key);
+		s.granted = now();
+		List<Slot> ofKey = slots.get(key);
+		if (ofKey == null) {
+			ofKey = new LinkedList<Slot>();
+			slots.put(key, ofKey);
+		}
+		ofKey.add(s);
+		serving++;
+		perPeer.put(peer, count + 1);
+		return true;
+	}
+
+	/**
+	 * the file of the request is prepared for sending, its slot doesn't
+	 * expire until {@link #prepared(String)}
+	 */
+	public synchronized void preparing(String key) {
+		Slot s = find(key, false);
+		if (s != null)
+			s.preparing = true;
+	}
+
+	/**
+	 * the file of the request is ready, the transfer has to start within
+	 * {@link #LEASE_TIMEOUT} from now
+	 */
+	public synchronized void prepared(String key) {
+		List<Slot> ofKey = slots.get(key);
+		if (ofKey == null)
+			return;
+		for (Slot s : ofKey) {
+			if (s.preparing) {
+				s.preparing = false;
+				s.granted = now();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * a transfer of the request started, its slot is kept until
+	 * {@link #release(String)}
+	 */
+	public synchronized void started(String key) {
+		Slot s = find(key, false);
+		if (s != null)
+			s.started = true;
+	}
+
+	/**
+	 * gives the slot of a transfer of the request back that finished
+	 */
+	public synchronized void release(String key) {
+		Slot s = find(key, true);
+		if (s == null)
+			s = find(key, false);
+		if (s != null)
+			remove(s);
+	}
+
+	/**
+	 * gives the slot of the request back, it won't be transferred
+	 */
+	public synchronized void cancel(String key) {
+		Slot s = find(key, false);
+		if (s != null)
+			remove(s);
+	}
+
+	/**
+	 * @return the slots given out
+	 */
+	public synchronized int getServing() {
+		return serving;
+	}
+
+	/**
+	 * @return the oldest slot of the request that is started or not. Of
+	 *         those not started one that isn't prepared if there is one.
+	 */
+	private Slot find(String key, boolean started) {
+		List<Slot> ofKey = slots.get(key);
+		if (ofKey == null)
+			return null;
+		Slot found = null;
+		for (Slot s : ofKey) {
+			if (s.started != started)
+				continue;
+			if (started || !s.preparing)
+				return s;
+			if (found == null)
+				found = s;
+		}
+		return found;
+	}
+
+	private void remove(Slot s) {
+		List<Slot> ofKey = slots.get(s.key);
+		if (ofKey == null || !ofKey.remove(s))
+			return;
+		if (ofKey.isEmpty())
+			slots.remove(s.key);
+		serving--;
+		int count = perPeer.get(s.peer) - 1;
+		if (count == 0)
+			perPeer.remove(s.peer);
+		else
+			perPeer.put(s.peer, count);
+	}
+
+	/**
+	 * @return the time in ms
+	 */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	synchronized void expire() {
+		long oldest = now() - LEASE_TIMEOUT;
+		List<Slot> expired = new ArrayList<Slot>();
+		for (List<Slot> ofKey : slots.values()) {
+			for (Slot s : ofKey) {
+				if (!s.started && !s.preparing && s.granted < oldest)
+					expired.add(s);
+			}
+		}
+		for (Slot s : expired) {
+			log.debug("transfer of " + s.key + " never started");
+			remove(s);
+		}
+	}
+
+	/**
+	 * @param settings
+	 *            holds the upload and download rates of all projects
+	 *            together, with the keys of the {@link BandwidthShaper}
+	 */
+	public void setSettings(ProjectPreferences settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * @return limits the uploads of all projects together
+	 */
+	public TokenBucket getUploadBucket() {
+		uploadBucket.setRate(BandwidthShaper.getRate(settings,
+				BandwidthShaper.UPLOAD_RATE_PROPERTY_KEY));
+		return uploadBucket;
+	}
+
+	/**
+	 * @return limits the downloads of all projects together
+	 */
+	public TokenBucket getDownloadBucket() {
+		downloadBucket.setRate(BandwidthShaper.getRate(settings,
+				BandwidthShaper.DOWNLOAD_RATE_PROPERTY_KEY));
+		return downloadBucket;
+	}
+
+	/**
+	 * @return the shaper of the project, shared by its uploads and downloads
+	 */
+	public BandwidthShaper getShaper(ProjectModel model) {
+		synchronized (shapers) {
+			BandwidthShaper shaper = shapers.get(model.getProjectid());
+			if (shaper == null) {
+				shaper = new BandwidthShaper(model.getPreferences());
+				shapers.put(model.getProjectid(), shaper);
+			}
+			return shaper;
+		}
+	}
+}
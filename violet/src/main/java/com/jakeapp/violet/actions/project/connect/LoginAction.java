@@ -7,9 +7,9 @@ import org.apache.log4j.Logger;
 import com.jakeapp.availablelater.AvailableLaterObject;
 import com.jakeapp.jake.ics.ICService;
 import com.jakeapp.violet.actions.global.LoginView;
-import com.jakeapp.violet.actions.global.serve.ISyncListener;
 import com.jakeapp.violet.actions.global.serve.ProjectMessageListener;
 import com.jakeapp.violet.actions.global.serve.ProjectRequestListener;
+import com.jakeapp.violet.actions.project.interact.SyncScheduler;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.di.IUserIdFactory;
 import com.jakeapp.violet.model.User;
@@ -34,7 +34,7 @@ public class LoginAction extends AvailableLaterObject<Void> {
 
 	private long port;
 
-	private ISyncListener requests;
+	private SyncScheduler requests;
 
 	@Inject
 	private IUserIdFactory userids;
@@ -43,8 +43,13 @@ public class LoginAction extends AvailableLaterObject<Void> {
 		this.userids = userids;
 	}
 
+	/**
+	 * @param requests
+	 *            the scheduler of the project. It gets the pokes and passes
+	 *            everything else to its sync listener.
+	 */
 	public LoginAction(User user, String pw, String host, long port,
-			LoginView view, ISyncListener requests) {
+			LoginView view, SyncScheduler requests) {
 		this.pw = pw;
 		this.user = user;
 		this.port = port;
@@ -69,6 +74,7 @@ public class LoginAction extends AvailableLaterObject<Void> {
 		ProjectRequestListener prl = new ProjectRequestListener(model, requests);
 		ProjectMessageListener pml = new ProjectMessageListener(model, requests);
 		model.getIcs().getMsgService().registerReceiveMessageListener(pml);
+		model.getIcs().getMsgService().registerReceiveMessageListener(prl);
 		model.getTransfer().startServing(prl, prl);
 
 		ics.getStatusService().login(userids.get(user.getUserId()), pw, host,
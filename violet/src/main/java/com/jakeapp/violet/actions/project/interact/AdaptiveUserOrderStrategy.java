@@ -0,0 +1,100 @@
+package com.jakeapp.violet.actions.project.interact;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.model.PeerStats;
+import com.jakeapp.violet.model.User;
+
+/**
+ * Orders the users by how long a transfer from them is expected to take, as
+ * measured in the {@link PeerStats} of the project: the ones that agree
+ * quickly, send fast and didn't fail lately come first. Users that are
+ * offline and we ourselves are skipped. Among users we know nothing about,
+ * the origin comes first, it surely has the version.
+ */
+public class AdaptiveUserOrderStrategy implements UserOrderStrategy {
+
+	private static final Logger log = Logger
+			.getLogger(AdaptiveUserOrderStrategy.class);
+
+	/**
+	 * size of the transfer the users are compared for, in bytes
+	 */
+	static final long TYPICAL_SIZE = 1024 * 1024;
+
+	private final ProjectModel model;
+
+	public AdaptiveUserOrderStrategy(ProjectModel model) {
+		this.model = model;
+	}
+
+	@Override
+	public Collection<User> selectUsers(User origin, Collection<User> users) {
+		Set<User> candidates = new LinkedHashSet<User>();
+		if (origin != null)
+			candidates.add(origin);
+		candidates.addAll(users);
+
+		Map<String, UserId> members = getMembers();
+		List<User> s = new ArrayList<User>();
+		for (User u : candidates) {
+			if (u.getUserId().equals(model.getUserid()))
+				continue;
+			UserId userid = members.get(u.getUserId());
+			if (userid == null || !isOnline(userid)) {
+				log.debug("skipping " + u + ", it is offline");
+				continue;
+			}
+			s.add(u);
+		}
+
+		PeerStats stats = model.getPeerStats();
+		final Map<User, Double> expected = new HashMap<User, Double>();
+		for (User u : s)
+			expected.put(u, stats.getExpectedTime(u.getUserId(), TYPICAL_SIZE));
+		// stable, so the origin stays ahead of equal users
+		Collections.sort(s, new Comparator<User>() {
+
+			@Override
+			public int compare(User a, User b) {
+				return expected.get(a).compareTo(expected.get(b));
+			}
+		});
+		return s;
+	}
+
+	/**
+	 * @return userid -&gt; member of the project
+	 */
+	private Map<String, UserId> getMembers() {
+		Map<String, UserId> members = new HashMap<String, UserId>();
+		try {
+			for (UserId u : model.getIcs().getUsersService().getAllUsers())
+				members.put(u.getUserId(), u);
+		} catch (Exception e) {
+			log.warn("listing the members failed", e);
+		}
+		return members;
+	}
+
+	private boolean isOnline(UserId userid) {
+		try {
+			return model.getIcs().getStatusService().isLoggedIn(userid);
+		} catch (Exception e) {
+			log.debug("online status of " + userid + " unknown", e);
+			return false;
+		}
+	}
+}
@@ -5,7 +5,6 @@ import javax.inject.Inject;
 import org.apache.log4j.Logger;
 
 import com.jakeapp.availablelater.AvailableLaterObject;
-import com.jakeapp.jake.fss.HashValue;
 import com.jakeapp.jake.ics.UserId;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.di.IUserIdFactory;
@@ -48,12 +47,12 @@ public class AnnounceAction extends AvailableLaterObject<Void> {
 	 */
 	@Override
 	public Void calculate() throws Exception {
-		HashValue hash = null;
+		String hash = null;
 		if (!delete) {
-			hash = model.getFss().calculateHashOverFile(what.getRelPath());
+			hash = model.getHashes().getHash(what.getRelPath());
 		}
 		LogEntry le = new LogEntry(null, null, model.getUser(), what, why,
-				hash.toString(), true);
+				hash, true);
 		this.model.getLog().add(le);
 		for (UserId u : this.model.getIcs().getUsersService().getUsers()) {
 			notifyUser(le, u);
@@ -23,4 +23,7 @@ public interface InteractProjectActionsFactory {
 
 	PullAction pull(ProjectModel model, JakeObject jakeObject,
 			UserOrderStrategy strategy);
+
+	SyncScheduler syncScheduler(ProjectModel model,
+			INegotiationSuccessListener listener);
 }
@@ -1,9 +1,15 @@
 package com.jakeapp.violet.actions.project.interact;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 import javax.inject.Inject;
 
@@ -15,12 +21,14 @@ import com.jakeapp.jake.ics.filetransfer.negotiate.INegotiationSuccessListener;
 import com.jakeapp.violet.actions.global.serve.BlockingFileTransfer;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.di.IUserIdFactory;
+import com.jakeapp.violet.model.LogCursor;
+import com.jakeapp.violet.model.LogDigest;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.model.User;
-import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
 import com.jakeapp.violet.protocol.files.IRequestMarshaller;
 import com.jakeapp.violet.protocol.files.RequestFileMessage;
 import com.jakeapp.violet.protocol.msg.ILogEntryMarshaller;
+import com.jakeapp.violet.protocol.msg.ILogEntryReceiver;
 import com.jakeapp.violet.protocol.msg.IMessageMarshaller;
 import com.jakeapp.violet.protocol.msg.PokeMessage;
 
@@ -31,6 +39,35 @@ public class LogSyncAction extends AvailableLaterObject<Boolean> {
 
 	private static final Logger log = Logger.getLogger(LogSyncAction.class);
 
+	/**
+	 * followed by the userid of the peer. Stored in the project preferences,
+	 * remembers up to which sequence number we have the peers log.
+	 */
+	public static final String WATERMARK_PROPERTY_PREFIX = "logsync.watermark.";
+
+	/**
+	 * followed by the userid of the peer. Stored in the project preferences,
+	 * remembers up to which of our sequence numbers we pushed entries to the
+	 * peer.
+	 */
+	public static final String PUSHED_PROPERTY_PREFIX = "logsync.pushed.";
+
+	/**
+	 * log entries per pushed message
+	 */
+	private static final int PUSH_BATCH_SIZE = 50;
+
+	/**
+	 * buckets of the reconciliation with up to this many entries are fetched
+	 * instead of comparing their children
+	 */
+	private static final int LEAF_SIZE = 32;
+
+	/**
+	 * the buckets of one reconciliation request have to fit into a file name
+	 */
+	private static final int MAX_REQUEST_LENGTH = 160;
+
 	private ProjectModel model;
 
 	private User user;
@@ -46,6 +83,12 @@ public class LogSyncAction extends AvailableLaterObject<Boolean> {
 
 	private INegotiationSuccessListener listener;
 
+	/**
+	 * ids of all entries we got from the peer in this sync, it doesn't need
+	 * them back
+	 */
+	private final Set<UUID> fromPeer = new HashSet<UUID>();
+
 	public LogSyncAction(ProjectModel model, User user,
 			INegotiationSuccessListener listener) {
 		this.model = model;
@@ -59,59 +102,319 @@ public class LogSyncAction extends AvailableLaterObject<Boolean> {
 	@Override
 	public Boolean calculate() throws Exception {
 		UserId peer = userids.get(user.getUserId());
-		RequestFileMessage msg = RequestFileMessage.createRequestLogsMessage(
-				model.getProjectid(), peer);
+		long since = getWatermark();
+		long pushed = getPushed();
+		long ours = model.getLog().getLastSequence();
+		Boolean upToDate = model.getPeerStats().isUpToDate(user.getUserId());
+		if (Boolean.FALSE.equals(upToDate))
+			return fetchWholeLog(peer);
+		if (since == 0) {
+			List<UUID> missing = new ArrayList<UUID>();
+			Long watermark = reconcile(peer, missing);
+			if (watermark != null) {
+				setWatermark(watermark);
+				List<LogEntry> les = new ArrayList<LogEntry>();
+				for (UUID id : missing) {
+					les.add(model.getLog().getById(id, true));
+				}
+				// and what was added to our log meanwhile
+				long last = model.getLog().getLastSequence();
+				for (LogEntry le : model.getLog().getAllSince(ours, last)) {
+					if (lacks(le))
+						les.add(le);
+				}
+				if (push(les))
+					setPushed(last);
+				return true;
+			}
+			log.info("reconciling failed, fetching the whole log of " + user);
+		}
+		RequestFileMessage msg = RequestFileMessage
+				.createRequestLogsSinceMessage(model.getProjectid(), peer,
+						since);
 		requestMarshaller.serialize(msg);
 		InputStream is = BlockingFileTransfer.requestFile(model,
 				requestMarshaller, msg, listener);
+		if (is == null && upToDate == null) {
+			// older versions only send the whole log
+			log.info("fetching the whole log of " + user + " instead");
+			boolean fetched = fetchWholeLog(peer);
+			if (fetched)
+				model.getPeerStats().setUpToDate(user.getUserId(), false);
+			return fetched;
+		}
 		if (is == null) {
 			return false;
 		}
-		mergeLogEntries(logEntryMarshaller.unpackLogEntries(
-				model.getProjectid(), is));
+		LogEntryMerger merger = new LogEntryMerger();
+		long watermark;
+		try {
+			// entries are merged while the rest is still being decoded
+			watermark = logEntryMarshaller.unpackLogEntriesSince(
+					model.getProjectid(), new GZIPInputStream(is), merger);
+		} finally {
+			is.close();
+		}
+		merger.flush();
+		log.info("received " + merger.received + " log entries from " + user);
+		log.info("stored " + merger.stored + " log entries from " + user);
+		setWatermark(watermark);
+
+		// the entries merged now are covered, so they are not sent back
+		// next time
+		long last = model.getLog().getLastSequence();
+		List<LogEntry> les = new ArrayList<LogEntry>();
+		if (since == 0) {
+			// we got the peers whole log, it may lack any of ours
+			Iterator<LogEntry> all = LogCursor.withArchive(model.getLog());
+			while (all.hasNext()) {
+				LogEntry le = all.next();
+				if (lacks(le))
+					les.add(le);
+			}
+		} else if (pushed == 0) {
+			// synced before we pushed, the peer will get ours by its own
+			// sync
+			setPushed(last);
+			return true;
+		} else {
+			for (LogEntry le : model.getLog().getAllSince(pushed, last)) {
+				if (lacks(le))
+					les.add(le);
+			}
+		}
+		if (push(les))
+			setPushed(last);
 
 		return true;
 	}
 
-	private void mergeLogEntries(List<LogEntry> logEntries) {
-		// use resulting file
-		List<UUID> uuids = new ArrayList<UUID>();
-		log.info("received " + logEntries.size() + " log entries from " + user);
-		int count = 0;
-		for (LogEntry le : logEntries) {
-			uuids.add(le.getId());
+	/**
+	 * Fetches the whole log of the peer like older versions do. They fetch
+	 * ours the same way, so nothing is pushed in return.
+	 * 
+	 * @return false if the peer didn't send it
+	 */
+	private boolean fetchWholeLog(UserId peer) throws Exception {
+		RequestFileMessage msg = RequestFileMessage.createRequestLogsMessage(
+				model.getProjectid(), peer);
+		InputStream is = BlockingFileTransfer.requestFile(model,
+				requestMarshaller, msg, listener);
+		if (is == null) {
+			return false;
+		}
+		LogEntryMerger merger = new LogEntryMerger();
+		try {
+			logEntryMarshaller.unpackLogEntries(model.getProjectid(),
+					new GZIPInputStream(is), merger);
+		} finally {
+			is.close();
+		}
+		merger.flush();
+		log.info("received " + merger.received + " log entries from " + user);
+		log.info("stored " + merger.stored + " log entries from " + user);
+		return true;
+	}
+
+	/**
+	 * @return false if the entry came from the peer. Entries made by the peer
+	 *         are sent as well, it may have lost them.
+	 */
+	private boolean lacks(LogEntry le) {
+		return !fromPeer.contains(le.getId());
+	}
+
+	/**
+	 * Merges the received entries into the log in batches.
+	 */
+	private class LogEntryMerger implements ILogEntryReceiver {
+
+		private static final int BATCH_SIZE = 1000;
+
+		private final List<LogEntry> batch = new ArrayList<LogEntry>(
+				BATCH_SIZE);
+
+		private int received = 0;
+
+		private int stored = 0;
+
+		@Override
+		public void received(LogEntry le) {
+			received++;
+			fromPeer.add(le.getId());
+			batch.add(le);
+			if (batch.size() == BATCH_SIZE)
+				flush();
+		}
+
+		public void flush() {
+			if (batch.isEmpty())
+				return;
+			stored += model.getLog().addAll(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Finds the entries we and the peer don't have in common by comparing
+	 * the {@link LogDigest}s of our logs, descending only into the buckets
+	 * that differ. The peers entries are merged into the log.
+	 * 
+	 * @param missing
+	 *            gets the ids of the entries the peer doesn't have
+	 * @return the watermark for the next sync, null if the peer can't do
+	 *         this
+	 */
+	private Long reconcile(UserId peer, List<UUID> missing) throws Exception {
+		LogDigest ours = LogDigest.of(model.getLog());
+		LinkedList<String> children = new LinkedList<String>();
+		LinkedList<String> entries = new LinkedList<String>();
+		children.add("");
+		Long watermark = null;
+		int requests = 0;
+		int received = 0;
+		int stored = 0;
+		while (!children.isEmpty() || !entries.isEmpty()) {
+			List<String> askChildren = new ArrayList<String>();
+			List<String> askEntries = new ArrayList<String>();
+			int length = 0;
+			while (!children.isEmpty()
+					&& length + children.peek().length() + 2 <= MAX_REQUEST_LENGTH) {
+				length += children.peek().length() + 2;
+				askChildren.add(children.poll());
+			}
+			while (!entries.isEmpty()
+					&& length + entries.peek().length() + 2 <= MAX_REQUEST_LENGTH) {
+				length += entries.peek().length() + 2;
+				askEntries.add(entries.poll());
+			}
+			RequestFileMessage msg = RequestFileMessage.createReconcileMessage(
+					model.getProjectid(), peer, askChildren, askEntries);
+			InputStream is = BlockingFileTransfer.requestFile(model,
+					requestMarshaller, msg, listener);
+			if (is == null) {
+				return null;
+			}
+			requests++;
+			List<LogDigest.Bucket> buckets = new ArrayList<LogDigest.Bucket>();
+			LogEntryMerger merger = new LogEntryMerger();
+			long digestWatermark;
 			try {
-				model.getLog().getById(le.getId(), true);
-			} catch (NoSuchLogEntryException e) {
-				count++;
-				model.getLog().add(le);
+				digestWatermark = logEntryMarshaller.unpackReconciliation(
+						model.getProjectid(), new GZIPInputStream(is),
+						buckets, merger);
+			} finally {
+				is.close();
 			}
-		}
-		log.info("stored " + count + " log entries from " + user);
-		// lets notify the peer for logentries it doesn't have --
-		// shouldn't be too many
-		count = 0;
-		for (LogEntry le : model.getLog().getAll(false)) {
-			if (!uuids.contains(le.getId())) {
-				count++;
-				try {
-					PokeMessage msg = PokeMessage.createPokeMessage(
-							model.getProjectid(),
-							userids.get(user.getUserId()), null);
-
-					String message = messageMarshaller.serialize(msg);
-					log.debug("Sending message: \"" + message + "\"");
-					model.getIcs().getMsgService()
-							.sendMessage(msg.getUser(), message);
-				} catch (Exception e) {
-					// best-effort, fail-fast -- we don't want a pile of
-					// useless messages
-					log.debug("pushing failed. giving up.");
-					break;
+			merger.flush();
+			received += merger.received;
+			stored += merger.stored;
+			// entries added to the peers log later have a higher sequence
+			// number, so the first watermark covers everything we get
+			if (watermark == null)
+				watermark = digestWatermark;
+
+			for (String prefix : askEntries) {
+				for (UUID id : ours.getIds(prefix)) {
+					if (!fromPeer.contains(id))
+						missing.add(id);
 				}
 			}
+			for (LogDigest.Bucket theirs : buckets) {
+				LogDigest.Bucket mine = ours.getBucket(theirs.getPrefix());
+				if (mine.equals(theirs))
+					continue;
+				if (theirs.getCount() == 0)
+					missing.addAll(ours.getIds(theirs.getPrefix()));
+				else if (theirs.getCount() <= LEAF_SIZE || mine.getCount() == 0
+						|| theirs.getPrefix().length() == LogDigest.MAX_DEPTH)
+					entries.add(theirs.getPrefix());
+				else
+					children.add(theirs.getPrefix());
+			}
 		}
-		log.info("pushed " + count + " updates in return to " + user);
+		log.info("reconciled with " + user + " in " + requests + " requests");
+		log.info("received " + received + " log entries from " + user);
+		log.info("stored " + stored + " log entries from " + user);
+		return watermark;
+	}
+
+	/**
+	 * @return the sequence number of the last log entry we got from the peer,
+	 *         0 if we never synced
+	 */
+	private long getWatermark() {
+		return getSequence(WATERMARK_PROPERTY_PREFIX);
+	}
+
+	private void setWatermark(long watermark) {
+		// we'll just get some entries twice next time if this fails
+		setSequence(WATERMARK_PROPERTY_PREFIX, watermark);
+	}
+
+	/**
+	 * @return our sequence number up to which the peer has all our entries, 0
+	 *         if we never pushed
+	 */
+	private long getPushed() {
+		return getSequence(PUSHED_PROPERTY_PREFIX);
+	}
+
+	private void setPushed(long pushed) {
+		// we'll just push some entries twice next time if this fails
+		setSequence(PUSHED_PROPERTY_PREFIX, pushed);
+	}
+
+	private long getSequence(String prefix) {
+		String sequence = model.getPreferences().get(
+				prefix + user.getUserId());
+		if (sequence == null)
+			return 0;
+		try {
+			return Long.parseLong(sequence);
+		} catch (NumberFormatException e) {
+			log.warn("ignoring invalid sequence number " + sequence);
+			return 0;
+		}
+	}
+
+	private void setSequence(String prefix, long sequence) {
+		try {
+			model.getPreferences().set(prefix + user.getUserId(),
+					Long.toString(sequence));
+		} catch (IOException e) {
+			log.warn("storing sequence number failed", e);
+		}
+	}
+
+	/**
+	 * Sends the entries the peer doesn't have in messages of
+	 * {@link #PUSH_BATCH_SIZE}, so that it doesn't have to sync with us for
+	 * them.
+	 * 
+	 * @return false if a message could not be sent. The rest is pushed next
+	 *         time.
+	 */
+	private boolean push(List<LogEntry> les) {
+		UserId peer = userids.get(user.getUserId());
+		for (int i = 0; i < les.size(); i += PUSH_BATCH_SIZE) {
+			List<LogEntry> batch = les.subList(i,
+					Math.min(i + PUSH_BATCH_SIZE, les.size()));
+			try {
+				PokeMessage msg = PokeMessage.createPushMessage(
+						model.getProjectid(), peer, batch);
+				String message = messageMarshaller.serialize(msg);
+				log.debug("Sending message: \"" + message + "\"");
+				model.getIcs().getMsgService()
+						.sendMessage(msg.getUser(), message);
+			} catch (Exception e) {
+				log.info("pushed " + i + " of " + les.size()
+						+ " log entries to " + user + ", then failed", e);
+				return false;
+			}
+		}
+		log.info("pushed " + les.size() + " log entries in return to " + user);
+		return true;
 	}
 
 }
@@ -2,7 +2,8 @@ package com.jakeapp.violet.actions.project.interact;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import com.jakeapp.violet.model.User;
 
@@ -10,9 +11,10 @@ public class SimpleUserOrderStrategy implements UserOrderStrategy {
 
 	@Override
 	public Collection<User> selectUsers(User origin, Collection<User> users) {
-		List<User> s = new ArrayList<User>();
-		s.add(origin);
+		Set<User> s = new LinkedHashSet<User>();
+		if (origin != null)
+			s.add(origin);
 		s.addAll(users);
-		return s;
+		return new ArrayList<User>(s);
 	}
 }
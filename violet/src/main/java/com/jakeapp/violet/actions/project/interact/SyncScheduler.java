@@ -0,0 +1,453 @@
+package com.jakeapp.violet.actions.project.interact;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.availablelater.AvailableLaterWaiter;
+import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.jake.ics.filetransfer.negotiate.INegotiationSuccessListener;
+import com.jakeapp.jake.ics.status.IOnlineStatusListener;
+import com.jakeapp.violet.actions.global.serve.ISyncListener;
+import com.jakeapp.violet.context.Context;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.di.IUserIdFactory;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.User;
+
+/**
+ * Runs {@link LogSyncAction}s with the online members of a project, a few at
+ * a time, the ones a {@link AdaptiveUserOrderStrategy} expects to be fastest
+ * first.
+ * 
+ * A sync requested while one with the same peer is running is done once more
+ * afterwards, all other requests for that peer are coalesced into it. So a
+ * storm of pokes costs two syncs at most. After a failed sync the peer is
+ * retried after an exponential backoff with jitter, requests meanwhile wait
+ * for that retry.
+ * 
+ * Started with the project, see {@link Context#getSyncScheduler()}. It
+ * listens to the requests and messages of the peers, a poke is passed to
+ * {@link #sync(User)}, everything else to the sync listener.
+ */
+public class SyncScheduler implements IOnlineStatusListener, ISyncListener {
+
+	private static final Logger log = Logger.getLogger(SyncScheduler.class);
+
+	/**
+	 * syncs running at the same time
+	 */
+	static final int MAX_PARALLEL = 4;
+
+	/**
+	 * backoff after the first failure, in ms
+	 */
+	static final long MIN_BACKOFF = 5 * 1000;
+
+	/**
+	 * longest backoff, in ms
+	 */
+	static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+	private enum State {
+		IDLE, QUEUED, RUNNING, RUNNING_AGAIN
+	}
+
+	private static class Peer {
+
+		private State state = State.IDLE;
+
+		/**
+		 * failures since the last successful sync
+		 */
+		private int failures = 0;
+	}
+
+	/**
+	 * How far the syncs since the last {@link SyncScheduler#syncAll()} got
+	 */
+	public static class Progress {
+
+		private final int queued;
+
+		private final int running;
+
+		private final int succeeded;
+
+		private final int failed;
+
+		Progress(int queued, int running, int succeeded, int failed) {
+			this.queued = queued;
+			this.running = running;
+			this.succeeded = succeeded;
+			this.failed = failed;
+		}
+
+		/**
+		 * @return peers waiting for a sync, including those backing off
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		public int getRunning() {
+			return running;
+		}
+
+		public int getSucceeded() {
+			return succeeded;
+		}
+
+		/**
+		 * @return failed syncs. A peer that is retried counts once per
+		 *         failure.
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return the finished part of all syncs, between 0 and 1
+		 */
+		public double getProgress() {
+			int finished = succeeded + failed;
+			int all = finished + queued + running;
+			if (all == 0)
+				return 1;
+			return (double) finished / all;
+		}
+
+		@Override
+		public String toString() {
+			return "queued " + queued + ", running " + running
+					+ ", succeeded " + succeeded + ", failed " + failed;
+		}
+	}
+
+	/**
+	 * Gets told whenever a sync is queued, started or finished
+	 */
+	public interface IProgressListener {
+
+		void syncProgress(Progress progress);
+	}
+
+	private ProjectModel model;
+
+	private INegotiationSuccessListener listener;
+
+	/**
+	 * gets everything but the pokes, may be null
+	 */
+	private volatile ISyncListener syncListener;
+
+	/**
+	 * online status changes are ignored after {@link #stop()}
+	 */
+	private volatile boolean stopped = false;
+
+	@Inject
+	private InteractProjectActionsFactory actions;
+
+	@Inject
+	private IUserIdFactory userids;
+
+	/**
+	 * userid -&gt; state of the syncs with that peer
+	 */
+	private final Map<String, Peer> peers = new HashMap<String, Peer>();
+
+	private int succeeded = 0;
+
+	private int failed = 0;
+
+	private final Set<IProgressListener> progressListeners = new CopyOnWriteArraySet<IProgressListener>();
+
+	private final Random random = new Random();
+
+	private final ScheduledExecutorService executor;
+
+	private final UserOrderStrategy order;
+
+	public SyncScheduler(ProjectModel model,
+			INegotiationSuccessListener listener) {
+		this.model = model;
+		this.listener = listener;
+		this.order = new AdaptiveUserOrderStrategy(model);
+		this.executor = new ScheduledThreadPoolExecutor(MAX_PARALLEL,
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "log sync");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public void addProgressListener(IProgressListener l) {
+		progressListeners.add(l);
+	}
+
+	public void removeProgressListener(IProgressListener l) {
+		progressListeners.remove(l);
+	}
+
+	/**
+	 * @param syncListener
+	 *            gets everything but the pokes, may be null
+	 */
+	public void setSyncListener(ISyncListener syncListener) {
+		this.syncListener = syncListener;
+	}
+
+	/**
+	 * syncs with all members that are online now, and with each member that
+	 * comes online later
+	 */
+	public void start() {
+		model.getIcs().getUsersService().registerOnlineStatusListener(this);
+		syncAll();
+	}
+
+	/**
+	 * stops scheduling, running syncs are finished. The users service has no
+	 * way to unregister, so online status changes are ignored from now on.
+	 */
+	public void stop() {
+		stopped = true;
+		executor.shutdown();
+	}
+
+	/**
+	 * syncs with all members that are online now
+	 */
+	public void syncAll() {
+		synchronized (this) {
+			succeeded = 0;
+			failed = 0;
+		}
+		String me = model.getUserid();
+		List<User> users = new ArrayList<User>();
+		try {
+			for (UserId u : model.getIcs().getUsersService().getUsers()) {
+				if (!u.getUserId().equals(me) && isLoggedIn(u))
+					users.add(model.getInterner().user(u.getUserId()));
+			}
+		} catch (Exception e) {
+			log.warn("listing the members failed", e);
+		}
+		for (User u : order.selectUsers(null, users))
+			sync(u);
+	}
+
+	/**
+	 * syncs with the peer, unless a sync with it is about to start anyway
+	 */
+	public void sync(User user) {
+		synchronized (this) {
+			Peer p = getPeer(user);
+			switch (p.state) {
+			case IDLE:
+				p.state = State.QUEUED;
+				schedule(user, 0);
+				break;
+			case RUNNING:
+				p.state = State.RUNNING_AGAIN;
+				break;
+			default:
+				// coalesced
+				return;
+			}
+		}
+		fireProgress();
+	}
+
+	@Override
+	public void onlineStatusChanged(UserId userid) {
+		if (!stopped && isLoggedIn(userid))
+			sync(model.getInterner().user(userid.getUserId()));
+	}
+
+	@Override
+	public void poke(User user) {
+		sync(user);
+	}
+
+	@Override
+	public void startReceiving(User user) {
+		ISyncListener l = syncListener;
+		if (l != null)
+			l.startReceiving(user);
+	}
+
+	@Override
+	public void finishedReceiving(User user) {
+		ISyncListener l = syncListener;
+		if (l != null)
+			l.finishedReceiving(user);
+	}
+
+	@Override
+	public boolean acceptSending(UserId user, JakeObject jakeObject) {
+		ISyncListener l = syncListener;
+		return l == null || l.acceptSending(user, jakeObject);
+	}
+
+	@Override
+	public void sendingFailed(User user, String fileName, String error) {
+		ISyncListener l = syncListener;
+		if (l != null)
+			l.sendingFailed(user, fileName, error);
+	}
+
+	@Override
+	public void sendingSucceeded(User user, String fileName) {
+		ISyncListener l = syncListener;
+		if (l != null)
+			l.sendingSucceeded(user, fileName);
+	}
+
+	@Override
+	public void sendingUpdateProgress(User user, String fileName,
+			String status, double progress) {
+		ISyncListener l = syncListener;
+		if (l != null)
+			l.sendingUpdateProgress(user, fileName, status, progress);
+	}
+
+	/**
+	 * @return how far the syncs since the last {@link #syncAll()} got
+	 */
+	public synchronized Progress getProgress() {
+		int queued = 0;
+		int running = 0;
+		for (Peer p : peers.values()) {
+			if (p.state == State.QUEUED)
+				queued++;
+			else if (p.state != State.IDLE)
+				running++;
+		}
+		return new Progress(queued, running, succeeded, failed);
+	}
+
+	private Peer getPeer(User user) {
+		Peer p = peers.get(user.getUserId());
+		if (p == null) {
+			p = new Peer();
+			peers.put(user.getUserId(), p);
+		}
+		return p;
+	}
+
+	private void schedule(final User user, long delay) {
+		try {
+			executor.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					runSync(user);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped
+			getPeer(user).state = State.IDLE;
+		}
+	}
+
+	private void runSync(User user) {
+		Peer p;
+		synchronized (this) {
+			p = getPeer(user);
+			p.state = State.RUNNING;
+		}
+		boolean online = isOnline(user);
+		boolean ok = false;
+		if (online) {
+			fireProgress();
+			try {
+				ok = logsync(user);
+			} catch (Exception e) {
+				log.warn("log sync with " + user + " failed", e);
+			}
+		}
+		synchronized (this) {
+			if (!online) {
+				// it syncs with us when it comes back
+				p.state = State.IDLE;
+				p.failures = 0;
+			} else if (ok) {
+				succeeded++;
+				p.failures = 0;
+				if (p.state == State.RUNNING_AGAIN) {
+					p.state = State.QUEUED;
+					schedule(user, 0);
+				} else {
+					p.state = State.IDLE;
+				}
+			} else {
+				failed++;
+				p.failures++;
+				p.state = State.QUEUED;
+				long delay = getBackoff(p.failures);
+				log.info("retrying log sync with " + user + " in " + delay
+						+ " ms");
+				schedule(user, delay);
+			}
+		}
+		fireProgress();
+	}
+
+	/**
+	 * @return whether the sync succeeded
+	 */
+	protected boolean logsync(User user) throws Exception {
+		return AvailableLaterWaiter.await(actions.logsync(model, user,
+				listener));
+	}
+
+	/**
+	 * @return a random delay between half and all of the exponential
+	 *         backoff, so that peers that failed together don't retry
+	 *         together
+	 */
+	long getBackoff(int failures) {
+		long backoff = MIN_BACKOFF << Math.min(failures - 1, 16);
+		backoff = Math.min(backoff, MAX_BACKOFF);
+		return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+	}
+
+	protected boolean isOnline(User user) {
+		return isLoggedIn(userids.get(user.getUserId()));
+	}
+
+	private boolean isLoggedIn(UserId userid) {
+		try {
+			return model.getIcs().getStatusService().isLoggedIn(userid);
+		} catch (Exception e) {
+			log.debug("online status of " + userid + " unknown", e);
+			return false;
+		}
+	}
+
+	private void fireProgress() {
+		Progress progress = getProgress();
+		for (IProgressListener l : progressListeners) {
+			l.syncProgress(progress);
+		}
+	}
+}
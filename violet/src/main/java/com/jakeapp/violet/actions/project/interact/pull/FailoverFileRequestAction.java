@@ -3,13 +3,19 @@ package com.jakeapp.violet.actions.project.interact.pull;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import com.jakeapp.availablelater.AvailableLaterObject;
 import com.jakeapp.availablelater.AvailableLaterWaiter;
 import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.violet.actions.global.serve.TransferRuntime;
+import com.jakeapp.violet.actions.project.interact.AdaptiveUserOrderStrategy;
 import com.jakeapp.violet.actions.project.interact.UserOrderStrategy;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.model.JakeObject;
@@ -17,13 +23,34 @@ import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.model.User;
 
 /**
- * Requests the file from one user at a time, until success
+ * Requests the file from one user at a time, until success. If several users
+ * are selected, downloading it from all of them at once in chunks is tried
+ * first.
+ * 
+ * A user that doesn't agree to send the file within the delay in the project
+ * property {@link #HEDGE_DELAY_PROPERTY_KEY} doesn't hold up the others, the
+ * next user is asked as well. The first to agree sends the file, the
+ * transfers the others agree to later are cancelled. The users are asked on
+ * the request pool of the {@link TransferRuntime}.
  */
-class FailoverFileRequestAction extends AvailableLaterObject<File> {
+class FailoverFileRequestAction extends AvailableLaterObject<File> implements
+		FileRequestAction.INegotiationGate {
 
 	private static final Logger log = Logger
 			.getLogger(FailoverFileRequestAction.class);
 
+	public static final String HEDGE_DELAY_PROPERTY_KEY = "pull.hedge.delay";
+
+	/**
+	 * in ms
+	 */
+	public static final long DEFAULT_HEDGE_DELAY = 2000;
+
+	/**
+	 * users asked at the same time at most
+	 */
+	static final int MAX_HEDGED = 3;
+
 	private ProjectModel model;
 
 	private JakeObject jakeObject;
@@ -32,20 +59,55 @@ class FailoverFileRequestAction extends AvailableLaterObject<File> {
 
 	private boolean storeInFss;
 
+	/**
+	 * the request that got to send the file, null while none did
+	 */
+	private FileRequestAction winner;
+
+	/**
+	 * requests that were told to cancel their transfer
+	 */
+	private final Set<FileRequestAction> cancelled = new HashSet<FileRequestAction>();
+
+	private int running = 0;
+
+	private boolean done = false;
+
+	private File result;
+
+	private Exception lastException;
+
+	/**
+	 * @param strategy
+	 *            null for an {@link AdaptiveUserOrderStrategy}
+	 */
 	public FailoverFileRequestAction(ProjectModel model, JakeObject jakeObject,
 			UserOrderStrategy strategy, boolean storeInFss) {
 		this.model = model;
 		this.jakeObject = jakeObject;
+		if (strategy == null)
+			strategy = new AdaptiveUserOrderStrategy(model);
 		this.strategy = strategy;
 		this.storeInFss = storeInFss;
 	}
 
+	private long getHedgeDelay() {
+		String delay = model.getPreferences().get(HEDGE_DELAY_PROPERTY_KEY);
+		if (delay == null)
+			return DEFAULT_HEDGE_DELAY;
+		try {
+			return Long.parseLong(delay);
+		} catch (NumberFormatException e) {
+			log.warn("invalid " + HEDGE_DELAY_PROPERTY_KEY + ": " + delay);
+			return DEFAULT_HEDGE_DELAY;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public File calculate() throws Exception {
-		Exception lastException = null;
 		Iterable<UserId> userIds = model.getIcs().getUsersService()
 				.getAllUsers();
 		List<User> users = new ArrayList<User>();
@@ -62,18 +124,94 @@ class FailoverFileRequestAction extends AvailableLaterObject<File> {
 		if (selected.isEmpty())
 			throw new Exception("no users available");
 
-		for (User u : selected) {
-			log.debug("requesting " + le);
-			FileRequestAction frf = new FileRequestAction(model, u, le,
-					storeInFss);
+		if (selected.size() > 1) {
 			try {
-				return AvailableLaterWaiter.await(frf);
+				return AvailableLaterWaiter.await(new SwarmFileRequestAction(
+						model, le, new ArrayList<User>(selected), storeInFss));
 			} catch (Exception e) {
+				log.debug("swarm download failed, trying one user at a time",
+						e);
+			}
+		}
+
+		return requestHedged(le, new LinkedList<User>(selected));
+	}
+
+	/**
+	 * asks the users in order, the next one when the last didn't agree within
+	 * the hedge delay or failed
+	 */
+	private synchronized File requestHedged(LogEntry le, Queue<User> users)
+			throws Exception {
+		long delay = getHedgeDelay();
+		long nextStart = 0;
+		while (!done) {
+			long now = System.currentTimeMillis();
+			boolean mayStart = !users.isEmpty() && winner == null
+					&& running < MAX_HEDGED;
+			if (mayStart && (running == 0 || now >= nextStart)) {
+				start(le, users.poll());
+				nextStart = now + delay;
+			} else if (running == 0) {
+				log.debug("transfer failed, no next user left");
+				throw lastException;
+			} else if (mayStart) {
+				wait(nextStart - now);
+			} else {
+				wait();
+			}
+		}
+		return result;
+	}
+
+	private void start(LogEntry le, User u) {
+		log.debug("requesting " + le + " from " + u);
+		final FileRequestAction frf = new FileRequestAction(model, u, le,
+				storeInFss);
+		frf.setNegotiationGate(this);
+		running++;
+		TransferRuntime.getInstance().getRequestPool().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					finished(frf, AvailableLaterWaiter.await(frf), null);
+				} catch (Exception e) {
+					finished(frf, null, e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public synchronized boolean negotiated(FileRequestAction action) {
+		if (done || winner != null) {
+			cancelled.add(action);
+			return false;
+		}
+		log.debug(action.getPeer() + " sends " + jakeObject);
+		winner = action;
+		return true;
+	}
+
+	/**
+	 * @param failure
+	 *            null if the file arrived
+	 */
+	synchronized void finished(FileRequestAction action, File file,
+			Exception failure) {
+		running--;
+		if (action == winner) {
+			if (failure == null) {
+				result = file;
+				done = true;
+			} else {
 				log.debug("transfer failed, trying next user");
-				lastException = e;
+				winner = null;
 			}
 		}
-		log.debug("transfer failed, no next user left");
-		throw lastException;
+		if (failure != null && !cancelled.remove(action))
+			lastException = failure;
+		notifyAll();
 	}
 }
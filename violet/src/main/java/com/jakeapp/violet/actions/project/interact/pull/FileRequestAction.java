@@ -1,8 +1,11 @@
 package com.jakeapp.violet.actions.project.interact.pull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.Semaphore;
 
 import javax.inject.Inject;
@@ -12,34 +15,57 @@ import org.metastatic.rsync.Rdiff;
 
 import com.jakeapp.availablelater.AvailableLaterObject;
 import com.jakeapp.availablelater.StatusUpdate;
+import com.jakeapp.jake.fss.FSService;
 import com.jakeapp.jake.fss.HashValue;
 import com.jakeapp.jake.fss.IFSService;
 import com.jakeapp.jake.ics.UserId;
 import com.jakeapp.jake.ics.filetransfer.AdditionalFileTransferData;
 import com.jakeapp.jake.ics.filetransfer.IFileTransferService;
 import com.jakeapp.jake.ics.filetransfer.ITransferListener;
-import com.jakeapp.jake.ics.filetransfer.TransferWatcher;
 import com.jakeapp.jake.ics.filetransfer.negotiate.FileRequest;
 import com.jakeapp.jake.ics.filetransfer.negotiate.INegotiationSuccessListener;
 import com.jakeapp.jake.ics.filetransfer.runningtransfer.IFileTransfer;
 import com.jakeapp.jake.ics.filetransfer.runningtransfer.Status;
+import com.jakeapp.violet.actions.global.serve.BandwidthShaper;
+import com.jakeapp.violet.actions.global.serve.TransferRuntime;
 import com.jakeapp.violet.context.ProjectModel;
 import com.jakeapp.violet.di.IUserIdFactory;
 import com.jakeapp.violet.model.JakeObject;
 import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.TransferSpool;
 import com.jakeapp.violet.model.User;
 import com.jakeapp.violet.protocol.files.IRequestMarshaller;
 import com.jakeapp.violet.protocol.files.RequestFileMessage;
 import com.jakeapp.violet.protocol.files.RequestFileMessage.RequestType;
+import com.jakeapp.violet.protocol.files.TransferCompression;
+import com.jakeapp.violet.protocol.msg.IMessageMarshaller;
+import com.jakeapp.violet.protocol.msg.SignatureMessage;
 
 /**
  * Downloads the file from another user. If storeInFss = false, the File where
  * it is stored is given back.
  * 
+ * If we have an older version, only a delta is requested. For files up to
+ * {@link #MAX_SUPPLIED_BASE} we send our signature along, so the peer doesn't
+ * have to request it from us before making the delta.
+ * 
+ * What arrived of a full version before its transfer failed is kept in the
+ * {@link TransferSpool}, the next request only asks for the rest. Unless its
+ * name tells the file is compressed already, the data is requested
+ * compressed. The request waits for the download rates of the
+ * {@link BandwidthShaper} of the project.
+ * 
  * @author johannes
  */
 class FileRequestAction extends AvailableLaterObject<File> {
 
+	/**
+	 * largest version we send the signature of along with the request. rdiff
+	 * signs blocks of 2048 bytes with 12 bytes each, so its signature fits
+	 * into a message.
+	 */
+	static final long MAX_SUPPLIED_BASE = 4 * 1024 * 1024;
+
 	private IFileTransferService transferService;
 
 	private FileRequest request;
@@ -58,12 +84,20 @@ class FileRequestAction extends AvailableLaterObject<File> {
 	@Inject
 	private IUserIdFactory userids;
 
+	@Inject
+	private IMessageMarshaller messageMarshaller;
+
 	private LogEntry logEntry;
 
 	private JakeObject jo;
 
 	private RequestFileMessage msg;
 
+	/**
+	 * where the received data starts in the version
+	 */
+	private long offset = 0;
+
 	private User peer;
 
 	private boolean storeInFss;
@@ -74,6 +108,21 @@ class FileRequestAction extends AvailableLaterObject<File> {
 
 	private static Logger log = Logger.getLogger(FileRequestAction.class);
 
+	/**
+	 * Decides whether a request whose negotiation succeeded may go on, when
+	 * the same version is requested from several users at once
+	 */
+	interface INegotiationGate {
+
+		/**
+		 * @return false if the transfer is not needed any more and should be
+		 *         cancelled
+		 */
+		boolean negotiated(FileRequestAction action);
+	}
+
+	private INegotiationGate gate;
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + "]" + "transferService="
@@ -84,6 +133,7 @@ class FileRequestAction extends AvailableLaterObject<File> {
 			boolean storeInFss) {
 		super();
 		this.model = model;
+		this.transferService = model.getTransfer();
 		this.helperListener = new ITransferListener() {
 
 			@Override
@@ -130,19 +180,120 @@ class FileRequestAction extends AvailableLaterObject<File> {
 		this.storeInFss = storeInFss;
 	}
 
+	public void setNegotiationGate(INegotiationGate gate) {
+		this.gate = gate;
+	}
+
+	public User getPeer() {
+		return peer;
+	}
+
 	@Override
 	public File calculate() throws Exception {
 		UserId user = userids.get(peer.getUserId());
+		Boolean upToDate = model.getPeerStats().isUpToDate(peer.getUserId());
+		boolean old = Boolean.FALSE.equals(upToDate);
 
-		if (model.getFss().fileExists(jo.getRelPath())) {
+		boolean exists = model.getFss().fileExists(jo.getRelPath());
+		if (exists && !old && supplySignature(user)) {
+			log.debug("requesting a delta against our signature");
+			this.msg = RequestFileMessage.createRequestSuppliedDeltaMessage(
+					model.getProjectid(), user, logEntry);
+		} else if (exists) {
 			log.debug("requesting a delta");
 			this.msg = RequestFileMessage.createRequestDeltaMessage(
 					model.getProjectid(), user, logEntry);
 		} else {
-			log.debug("requesting the full file");
+			offset = model.getSpool().getOffset(logEntry.getId());
+			if (offset > 0) {
+				log.debug("continuing at byte " + offset);
+				this.msg = RequestFileMessage.createRequestRangeMessage(
+						model.getProjectid(), user, logEntry, offset);
+			} else {
+				log.debug("requesting the full file");
+				this.msg = RequestFileMessage.createRequestFileMessage(
+						model.getProjectid(), user, logEntry);
+			}
+		}
+		msg.setCompressed(TransferCompression.isCompressible(jo.getRelPath()));
+		if (old)
+			makePlain(user);
+		boolean plain = isPlain();
+		BandwidthShaper shaper = TransferRuntime.getInstance().getShaper(model);
+		shaper.beforeDownload(false);
+		long asked = System.currentTimeMillis();
+		negotiate();
+
+		if (this.innerException != null && !plain && upToDate == null) {
+			// older versions reject what they don't know. it may also have
+			// been busy, then this fails as well.
+			log.debug("asking like an older version instead");
+			this.innerException = null;
+			makePlain(user);
+			asked = System.currentTimeMillis();
+			negotiate();
+			if (this.innerException == null)
+				model.getPeerStats().setUpToDate(peer.getUserId(), false);
+		} else if (this.innerException == null && !plain) {
+			model.getPeerStats().setUpToDate(peer.getUserId(), true);
+		}
+		if (this.innerException != null) {
+			model.getPeerStats().failed(peer.getUserId());
+			throw innerException;
+		}
+		model.getPeerStats().negotiated(peer.getUserId(),
+				System.currentTimeMillis() - asked);
+		if (gate != null && !gate.negotiated(this)) {
+			log.debug("not needed any more, cancelling the transfer from "
+					+ peer);
+			fileTransfer.cancel();
+			throw new Exception("another user was faster");
+		}
+
+		long started = System.currentTimeMillis();
+		TransferRuntime.getInstance().watch(fileTransfer, helperListener,
+				shaper, false);
+
+		sem.acquire();
+		if (this.innerException != null) {
+			model.getPeerStats().failed(peer.getUserId());
+			keepReceived();
+			throw innerException;
+		}
+		// success so far.
+		model.getPeerStats().transferred(peer.getUserId(),
+				fileTransfer.getLocalFile().length(),
+				System.currentTimeMillis() - started);
+
+		return checkPulledFile();
+	}
+
+	/**
+	 * @return whether older versions know the request
+	 */
+	private boolean isPlain() {
+		return !msg.isCompressed()
+				&& (msg.getType() == RequestType.FILE
+						|| msg.getType() == RequestType.DELTA);
+	}
+
+	/**
+	 * turns the request into one older versions know
+	 */
+	private void makePlain(UserId user) {
+		if (msg.getType() == RequestType.RANGE) {
+			log.debug("requesting the full file instead");
+			this.offset = 0;
 			this.msg = RequestFileMessage.createRequestFileMessage(
 					model.getProjectid(), user, logEntry);
+		} else if (msg.getType() == RequestType.DELTA_SUPPLIED) {
+			this.msg = RequestFileMessage.createRequestDeltaMessage(
+					model.getProjectid(), user, logEntry);
 		}
+		msg.setCompressed(false);
+	}
+
+	private void negotiate() throws InterruptedException {
 		String contentname = this.requestMarshaller.serialize(msg);
 		log.debug("content addressed with: " + contentname);
 		this.request = new FileRequest(contentname, false, msg.getUser());
@@ -151,44 +302,113 @@ class FileRequestAction extends AvailableLaterObject<File> {
 				this.helperNegotiationListener);
 		log.debug("waiting for negotiation-success-listener");
 		sem.acquire();
+	}
 
-		if (this.innerException != null) {
-			throw innerException;
+	/**
+	 * keeps what arrived of a full version, so that the next request can
+	 * continue there
+	 */
+	private void keepReceived() {
+		if (msg.getType() != RequestType.FILE
+				&& msg.getType() != RequestType.RANGE)
+			return;
+		try {
+			File transferred = this.fileTransfer.getLocalFile();
+			if (transferred == null || !transferred.exists())
+				return;
+			File received = getReceived();
+			long length = model.getSpool().append(logEntry.getId(), offset,
+					received);
+			log.debug("kept " + length + " bytes of " + logEntry.getId());
+			received.delete();
+		} catch (Exception e) {
+			log.debug("keeping what arrived failed", e);
 		}
+	}
 
-		new Thread(new TransferWatcher(fileTransfer, helperListener)).start();
-
-		sem.acquire();
-		if (this.innerException != null) {
-			throw innerException;
+	/**
+	 * @return the data that arrived, decompressed
+	 */
+	private File getReceived() throws IOException {
+		File transferred = this.fileTransfer.getLocalFile();
+		if (!msg.isCompressed())
+			return transferred;
+		boolean full = msg.getType() == RequestType.FILE;
+		if (full && !TransferCompression.isZlib(transferred)) {
+			log.debug("the version was sent as it is");
+			return transferred;
 		}
-		// success so far.
+		File received;
+		try {
+			received = TransferCompression.decompress(transferred);
+		} catch (IOException e) {
+			if (!full)
+				throw e;
+			// sent as it is, but starts like a zlib stream
+			log.debug("the version was sent as it is");
+			return transferred;
+		}
+		transferred.delete();
+		return received;
+	}
 
-		return checkPulledFile();
+	/**
+	 * sends the signature of our version to the peer, ahead of the request
+	 * 
+	 * @return false if our version is too large or sending failed
+	 */
+	private boolean supplySignature(UserId user) {
+		try {
+			File base = new File(model.getFss().getFullpath(jo.getRelPath()));
+			if (base.length() > MAX_SUPPLIED_BASE)
+				return false;
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			InputStream is = new FileInputStream(base);
+			try {
+				new Rdiff().makeSignatures(is, os);
+			} finally {
+				is.close();
+			}
+			SignatureMessage sm = SignatureMessage.createSignatureMessage(
+					model.getProjectid(), user, logEntry, os.toByteArray());
+			return model.getIcs().getMsgService()
+					.sendMessage(user, messageMarshaller.serialize(sm));
+		} catch (Exception e) {
+			log.debug("supplying our signature failed", e);
+			return false;
+		}
 	}
 
 	private File checkPulledFile() throws Exception {
 		File local = null;
 		IFSService fss = model.getFss();
+		TransferSpool spool = model.getSpool();
+		File received = getReceived();
 
-		if (msg.getType() == RequestType.DELTA) {
+		if (msg.getType() == RequestType.DELTA
+				|| msg.getType() == RequestType.DELTA_SUPPLIED) {
 			File merge = File.createTempFile("merge", "recv");
 			merge.deleteOnExit();
 
 			log.debug("merging delta " + local);
 			Rdiff rdiff = new Rdiff();
 			rdiff.rebuildFile(new File(fss.getFullpath(jo.getRelPath())),
-					new FileInputStream(this.fileTransfer.getLocalFile()),
-					new FileOutputStream(merge));
+					new FileInputStream(received), new FileOutputStream(merge));
 			local = merge;
+		} else if (msg.getType() == RequestType.RANGE) {
+			spool.append(logEntry.getId(), offset, received);
+			received.delete();
+			local = spool.getPart(logEntry.getId());
 		} else {
-			local = this.fileTransfer.getLocalFile();
+			local = received;
 		}
 		log.debug("checking file " + local);
 
 		HashValue hash = fss.calculateHash(new FileInputStream(local));
 
 		if (!hash.equals(logEntry.getHow())) {
+			// starting over next time
+			spool.remove(logEntry.getId());
 			throw new Exception("hash doesn't match");
 		}
 
@@ -200,8 +420,17 @@ class FileRequestAction extends AvailableLaterObject<File> {
 				throw new Exception("copying file failed:", e);
 			}
 			local.delete();
+			spool.remove(logEntry.getId());
 			return null;
+		} else if (msg.getType() == RequestType.RANGE) {
+			// the part is removed from the spool
+			File copy = File.createTempFile("range", "recv");
+			copy.deleteOnExit();
+			FSService.writeFileStreamAbs(copy, new FileInputStream(local));
+			spool.remove(logEntry.getId());
+			return copy;
 		} else {
+			spool.remove(logEntry.getId());
 			return local;
 		}
 	}
@@ -0,0 +1,427 @@
+package com.jakeapp.violet.actions.project.interact.pull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.availablelater.AvailableLaterObject;
+import com.jakeapp.availablelater.StatusUpdate;
+import com.jakeapp.jake.fss.HashValue;
+import com.jakeapp.jake.fss.IFSService;
+import com.jakeapp.violet.actions.global.serve.BlockingFileTransfer;
+import com.jakeapp.violet.actions.global.serve.TransferRuntime;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.di.IUserIdFactory;
+import com.jakeapp.violet.model.ChunkManifest;
+import com.jakeapp.violet.model.ChunkManifest.Chunk;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.User;
+import com.jakeapp.violet.protocol.files.IRequestMarshaller;
+import com.jakeapp.violet.protocol.files.RequestFileMessage;
+
+/**
+ * Downloads a version in chunks from several users at once. The chunks are
+ * listed in the {@link ChunkManifest} of the version, which all users are
+ * asked for at once, the first one that arrives is used. Chunks we have in
+ * our own version are taken from there, the others are requested in
+ * parallel, one request at a time per user. Each request asks for a run of
+ * consecutive chunks, so a transfer is negotiated per run instead of per
+ * chunk. Each chunk is checked against the manifest, the whole file against
+ * the log entry. The users are asked on the request pool of the
+ * {@link TransferRuntime}.
+ * 
+ * If storeInFss = false, the File where it is stored is given back.
+ */
+class SwarmFileRequestAction extends AvailableLaterObject<File> {
+
+	private static Logger log = Logger.getLogger(SwarmFileRequestAction.class);
+
+	/**
+	 * users we download from at the same time
+	 */
+	static final int MAX_PEERS = 4;
+
+	/**
+	 * failed chunks after which we stop asking a user
+	 */
+	static final int MAX_PEER_FAILURES = 3;
+
+	@Inject
+	private IRequestMarshaller requestMarshaller;
+
+	@Inject
+	private IUserIdFactory userids;
+
+	private final ProjectModel model;
+
+	private final LogEntry logEntry;
+
+	private final JakeObject jo;
+
+	private final List<User> peers;
+
+	private final boolean storeInFss;
+
+	/**
+	 * offset -&gt; chunks nobody is downloading right now
+	 */
+	private final SortedMap<Long, Chunk> pending = new TreeMap<Long, Chunk>();
+
+	private int missing;
+
+	private int total;
+
+	/**
+	 * users we download from
+	 */
+	private int downloaders;
+
+	private RandomAccessFile out;
+
+	public SwarmFileRequestAction(ProjectModel model, LogEntry logEntry,
+			List<User> peers, boolean storeInFss) {
+		this.model = model;
+		this.logEntry = logEntry;
+		this.jo = logEntry.getWhat();
+		this.peers = peers;
+		this.storeInFss = storeInFss;
+	}
+
+	public void setRequestMarshaller(IRequestMarshaller requestMarshaller) {
+		this.requestMarshaller = requestMarshaller;
+	}
+
+	public void setUserids(IUserIdFactory userids) {
+		this.userids = userids;
+	}
+
+	@Override
+	public File calculate() throws Exception {
+		ChunkManifest manifest = requestManifest();
+		File local = File.createTempFile("swarm", "recv");
+		local.deleteOnExit();
+		out = new RandomAccessFile(local, "rw");
+		try {
+			out.setLength(manifest.getLength());
+			List<Chunk> needed = copyOwnChunks(manifest);
+			List<User> from = peers.subList(0, Math.min(MAX_PEERS, peers
+					.size()));
+			synchronized (this) {
+				total = manifest.getChunks().size();
+				missing = needed.size();
+				downloaders = from.size();
+				for (Chunk c : needed)
+					pending.put(c.getOffset(), c);
+			}
+			log.debug("requesting " + needed.size() + " of " + total
+					+ " chunks");
+
+			List<Future<?>> workers = new ArrayList<Future<?>>();
+			for (final User peer : from) {
+				workers.add(TransferRuntime.getInstance().getRequestPool()
+						.submit(new Runnable() {
+
+							@Override
+							public void run() {
+								download(peer);
+							}
+						}));
+			}
+			try {
+				for (Future<?> f : workers)
+					f.get();
+			} finally {
+				for (Future<?> f : workers)
+					f.cancel(true);
+			}
+		} finally {
+			out.close();
+		}
+		synchronized (this) {
+			if (missing > 0) {
+				local.delete();
+				throw new Exception(missing + " chunks could not be downloaded");
+			}
+		}
+		return checkPulledFile(local);
+	}
+
+	/**
+	 * asks all users at once
+	 * 
+	 * @return the manifest from the first user that sends it
+	 */
+	private ChunkManifest requestManifest() throws Exception {
+		CompletionService<ChunkManifest> requests = new ExecutorCompletionService<ChunkManifest>(
+				TransferRuntime.getInstance().getRequestPool());
+		List<Future<ChunkManifest>> asked = new ArrayList<Future<ChunkManifest>>();
+		for (final User peer : peers) {
+			asked.add(requests.submit(new Callable<ChunkManifest>() {
+
+				@Override
+				public ChunkManifest call() throws Exception {
+					return requestManifest(peer);
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < asked.size(); i++) {
+				try {
+					ChunkManifest manifest = requests.take().get();
+					if (manifest != null)
+						return manifest;
+				} catch (ExecutionException e) {
+					log.debug("requesting the manifest failed", e.getCause());
+				}
+			}
+		} finally {
+			// the others aren't needed any more
+			for (Future<ChunkManifest> f : asked)
+				f.cancel(true);
+		}
+		throw new Exception("no manifest available");
+	}
+
+	/**
+	 * @return the manifest, null if the user didn't send it
+	 */
+	private ChunkManifest requestManifest(User peer) throws Exception {
+		RequestFileMessage msg = RequestFileMessage
+				.createRequestManifestMessage(model.getProjectid(), userids
+						.get(peer.getUserId()), logEntry);
+		InputStream is = BlockingFileTransfer.requestFile(model,
+				requestMarshaller, msg, null);
+		if (is == null)
+			return null;
+		try {
+			ChunkManifest manifest = ChunkManifest.read(new GZIPInputStream(
+					is));
+			if (manifest.getHash().equals(logEntry.getHow()))
+				return manifest;
+			log.debug(peer + " sent the manifest of another version");
+		} catch (IOException e) {
+			log.debug("bad manifest from " + peer, e);
+		} finally {
+			is.close();
+		}
+		return null;
+	}
+
+	/**
+	 * writes the chunks our own version has in common with the requested one
+	 * 
+	 * @return the chunks left to download
+	 */
+	private List<Chunk> copyOwnChunks(ChunkManifest manifest) {
+		List<Chunk> needed = new ArrayList<Chunk>(manifest.getChunks());
+		try {
+			IFSService fss = model.getFss();
+			if (!fss.fileExists(jo.getRelPath()))
+				return needed;
+			File own = new File(fss.getFullpath(jo.getRelPath()));
+			Map<String, Chunk> ours;
+			InputStream is = new BufferedInputStream(new FileInputStream(own));
+			try {
+				ours = ChunkManifest.of(null, is).getChunksByDigest();
+			} finally {
+				is.close();
+			}
+			RandomAccessFile in = new RandomAccessFile(own, "r");
+			try {
+				List<Chunk> copied = new ArrayList<Chunk>();
+				for (Chunk c : needed) {
+					Chunk our = ours.get(c.getDigest());
+					if (our == null)
+						continue;
+					byte[] b = new byte[our.getLength()];
+					in.seek(our.getOffset());
+					in.readFully(b);
+					// our file may have changed since
+					if (c.matches(b)) {
+						write(c, b);
+						copied.add(c);
+					}
+				}
+				needed.removeAll(copied);
+				log.debug("took " + copied.size() + " chunks from our version");
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			log.debug("can't use our version", e);
+		}
+		return needed;
+	}
+
+	/**
+	 * requests runs of chunks from the user until all are there or it failed
+	 * too often
+	 */
+	private void download(User peer) {
+		int failures = 0;
+		while (failures < MAX_PEER_FAILURES) {
+			List<Chunk> run;
+			try {
+				run = takeRun();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (run == null)
+				return;
+			List<Chunk> failed = requestRun(peer, run);
+			if (!failed.isEmpty())
+				failures++;
+			synchronized (this) {
+				missing -= run.size() - failed.size();
+				for (Chunk c : failed)
+					pending.put(c.getOffset(), c);
+				setStatus(new StatusUpdate((double) (total - missing) / total,
+						"downloading"));
+				notifyAll();
+			}
+		}
+		synchronized (this) {
+			downloaders--;
+		}
+		log.debug("giving up on " + peer);
+	}
+
+	/**
+	 * takes the first chunks nobody is downloading: as many consecutive ones
+	 * as fit into {@link ChunkManifest#MAX_RUN}, leaving some for the other
+	 * users. Waits while the others still download the last ones, they may
+	 * give some back.
+	 * 
+	 * @return null when all chunks are there
+	 */
+	private synchronized List<Chunk> takeRun() throws InterruptedException {
+		while (pending.isEmpty()) {
+			if (missing == 0)
+				return null;
+			wait();
+		}
+		int most = Math.max(pending.size() / Math.max(downloaders, 1), 1);
+		List<Chunk> run = new ArrayList<Chunk>();
+		long left = ChunkManifest.MAX_RUN;
+		Chunk c = pending.get(pending.firstKey());
+		while (c != null && run.size() < most
+				&& (run.isEmpty() || c.getLength() <= left)) {
+			pending.remove(c.getOffset());
+			run.add(c);
+			left -= c.getLength();
+			c = pending.get(c.getOffset() + c.getLength());
+		}
+		return run;
+	}
+
+	/**
+	 * @return the chunks of the run that didn't arrive intact
+	 */
+	private List<Chunk> requestRun(User peer, List<Chunk> run) {
+		RequestFileMessage msg = RequestFileMessage.createRequestChunkMessage(
+				model.getProjectid(), userids.get(peer.getUserId()), logEntry,
+				run);
+		long started = System.currentTimeMillis();
+		List<Chunk> failed = fetchRun(peer, run, msg);
+		long bytes = 0;
+		for (Chunk c : run) {
+			if (!failed.contains(c))
+				bytes += c.getLength();
+		}
+		if (bytes > 0)
+			model.getPeerStats().transferred(peer.getUserId(), bytes,
+					System.currentTimeMillis() - started);
+		if (!failed.isEmpty())
+			model.getPeerStats().failed(peer.getUserId());
+		return failed;
+	}
+
+	/**
+	 * writes the chunks of the run that arrived intact
+	 * 
+	 * @return the others
+	 */
+	private List<Chunk> fetchRun(User peer, List<Chunk> run,
+			RequestFileMessage msg) {
+		List<Chunk> failed = new ArrayList<Chunk>(run);
+		try {
+			InputStream is = BlockingFileTransfer.requestFile(model,
+					requestMarshaller, msg, null);
+			if (is == null)
+				return failed;
+			try {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(is));
+				for (Chunk c : run) {
+					byte[] b = new byte[c.getLength()];
+					in.readFully(b);
+					if (c.matches(b)) {
+						write(c, b);
+						failed.remove(c);
+					} else {
+						log.debug("chunk " + c + " from " + peer
+								+ " is broken");
+					}
+				}
+			} finally {
+				is.close();
+			}
+		} catch (Exception e) {
+			log.debug("requesting chunks " + msg.getIdentifier() + " from "
+					+ peer + " failed", e);
+		}
+		return failed;
+	}
+
+	private void write(Chunk c, byte[] b) throws IOException {
+		synchronized (out) {
+			out.seek(c.getOffset());
+			out.write(b);
+		}
+	}
+
+	private File checkPulledFile(File local) throws Exception {
+		IFSService fss = model.getFss();
+		log.debug("checking file " + local);
+
+		HashValue hash = fss.calculateHash(new FileInputStream(local));
+
+		if (!hash.equals(logEntry.getHow())) {
+			local.delete();
+			throw new Exception("hash doesn't match");
+		}
+
+		if (storeInFss) {
+			try {
+				log.info("storing in file system");
+				fss.writeFileStream(jo.getRelPath(), new FileInputStream(local));
+			} catch (Exception e) {
+				throw new Exception("copying file failed:", e);
+			}
+			local.delete();
+			return null;
+		} else {
+			return local;
+		}
+	}
+}
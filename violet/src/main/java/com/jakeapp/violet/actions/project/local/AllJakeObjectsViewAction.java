@@ -48,7 +48,7 @@ public class AllJakeObjectsViewAction extends
 		try {
 			List<String> files = this.model.getFss().recursiveListFiles();
 			for (String relpath : files) {
-				objects.add(new JakeObject(relpath));
+				objects.add(model.getInterner().jakeObject(relpath));
 			}
 		} catch (IOException e) {
 			log.error(e);
@@ -64,7 +64,7 @@ public class AllJakeObjectsViewAction extends
 	@Override
 	public void fileModified(String relpath,
 			com.jakeapp.jake.fss.IModificationListener.ModifyActions action) {
-		view.onModification(new JakeObject(relpath));
+		view.onModification(model.getInterner().jakeObject(relpath));
 	}
 
 }
@@ -0,0 +1,56 @@
+package com.jakeapp.violet.actions.project.local;
+
+import java.sql.Timestamp;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.availablelater.AvailableLaterObject;
+import com.jakeapp.violet.context.ProjectModel;
+
+/**
+ * Moves old, superseded log entries into the archive of the log, so the
+ * queries on the log stay fast. The age is taken from the project property
+ * {@link #ARCHIVE_AGE_PROPERTY_KEY}, in days.
+ */
+public class ArchiveLogAction extends AvailableLaterObject<Integer> {
+
+	private static final Logger log = Logger.getLogger(ArchiveLogAction.class);
+
+	public static final String ARCHIVE_AGE_PROPERTY_KEY = "log.archive.days";
+
+	public static final int DEFAULT_ARCHIVE_AGE = 90;
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private final ProjectModel model;
+
+	public ArchiveLogAction(ProjectModel model) {
+		this.model = model;
+	}
+
+	private int getArchiveAge() {
+		String days = model.getPreferences().get(ARCHIVE_AGE_PROPERTY_KEY);
+		if (days == null)
+			return DEFAULT_ARCHIVE_AGE;
+		try {
+			return Integer.parseInt(days);
+		} catch (NumberFormatException e) {
+			log.warn("invalid " + ARCHIVE_AGE_PROPERTY_KEY + ": " + days);
+			return DEFAULT_ARCHIVE_AGE;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @return the number of entries archived
+	 */
+	@Override
+	public Integer calculate() throws Exception {
+		Timestamp before = new Timestamp(System.currentTimeMillis()
+				- getArchiveAge() * DAY);
+		int archived = model.getLog().archive(before);
+		log.info("archived " + archived + " log entries older than " + before);
+		return archived;
+	}
+}
@@ -4,11 +4,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 
-import com.jakeapp.jake.fss.HashValue;
 import com.jakeapp.jake.fss.IFSService;
 import com.jakeapp.jake.fss.exceptions.InvalidFilenameException;
 import com.jakeapp.jake.fss.exceptions.NotAFileException;
 import com.jakeapp.jake.fss.exceptions.NotAReadableFileException;
+import com.jakeapp.violet.model.HashCache;
 import com.jakeapp.violet.model.JakeObject;
 import com.jakeapp.violet.model.Log;
 import com.jakeapp.violet.model.LogEntry;
@@ -17,8 +17,9 @@ import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
 
 public class AttributedCalculator {
 
-	public static Attributed calculateAttributed(IFSService fss, Log log,
-			JakeObject fo) throws SQLException, InvalidFilenameException {
+	public static Attributed calculateAttributed(IFSService fss,
+			HashCache hashes, Log log, JakeObject fo) throws SQLException,
+			InvalidFilenameException {
 		LogEntry lastVersionLogEntry = null;
 		try {
 			lastVersionLogEntry = log.getLastOfJakeObject(fo, true);
@@ -31,7 +32,7 @@ public class AttributedCalculator {
 		}
 		if (loghash == null)
 			loghash = "";
-		HashValue fshash = null;
+		String fshash = null;
 		boolean objectExistsLocally = false;
 		long lastModificationDate = 0;
 		long size = 0;
@@ -40,15 +41,15 @@ public class AttributedCalculator {
 			lastModificationDate = fss.getLastModified(fo.getRelPath());
 			size = fss.getFileSize(fo.getRelPath());
 
-			fshash = fss.calculateHashOverFile(fo.getRelPath());
-			checksumDifferentFromLastNewVersionLogEntry = loghash
+			fshash = hashes.getHash(fo.getRelPath());
+			checksumDifferentFromLastNewVersionLogEntry = !loghash
 					.equals(fshash);
 		} catch (FileNotFoundException e) {
 		} catch (NotAReadableFileException e) {
 		} catch (IOException e) {
 		}
 
-		boolean hasUnprocessedLogEntries = log.getUnprocessed(fo).isEmpty();
+		boolean hasUnprocessedLogEntries = log.hasUnprocessed(fo);
 
 		return new Attributed(fo, lastVersionLogEntry, objectExistsLocally,
 				checksumDifferentFromLastNewVersionLogEntry,
@@ -48,8 +48,8 @@ public class FileInfoAction extends AvailableLaterObject<List<Attributed>> {
 		List<Attributed> attributed = new ArrayList<Attributed>();
 
 		for (JakeObject fo : files) {
-			attributed.add(AttributedCalculator.calculateAttributed(fss, log,
-					fo));
+			attributed.add(AttributedCalculator.calculateAttributed(fss,
+					model.getHashes(), log, fo));
 
 			stepsDone++;
 			setStatus(new StatusUpdate(totalSteps * 1. / stepsDone, "working"));
@@ -0,0 +1,55 @@
+package com.jakeapp.violet.actions.project.local;
+
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.availablelater.AvailableLaterObject;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+
+/**
+ * Gets the newest entries of the log, or of the log of a {@link JakeObject},
+ * one page at a time. Only the requested page is loaded.
+ * 
+ * @author johannes
+ */
+public class GetLogEntriesPageAction extends
+		AvailableLaterObject<Collection<LogEntry>> {
+
+	private static Logger log = Logger.getLogger(GetLogEntriesPageAction.class);
+
+	private final ProjectModel model;
+
+	private final JakeObject jo;
+
+	private final int offset;
+
+	private final int limit;
+
+	/**
+	 * @param model
+	 * @param jo
+	 *            <code>null</code> for the full log
+	 * @param offset
+	 *            how many of the newest entries to skip
+	 * @param limit
+	 *            page size
+	 */
+	public GetLogEntriesPageAction(ProjectModel model, JakeObject jo,
+			int offset, int limit) {
+		this.model = model;
+		this.jo = jo;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Collection<LogEntry> calculate() {
+		return model.getLog().getPage(jo, true, true, offset, limit);
+	}
+}
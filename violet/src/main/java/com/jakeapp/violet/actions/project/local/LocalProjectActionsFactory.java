@@ -29,4 +29,9 @@ public interface LocalProjectActionsFactory {
 
 	GetLogEntriesAction viewlog(ProjectModel model, JakeObject jo);
 
+	GetLogEntriesPageAction viewlog(ProjectModel model, JakeObject jo,
+			int offset, int limit);
+
+	ArchiveLogAction archiveLog(ProjectModel model);
+
 }
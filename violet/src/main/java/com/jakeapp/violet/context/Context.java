@@ -1,5 +1,6 @@
 package com.jakeapp.violet.context;
 
+import com.jakeapp.violet.actions.project.interact.SyncScheduler;
 
 /**
  * MVC-like pattern.
@@ -33,13 +34,19 @@ public class Context {
 
 	private final ProjectActions actions;
 
-	public Context(ProjectModel model, ProjectActions actions) {
+	private final SyncScheduler syncScheduler;
+
+	public Context(ProjectModel model, ProjectActions actions,
+			SyncScheduler syncScheduler) {
 		if (model == null)
 			throw new NullPointerException();
 		if (actions == null)
 			throw new NullPointerException();
+		if (syncScheduler == null)
+			throw new NullPointerException();
 		this.model = model;
 		this.actions = actions;
+		this.syncScheduler = syncScheduler;
 	}
 
 	public ProjectModel getModel() {
@@ -49,4 +56,12 @@ public class Context {
 	public ProjectActions getActions() {
 		return actions;
 	}
+
+	/**
+	 * @return runs the log syncs of the project. Pass it to the
+	 *         <code>LoginAction</code>, it gets the pokes of the peers.
+	 */
+	public SyncScheduler getSyncScheduler() {
+		return syncScheduler;
+	}
 }
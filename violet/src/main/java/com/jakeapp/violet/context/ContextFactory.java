@@ -7,9 +7,14 @@ import com.jakeapp.jake.ics.ICService;
 import com.jakeapp.jake.ics.filetransfer.IFileTransferService;
 import com.jakeapp.violet.actions.project.connect.ConnectProjectActionsFactory;
 import com.jakeapp.violet.actions.project.interact.InteractProjectActionsFactory;
+import com.jakeapp.violet.actions.project.interact.SyncScheduler;
 import com.jakeapp.violet.actions.project.local.LocalProjectActionsFactory;
+import com.jakeapp.violet.model.HashCache;
 import com.jakeapp.violet.model.Log;
+import com.jakeapp.violet.model.PeerStats;
 import com.jakeapp.violet.model.ProjectPreferences;
+import com.jakeapp.violet.model.SignatureCache;
+import com.jakeapp.violet.model.TransferSpool;
 
 
 public class ContextFactory implements IContextFactory {
@@ -24,8 +29,9 @@ public class ContextFactory implements IContextFactory {
 	private InteractProjectActionsFactory interactActions;
 
 	@Override
-	public Context createContext(ProjectModel model, ProjectActions actions) {
-		return new Context(model, actions);
+	public Context createContext(ProjectModel model, ProjectActions actions,
+			SyncScheduler syncScheduler) {
+		return new Context(model, actions, syncScheduler);
 	}
 
 	@Override
@@ -37,8 +43,10 @@ public class ContextFactory implements IContextFactory {
 	@Override
 	public ProjectModel createProjectModel(IFSService fss, Log log,
 			ProjectPreferences preferences, ICService ics,
-			IFileTransferService transfer) {
-		return new ProjectModel(fss, log, preferences, ics, transfer);
+			IFileTransferService transfer, SignatureCache signatures,
+			HashCache hashes, TransferSpool spool, PeerStats peerStats) {
+		return new ProjectModel(fss, log, preferences, ics, transfer,
+				signatures, hashes, spool, peerStats);
 	}
 
 	public void setConnectActions(ConnectProjectActionsFactory connectActions) {
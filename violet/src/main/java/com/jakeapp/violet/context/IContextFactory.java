@@ -3,8 +3,13 @@ package com.jakeapp.violet.context;
 import com.jakeapp.jake.fss.IFSService;
 import com.jakeapp.jake.ics.ICService;
 import com.jakeapp.jake.ics.filetransfer.IFileTransferService;
+import com.jakeapp.violet.actions.project.interact.SyncScheduler;
+import com.jakeapp.violet.model.HashCache;
 import com.jakeapp.violet.model.Log;
+import com.jakeapp.violet.model.PeerStats;
 import com.jakeapp.violet.model.ProjectPreferences;
+import com.jakeapp.violet.model.SignatureCache;
+import com.jakeapp.violet.model.TransferSpool;
 
 
 /**
@@ -12,12 +17,14 @@ import com.jakeapp.violet.model.ProjectPreferences;
  */
 public interface IContextFactory {
 
-	Context createContext(ProjectModel model, ProjectActions actions);
+	Context createContext(ProjectModel model, ProjectActions actions,
+			SyncScheduler syncScheduler);
 
 	ProjectActions createProjectActions();
 
 	ProjectModel createProjectModel(IFSService fss, Log log,
 			ProjectPreferences preferences, ICService ics,
-			IFileTransferService transfer);
+			IFileTransferService transfer, SignatureCache signatures,
+			HashCache hashes, TransferSpool spool, PeerStats peerStats);
 
 }
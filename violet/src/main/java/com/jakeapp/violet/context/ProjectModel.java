@@ -5,8 +5,13 @@ import java.util.UUID;
 import com.jakeapp.jake.fss.IFSService;
 import com.jakeapp.jake.ics.ICService;
 import com.jakeapp.jake.ics.filetransfer.IFileTransferService;
+import com.jakeapp.violet.model.HashCache;
+import com.jakeapp.violet.model.Interner;
 import com.jakeapp.violet.model.Log;
+import com.jakeapp.violet.model.PeerStats;
 import com.jakeapp.violet.model.ProjectPreferences;
+import com.jakeapp.violet.model.SignatureCache;
+import com.jakeapp.violet.model.TransferSpool;
 import com.jakeapp.violet.model.User;
 
 /**
@@ -29,14 +34,28 @@ public class ProjectModel {
 
 	protected final IFileTransferService transfer;
 
+	protected final SignatureCache signatures;
+
+	protected final HashCache hashes;
+
+	protected final TransferSpool spool;
+
+	protected final PeerStats peerStats;
+
 	ProjectModel(IFSService fss, Log log, ProjectPreferences preferences,
-			ICService ics, IFileTransferService transfer) {
+			ICService ics, IFileTransferService transfer,
+			SignatureCache signatures, HashCache hashes, TransferSpool spool,
+			PeerStats peerStats) {
 		super();
 		this.fss = fss;
 		this.log = log;
 		this.preferences = preferences;
 		this.ics = ics;
 		this.transfer = transfer;
+		this.signatures = signatures;
+		this.hashes = hashes;
+		this.spool = spool;
+		this.peerStats = peerStats;
 	}
 
 	public IFSService getFss() {
@@ -67,9 +86,45 @@ public class ProjectModel {
 		return transfer;
 	}
 
+	/**
+	 * @return the signatures of the files we serve
+	 */
+	public SignatureCache getSignatures() {
+		return signatures;
+	}
+
+	/**
+	 * @return the hashes of the files in the project. Use these instead of
+	 *         hashing files with the fss.
+	 */
+	public HashCache getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return what arrived of transfers that failed partway
+	 */
+	public TransferSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * @return what we measured of the transfers with the other users
+	 */
+	public PeerStats getPeerStats() {
+		return peerStats;
+	}
+
+	/**
+	 * @return the pool of users and objects of this project
+	 */
+	public Interner getInterner() {
+		return log.getInterner();
+	}
+
 	// some convinience methods
 	public User getUser() {
-		return new User(preferences.get(USERID_PROPERTY_KEY));
+		return getInterner().user(preferences.get(USERID_PROPERTY_KEY));
 	}
 
 	public String getUserid() {
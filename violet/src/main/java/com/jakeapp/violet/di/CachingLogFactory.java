@@ -0,0 +1,26 @@
+package com.jakeapp.violet.di;
+
+import javax.inject.Named;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.CachingLog;
+import com.jakeapp.violet.model.Log;
+
+/**
+ * Creates logs that answer the frequent lookups from memory.
+ * 
+ * @see CachingLog
+ */
+public class CachingLogFactory extends LogFactory {
+
+	public CachingLogFactory(
+			@Named("project log filename") String logFilename) {
+		super(logFilename);
+	}
+
+	@Override
+	public Log getLog(ProjectDir dir) {
+		return new CachingLog(super.getLog(dir));
+	}
+
+}
@@ -16,6 +16,6 @@ public class DBModule extends AbstractModule {
 		bindConstant().annotatedWith(Names.named("db.password")).to("");
 		bindConstant().annotatedWith(Names.named("db.password")).to("");
 		bindConstant().annotatedWith(Names.named("db.password")).to("");
-		bind(ILogFactory.class).to(LogFactory.class);
+		bind(ILogFactory.class).to(CachingLogFactory.class);
 	}
 }
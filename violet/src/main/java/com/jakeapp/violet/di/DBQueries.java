@@ -3,19 +3,46 @@ package com.jakeapp.violet.di;
 
 public interface DBQueries {
 
+	/**
+	 * seq is the local insertion order. It is used as a high-water mark for
+	 * incremental log syncs, as <code>when</code> is set by the author and
+	 * entries relayed by other peers may arrive late.
+	 */
 	String DB_CREATELOGTABLE = "CREATE TABLE IF NOT EXISTS log ("
-			+ " UUID id, " + " Timestamp when, " + " String who, "
-			+ " String what, " + " String why, " + " String how, "
-			+ " Boolean known" + ")";
+			+ " id UUID, " + " when TIMESTAMP, " + " who VARCHAR, "
+			+ " what VARCHAR, " + " why VARCHAR, " + " how VARCHAR, "
+			+ " known BOOLEAN, " + " seq IDENTITY" + ")";
+
+	/**
+	 * logs created before seq was introduced
+	 */
+	String DB_ADDLOGSEQCOLUMN = "ALTER TABLE log ADD COLUMN IF NOT EXISTS seq IDENTITY";
 
 	String DB_CREATELOGINDEXWHEN = "CREATE INDEX IF NOT EXISTS whenindex ON log (when)";
 
 	String DB_CREATELOGINDEXWHAT = "CREATE INDEX IF NOT EXISTS whatindex ON log (what)";
 
+	String DB_CREATELOGINDEXID = "CREATE INDEX IF NOT EXISTS idindex ON log (id)";
+
+	String DB_CREATELOGINDEXWHATWHEN = "CREATE INDEX IF NOT EXISTS whatwhenindex ON log (what, when)";
+
+	String DB_CREATELOGINDEXKNOWNWHEN = "CREATE INDEX IF NOT EXISTS knownwhenindex ON log (known, when)";
+
 	String DB_INSERTLOG = "INSERT INTO log (id, when, who, what, why, how, known) VALUES (?, ?, ?, ?, ?, ?, ?)";
 
+	/**
+	 * like {@link #DB_INSERTLOG}, but does nothing if the id is already known,
+	 * also if it was archived. The last two parameters are the id again.
+	 */
+	String DB_INSERTLOGIFABSENT = "INSERT INTO log (id, when, who, what, why, how, known)"
+			+ " SELECT ?, ?, ?, ?, ?, ?, ? FROM DUAL"
+			+ " WHERE NOT EXISTS (SELECT id FROM log WHERE id = ?)"
+			+ " AND NOT EXISTS (SELECT id FROM logarchived WHERE id = ?)";
+
 	String DB_GETLOGBYID = "SELECT id, when, who, what, why, how, known FROM log WHERE id=?";
 
+	String DB_GETPROCESSEDLOGBYID = DB_GETLOGBYID + " AND known = true";
+
 	String DB_GETRELPATHSPROCESSED = "SELECT what FROM log WHERE known=true";
 
 	String DB_GETRELPATHS = "SELECT what FROM log";
@@ -35,4 +62,134 @@ public interface DBQueries {
 	String DB_GETPROCESSEDFORWHAT = DB_GETALLFORWHAT + " AND known = true";
 
 	String DB_GETUNPROCESSEDFORWHAT = DB_GETALLFORWHAT + " AND known = false";
+
+	String DB_GETLASTSEQ = "SELECT MAX(seq) FROM log";
+
+	String DB_GETALLINSEQRANGE = DB_GETALL
+			+ " WHERE seq > ? AND seq <= ? ORDER BY seq";
+
+	/*
+	 * suffixes for the queries above
+	 */
+
+	String DB_ORDERBYWHEN = " ORDER BY when, id";
+
+	String DB_ORDERBYWHENDESC = " ORDER BY when DESC, id DESC";
+
+	String DB_LIMITOFFSET = " LIMIT ? OFFSET ?";
+
+	/**
+	 * keyset condition: after the entry with the given when (twice) and id
+	 */
+	String DB_AFTERWHEN = " (when > ? OR (when = ? AND id > ?))";
+
+	/*
+	 * head versions: the latest entry of each JakeObject, maintained together
+	 * with the log
+	 */
+
+	String DB_CREATEHEADTABLE = "CREATE TABLE IF NOT EXISTS loghead ("
+			+ " what VARCHAR PRIMARY KEY, " + " id UUID, "
+			+ " when TIMESTAMP, " + " who VARCHAR, " + " how VARCHAR, "
+			+ " deleted BOOLEAN, " + " known BOOLEAN, "
+			+ " unprocessed INT" + ")";
+
+	/**
+	 * what, id, when, who, how, deleted, known, what
+	 */
+	String DB_INSERTHEADIFABSENT = "INSERT INTO loghead"
+			+ " (what, id, when, who, how, deleted, known, unprocessed)"
+			+ " SELECT ?, ?, ?, ?, ?, ?, ?, 0 FROM DUAL"
+			+ " WHERE NOT EXISTS (SELECT what FROM loghead WHERE what = ?)";
+
+	/**
+	 * id, when, who, how, deleted, known, what, when, when, id
+	 */
+	String DB_UPDATEHEADIFNEWER = "UPDATE loghead"
+			+ " SET id = ?, when = ?, who = ?, how = ?, deleted = ?, known = ?"
+			+ " WHERE what = ? AND (when < ? OR (when = ? AND id < ?))";
+
+	String DB_INCREMENTHEADUNPROCESSED = "UPDATE loghead SET unprocessed = unprocessed + 1 WHERE what = ?";
+
+	/**
+	 * id, what
+	 */
+	String DB_SETHEADPROCESSEDBYID = "UPDATE loghead"
+			+ " SET unprocessed = unprocessed - 1,"
+			+ " known = CASE WHEN id = ? THEN true ELSE known END"
+			+ " WHERE what = ?";
+
+	String DB_SETHEADPROCESSEDFORWHAT = "UPDATE loghead SET unprocessed = 0, known = true WHERE what = ?";
+
+	String DB_GETHEAD = "SELECT l.id, l.when, l.who, l.what, l.why, l.how, l.known"
+			+ " FROM loghead h JOIN log l ON l.id = h.id WHERE h.what = ?";
+
+	String DB_GETHEADUNPROCESSED = "SELECT unprocessed FROM loghead WHERE what = ?";
+
+	String DB_GETEXISTINGHEADS = "SELECT what FROM loghead WHERE deleted = false";
+
+	String DB_GETEXISTINGPROCESSEDHEADS = DB_GETEXISTINGHEADS
+			+ " AND known = true";
+
+	String DB_GETUNPROCESSEDHEADS = "SELECT what FROM loghead WHERE known = false";
+
+	String DB_COUNTHEADS = "SELECT COUNT(*) FROM loghead";
+
+	String DB_GETDISTINCTRELPATHS = "SELECT DISTINCT what FROM log";
+
+	/**
+	 * for logs created before the head table
+	 */
+	String DB_REBUILDHEAD = "MERGE INTO loghead"
+			+ " (what, id, when, who, how, deleted, known, unprocessed)"
+			+ " KEY (what)"
+			+ " SELECT what, id, when, who, how, how = '', known,"
+			+ " (SELECT COUNT(*) FROM log u"
+			+ " WHERE u.what = l.what AND u.known = false)"
+			+ " FROM log l WHERE l.what = ?"
+			+ " ORDER BY when DESC, id DESC LIMIT 1";
+
+	/*
+	 * archive: processed, superseded entries are moved out of the log into
+	 * compressed segments that are never changed. logarchived remembers
+	 * which segment holds which entry.
+	 */
+
+	String DB_CREATESEGMENTTABLE = "CREATE TABLE IF NOT EXISTS logsegment ("
+			+ " segment IDENTITY, " + " created TIMESTAMP, " + " data BLOB"
+			+ ")";
+
+	String DB_CREATEARCHIVEDTABLE = "CREATE TABLE IF NOT EXISTS logarchived ("
+			+ " id UUID PRIMARY KEY, " + " what VARCHAR, "
+			+ " segment BIGINT" + ")";
+
+	String DB_CREATEARCHIVEDINDEXWHAT = "CREATE INDEX IF NOT EXISTS archivedwhatindex ON logarchived (what)";
+
+	/**
+	 * processed entries older than the given time that have a newer
+	 * processed entry of the same object, so heads and the last processed
+	 * version stay in the log. Parameter: when, limit
+	 */
+	String DB_GETARCHIVABLE = DB_GETALL
+			+ " l WHERE known = true AND when < ? AND EXISTS"
+			+ " (SELECT id FROM log n WHERE n.what = l.what"
+			+ " AND n.known = true"
+			+ " AND (n.when > l.when OR (n.when = l.when AND n.id > l.id)))"
+			+ DB_ORDERBYWHEN + " LIMIT ?";
+
+	String DB_INSERTSEGMENT = "INSERT INTO logsegment (created, data) VALUES (?, ?)";
+
+	String DB_GETLASTIDENTITY = "CALL IDENTITY()";
+
+	String DB_INSERTARCHIVED = "INSERT INTO logarchived (id, what, segment) VALUES (?, ?, ?)";
+
+	String DB_DELETELOGBYID = "DELETE FROM log WHERE id = ?";
+
+	String DB_GETSEGMENT = "SELECT data FROM logsegment WHERE segment = ?";
+
+	String DB_GETSEGMENTS = "SELECT segment FROM logsegment ORDER BY segment";
+
+	String DB_GETSEGMENTOFID = "SELECT segment FROM logarchived WHERE id = ?";
+
+	String DB_GETSEGMENTSOFWHAT = "SELECT DISTINCT segment FROM logarchived WHERE what = ? ORDER BY segment";
 }
@@ -0,0 +1,33 @@
+package com.jakeapp.violet.di;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.FileLog;
+import com.jakeapp.violet.model.Log;
+
+/**
+ * Creates logs kept in segment files instead of a database. Bind this in
+ * place of {@link LogFactory} to use them.
+ * 
+ * @see FileLog
+ */
+public class FileLogFactory implements ILogFactory {
+
+	@Named("project log directory")
+	@Inject
+	String logDirectory;
+
+	public FileLogFactory(@Named("project log directory") String logDirectory) {
+		this.logDirectory = logDirectory;
+	}
+
+	@Override
+	public Log getLog(ProjectDir dir) {
+		return new FileLog(new File(dir, logDirectory));
+	}
+
+}
@@ -21,9 +21,22 @@ public class FileModule extends AbstractModule {
 				"jake.projects.json");
 		bindConstant().annotatedWith(Names.named("project log filename")).to(
 				".jakelog.db");
+		bindConstant().annotatedWith(Names.named("project log directory")).to(
+				".jakelog");
 		bindConstant().annotatedWith(
 				Names.named("project preferences filename")).to(".jake.config");
+		bindConstant().annotatedWith(Names.named("project cache directory"))
+				.to(".jakecache");
+		bindConstant().annotatedWith(Names.named("project hashes filename"))
+				.to(".jakehashes");
+		bindConstant().annotatedWith(
+				Names.named("global preferences filename")).to("jake.config");
 		bind(IProjectPreferencesFactory.class).to(JsonProjectPreferencesFactory.class);
+		bind(ISignatureCacheFactory.class).to(SignatureCacheFactory.class);
+		bind(IHashCacheFactory.class).to(HashCacheFactory.class);
+		bind(ITransferSpoolFactory.class).to(TransferSpoolFactory.class);
+		bind(IPeerStatsFactory.class).to(PeerStatsFactory.class);
+		bind(IGlobalPreferencesFactory.class).to(JsonGlobalPreferencesFactory.class);
 	}
 
 	@Provides
@@ -0,0 +1,31 @@
+package com.jakeapp.violet.di;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.jakeapp.jake.fss.IFSService;
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.HashCache;
+
+/**
+ * Keeps the hashes of a project next to its log
+ */
+public class HashCacheFactory implements IHashCacheFactory {
+
+	@Named("project hashes filename")
+	@Inject
+	String hashesFilename;
+
+	public HashCacheFactory(
+			@Named("project hashes filename") String hashesFilename) {
+		this.hashesFilename = hashesFilename;
+	}
+
+	@Override
+	public HashCache getHashCache(ProjectDir dir, IFSService fss) {
+		return new HashCache(fss, dir, new File(dir, hashesFilename));
+	}
+
+}
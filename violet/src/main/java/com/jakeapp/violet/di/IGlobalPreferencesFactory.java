@@ -0,0 +1,8 @@
+package com.jakeapp.violet.di;
+
+import com.jakeapp.violet.model.ProjectPreferences;
+
+
+public interface IGlobalPreferencesFactory {
+	ProjectPreferences get();
+}
@@ -0,0 +1,12 @@
+package com.jakeapp.violet.di;
+
+import com.jakeapp.jake.fss.IFSService;
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.HashCache;
+
+
+public interface IHashCacheFactory {
+
+	HashCache getHashCache(ProjectDir dir, IFSService fss);
+
+}
@@ -0,0 +1,11 @@
+package com.jakeapp.violet.di;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.PeerStats;
+
+
+public interface IPeerStatsFactory {
+
+	PeerStats getPeerStats(ProjectDir dir);
+
+}
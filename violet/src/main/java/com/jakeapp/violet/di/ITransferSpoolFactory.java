@@ -0,0 +1,11 @@
+package com.jakeapp.violet.di;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.TransferSpool;
+
+
+public interface ITransferSpoolFactory {
+
+	TransferSpool getTransferSpool(ProjectDir dir);
+
+}
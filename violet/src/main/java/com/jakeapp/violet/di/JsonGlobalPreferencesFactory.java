@@ -0,0 +1,37 @@
+package com.jakeapp.violet.di;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.jakeapp.violet.model.JsonProjectPreferences;
+import com.jakeapp.violet.model.ProjectPreferences;
+
+/**
+ * Keeps the settings of all projects together in the global settings
+ * directory
+ */
+public class JsonGlobalPreferencesFactory implements IGlobalPreferencesFactory {
+
+	@Named("Global Settings Dir")
+	@Inject
+	File globalSettingsDir;
+
+	@Named("global preferences filename")
+	@Inject
+	String globalPreferencesFilename;
+
+	public JsonGlobalPreferencesFactory(
+			@Named("Global Settings Dir") File globalSettingsDir,
+			@Named("global preferences filename") String globalPreferencesFilename) {
+		this.globalSettingsDir = globalSettingsDir;
+		this.globalPreferencesFilename = globalPreferencesFilename;
+	}
+
+	@Override
+	public ProjectPreferences get() {
+		return new JsonProjectPreferences(new File(globalSettingsDir,
+				globalPreferencesFilename));
+	}
+}
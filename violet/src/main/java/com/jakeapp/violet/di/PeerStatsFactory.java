@@ -0,0 +1,32 @@
+package com.jakeapp.violet.di;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.PeerStats;
+
+/**
+ * Keeps the stats of the transfers of a project in its cache directory
+ */
+public class PeerStatsFactory implements IPeerStatsFactory {
+
+	private static final String PEERS = "peers";
+
+	@Named("project cache directory")
+	@Inject
+	String cacheDirectory;
+
+	public PeerStatsFactory(
+			@Named("project cache directory") String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	@Override
+	public PeerStats getPeerStats(ProjectDir dir) {
+		return new PeerStats(new File(new File(dir, cacheDirectory), PEERS));
+	}
+
+}
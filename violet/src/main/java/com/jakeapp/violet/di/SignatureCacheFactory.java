@@ -0,0 +1,33 @@
+package com.jakeapp.violet.di;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.SignatureCache;
+
+/**
+ * Keeps the signatures of a project in its cache directory
+ */
+public class SignatureCacheFactory implements ISignatureCacheFactory {
+
+	private static final String SIGNATURES = "signatures";
+
+	@Named("project cache directory")
+	@Inject
+	String cacheDirectory;
+
+	public SignatureCacheFactory(
+			@Named("project cache directory") String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	@Override
+	public SignatureCache getSignatureCache(ProjectDir dir) {
+		return new SignatureCache(new File(new File(dir, cacheDirectory),
+				SIGNATURES));
+	}
+
+}
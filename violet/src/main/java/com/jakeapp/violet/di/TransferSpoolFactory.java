@@ -0,0 +1,32 @@
+package com.jakeapp.violet.di;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.violet.model.TransferSpool;
+
+/**
+ * Keeps the partial transfers of a project in its cache directory
+ */
+public class TransferSpoolFactory implements ITransferSpoolFactory {
+
+	private static final String SPOOL = "spool";
+
+	@Named("project cache directory")
+	@Inject
+	String cacheDirectory;
+
+	public TransferSpoolFactory(
+			@Named("project cache directory") String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	@Override
+	public TransferSpool getTransferSpool(ProjectDir dir) {
+		return new TransferSpool(new File(new File(dir, cacheDirectory), SPOOL));
+	}
+
+}
@@ -0,0 +1,365 @@
+package com.jakeapp.violet.model;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
+
+/**
+ * A {@link Log} that keeps the ids of all entries, the head of every
+ * <code>JakeObject</code> and the unprocessed entries in memory, so that
+ * existence tests, status lookups and the unprocessed queue are answered
+ * without asking the database. Everything else is passed to the wrapped log.
+ * 
+ * All changes have to go through this object, the wrapped log must not be
+ * modified directly while this is connected. Changes hold a lock of their own
+ * while they write the wrapped log and update the caches, so the caches see
+ * them in the order the log did. Reads lock the caches only while they are
+ * read, never while the wrapped log is used.
+ */
+public class CachingLog implements Log {
+
+	private final Log log;
+
+	/**
+	 * orders the changes, held across the write and the cache update
+	 */
+	private final Object writes = new Object();
+
+	private Set<UUID> ids = new HashSet<UUID>();
+
+	/**
+	 * relpath -&gt; latest entry, processed or not
+	 */
+	private Map<String, LogEntry> heads = new HashMap<String, LogEntry>();
+
+	private SortedSet<LogEntry> unprocessed = new TreeSet<LogEntry>(LogEntry.ORDER);
+
+	/**
+	 * relpath -&gt; unprocessed entries of that object
+	 */
+	private Map<String, SortedSet<LogEntry>> unprocessedByWhat = new HashMap<String, SortedSet<LogEntry>>();
+
+	private Map<UUID, LogEntry> unprocessedById = new HashMap<UUID, LogEntry>();
+
+	/**
+	 * @param log
+	 *            the log that stores the entries
+	 */
+	public CachingLog(Log log) {
+		this.log = log;
+	}
+
+	/**
+	 * connects the wrapped log and reads it once to fill the caches
+	 */
+	@Override
+	public void connect() throws SQLException {
+		log.connect();
+		clear();
+		LogCursor cursor = new LogCursor(log, null, true);
+		while (cursor.hasNext()) {
+			cache(cursor.next());
+		}
+		Iterator<LogEntry> archived = log.getArchived();
+		while (archived.hasNext()) {
+			LogEntry le = archived.next();
+			synchronized (this) {
+				ids.add(le.getId());
+			}
+		}
+	}
+
+	@Override
+	public void disconnect() throws SQLException {
+		log.disconnect();
+		clear();
+	}
+
+	private synchronized void clear() {
+		ids.clear();
+		heads.clear();
+		unprocessed.clear();
+		unprocessedByWhat.clear();
+		unprocessedById.clear();
+	}
+
+	/**
+	 * updates the caches for an entry that was added to the log
+	 */
+	private synchronized void cache(LogEntry le) {
+		// entries handed in by sync carry their own copies of user and path
+		le = log.getInterner().intern(le);
+		ids.add(le.getId());
+		String what = le.getWhat().getRelPath();
+		LogEntry head = heads.get(what);
+		if (head == null || LogEntry.ORDER.compare(head, le) < 0)
+			heads.put(what, le);
+		if (!le.getKnown()) {
+			unprocessed.add(le);
+			SortedSet<LogEntry> ofWhat = unprocessedByWhat.get(what);
+			if (ofWhat == null) {
+				ofWhat = new TreeSet<LogEntry>(LogEntry.ORDER);
+				unprocessedByWhat.put(what, ofWhat);
+			}
+			ofWhat.add(le);
+			unprocessedById.put(le.getId(), le);
+		}
+	}
+
+	/**
+	 * updates the caches for an entry that was set processed in the log
+	 */
+	private synchronized void cacheProcessed(LogEntry le) {
+		unprocessedById.remove(le.getId());
+		unprocessed.remove(le);
+		String what = le.getWhat().getRelPath();
+		SortedSet<LogEntry> ofWhat = unprocessedByWhat.get(what);
+		if (ofWhat != null) {
+			ofWhat.remove(le);
+			if (ofWhat.isEmpty())
+				unprocessedByWhat.remove(what);
+		}
+		LogEntry head = heads.get(what);
+		if (head != null && head.getId().equals(le.getId()))
+			heads.put(what, processed(head));
+	}
+
+	private static LogEntry processed(LogEntry le) {
+		return new LogEntry(le.getId(), le.getWhen(), le.getWho(),
+				le.getWhat(), le.getWhy(), le.getHow(), true);
+	}
+
+	private static boolean isDelete(LogEntry le) {
+		return le.getHow() == null || le.getHow().isEmpty();
+	}
+
+	@Override
+	public void addModificationListener(ILogModificationListener l) {
+		log.addModificationListener(l);
+	}
+
+	@Override
+	public void removeModificationListener(ILogModificationListener l) {
+		log.removeModificationListener(l);
+	}
+
+	@Override
+	public void add(LogEntry logEntry) {
+		synchronized (writes) {
+			log.add(logEntry);
+			cache(logEntry);
+		}
+	}
+
+	@Override
+	public int addAll(Collection<LogEntry> logEntries) {
+		synchronized (writes) {
+			// most entries of a sync are already known, don't ask the database
+			List<LogEntry> unknown = new ArrayList<LogEntry>();
+			synchronized (this) {
+				for (LogEntry le : logEntries) {
+					if (!ids.contains(le.getId()))
+						unknown.add(le);
+				}
+			}
+			if (unknown.isEmpty())
+				return 0;
+			int added = log.addAll(unknown);
+			synchronized (this) {
+				for (LogEntry le : unknown) {
+					// the first of duplicate ids is the one that was stored
+					if (!ids.contains(le.getId()))
+						cache(le);
+				}
+			}
+			return added;
+		}
+	}
+
+	@Override
+	public LogEntry getById(UUID uuid, boolean includeUnprocessed)
+			throws NoSuchLogEntryException {
+		synchronized (this) {
+			if (!ids.contains(uuid))
+				throw new NoSuchLogEntryException();
+			LogEntry le = unprocessedById.get(uuid);
+			if (le != null) {
+				if (includeUnprocessed)
+					return le;
+				throw new NoSuchLogEntryException();
+			}
+		}
+		return log.getById(uuid, false);
+	}
+
+	@Override
+	public void setProcessed(LogEntry logEntry) throws NoSuchLogEntryException {
+		synchronized (writes) {
+			LogEntry le;
+			synchronized (this) {
+				if (!ids.contains(logEntry.getId()))
+					throw new NoSuchLogEntryException();
+				le = unprocessedById.get(logEntry.getId());
+			}
+			if (le == null)
+				// already processed
+				return;
+			log.setProcessed(le);
+			cacheProcessed(le);
+		}
+	}
+
+	@Override
+	public void setAllPreviousProcessed(LogEntry logEntry) {
+		synchronized (writes) {
+			log.setAllPreviousProcessed(logEntry);
+			synchronized (this) {
+				SortedSet<LogEntry> ofWhat = unprocessedByWhat.get(logEntry
+						.getWhat().getRelPath());
+				if (ofWhat != null) {
+					for (LogEntry le : new ArrayList<LogEntry>(ofWhat)) {
+						cacheProcessed(le);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized List<LogEntry> getUnprocessed() {
+		return new ArrayList<LogEntry>(unprocessed);
+	}
+
+	@Override
+	public synchronized List<LogEntry> getUnprocessed(JakeObject jakeObject) {
+		SortedSet<LogEntry> ofWhat = unprocessedByWhat.get(jakeObject
+				.getRelPath());
+		if (ofWhat == null)
+			return new ArrayList<LogEntry>();
+		return new ArrayList<LogEntry>(ofWhat);
+	}
+
+	@Override
+	public synchronized boolean hasUnprocessed(JakeObject jakeObject) {
+		return unprocessedByWhat.containsKey(jakeObject.getRelPath());
+	}
+
+	@Override
+	public synchronized LogEntry getNextUnprocessed()
+			throws NoSuchLogEntryException {
+		if (unprocessed.isEmpty())
+			throw new NoSuchLogEntryException();
+		return unprocessed.first();
+	}
+
+	@Override
+	public LogEntry getLastOfJakeObject(JakeObject jakeObject,
+			boolean includeUnprocessed) throws NoSuchLogEntryException {
+		LogEntry head;
+		synchronized (this) {
+			head = heads.get(jakeObject.getRelPath());
+		}
+		if (head == null)
+			throw new NoSuchLogEntryException();
+		if (includeUnprocessed || head.getKnown())
+			return head;
+		return log.getLastOfJakeObject(jakeObject, false);
+	}
+
+	@Override
+	public List<JakeObject> getExistingFileObjects(boolean includeUnprocessed) {
+		List<JakeObject> all = new ArrayList<JakeObject>();
+		List<LogEntry> heads;
+		synchronized (this) {
+			heads = new ArrayList<LogEntry>(this.heads.values());
+		}
+		for (LogEntry head : heads) {
+			if (includeUnprocessed || head.getKnown()) {
+				if (!isDelete(head))
+					all.add(head.getWhat());
+			} else {
+				// few: the head is not processed yet
+				try {
+					if (!isDelete(log.getLastOfJakeObject(head.getWhat(),
+							false)))
+						all.add(head.getWhat());
+				} catch (NoSuchLogEntryException e) {
+					// only known remotely
+				}
+			}
+		}
+		return all;
+	}
+
+	@Override
+	public List<LogEntry> getAll(boolean includeUnprocessed) {
+		return log.getAll(includeUnprocessed);
+	}
+
+	@Override
+	public List<LogEntry> getAllOfJakeObject(JakeObject jakeObject,
+			boolean includeUnprocessed) {
+		return log.getAllOfJakeObject(jakeObject, includeUnprocessed);
+	}
+
+	@Override
+	public LogEntry getFirstEntry() throws NoSuchLogEntryException {
+		return log.getFirstEntry();
+	}
+
+	@Override
+	public List<LogEntry> getPage(JakeObject jakeObject,
+			boolean includeUnprocessed, boolean newestFirst, int offset,
+			int limit) {
+		return log.getPage(jakeObject, includeUnprocessed, newestFirst,
+				offset, limit);
+	}
+
+	@Override
+	public List<LogEntry> getPageAfter(JakeObject jakeObject,
+			boolean includeUnprocessed, LogEntry after, int limit) {
+		return log.getPageAfter(jakeObject, includeUnprocessed, after, limit);
+	}
+
+	@Override
+	public long getLastSequence() {
+		return log.getLastSequence();
+	}
+
+	@Override
+	public List<LogEntry> getAllSince(long after, long upTo) {
+		return log.getAllSince(after, upTo);
+	}
+
+	/**
+	 * archived entries are processed and never a head, so the caches stay
+	 * valid
+	 */
+	@Override
+	public int archive(Timestamp before) {
+		return log.archive(before);
+	}
+
+	@Override
+	public Iterator<LogEntry> getArchived() {
+		return log.getArchived();
+	}
+
+	@Override
+	public Interner getInterner() {
+		return log.getInterner();
+	}
+
+}
@@ -0,0 +1,248 @@
+package com.jakeapp.violet.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The content-defined chunks of a version of a file, so that a version can be
+ * downloaded chunk by chunk from several peers at once.
+ * 
+ * A chunk ends where a rolling hash over the last bytes has its top bits
+ * cleared, so the boundaries only depend on the content around them. An
+ * insertion only changes the chunks around it, and the other chunks can be
+ * taken from the version we already have. Every peer cuts a version into the
+ * same chunks.
+ */
+public class ChunkManifest {
+
+	/**
+	 * smallest chunk, except for the last one
+	 */
+	public static final int MIN_CHUNK = 256 * 1024;
+
+	/**
+	 * largest chunk
+	 */
+	public static final int MAX_CHUNK = 4 * 1024 * 1024;
+
+	/**
+	 * largest run of consecutive chunks requested at once
+	 */
+	public static final int MAX_RUN = 16 * 1024 * 1024;
+
+	/**
+	 * 20 bits, about 1 MB per chunk
+	 */
+	private static final long BOUNDARY_MASK = 0xfffff00000000000L;
+
+	private static final String DIGEST = "SHA-256";
+
+	/**
+	 * random but fixed, all peers must use the same
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x6a616b65L);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	/**
+	 * a part of the file
+	 */
+	public static class Chunk {
+
+		private final long offset;
+
+		private final int length;
+
+		private final String digest;
+
+		public Chunk(long offset, int length, String digest) {
+			this.offset = offset;
+			this.length = length;
+			this.digest = digest;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the hex SHA-256 of the content
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * @return whether b holds the content of this chunk
+		 */
+		public boolean matches(byte[] b) {
+			return b.length == length && digest.equals(digest(b, b.length));
+		}
+
+		@Override
+		public String toString() {
+			return offset + "+" + length + ":" + digest;
+		}
+	}
+
+	private final String hash;
+
+	private final List<Chunk> chunks;
+
+	/**
+	 * @param hash
+	 *            the hash of the whole version, as in the log entry
+	 * @param chunks
+	 *            in order, without gaps
+	 */
+	public ChunkManifest(String hash, List<Chunk> chunks) {
+		this.hash = hash;
+		this.chunks = Collections.unmodifiableList(new ArrayList<Chunk>(
+				chunks));
+	}
+
+	/**
+	 * cuts the content into chunks
+	 * 
+	 * @param hash
+	 *            the hash of the content, as in the log entry
+	 * @param is
+	 *            the content. Not closed.
+	 * @throws IOException
+	 */
+	public static ChunkManifest of(String hash, InputStream is)
+			throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		byte[] buf = new byte[MAX_CHUNK];
+		long offset = 0;
+		int length = 0;
+		long h = 0;
+		int b;
+		byte[] in = new byte[64 * 1024];
+		int n;
+		while ((n = is.read(in)) >= 0) {
+			for (int i = 0; i < n; i++) {
+				b = in[i] & 0xff;
+				buf[length++] = (byte) b;
+				h = (h << 1) + GEAR[b];
+				if ((length >= MIN_CHUNK && (h & BOUNDARY_MASK) == 0)
+						|| length == MAX_CHUNK) {
+					chunks.add(new Chunk(offset, length, digest(buf, length)));
+					offset += length;
+					length = 0;
+					h = 0;
+				}
+			}
+		}
+		if (length > 0)
+			chunks.add(new Chunk(offset, length, digest(buf, length)));
+		return new ChunkManifest(hash, chunks);
+	}
+
+	/**
+	 * @return the hash of the whole version
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return the length of the whole version
+	 */
+	public long getLength() {
+		if (chunks.isEmpty())
+			return 0;
+		Chunk last = chunks.get(chunks.size() - 1);
+		return last.getOffset() + last.getLength();
+	}
+
+	/**
+	 * @return digest -&gt; a chunk with that content
+	 */
+	public Map<String, Chunk> getChunksByDigest() {
+		Map<String, Chunk> byDigest = new HashMap<String, Chunk>();
+		for (Chunk c : chunks)
+			byDigest.put(c.getDigest(), c);
+		return byDigest;
+	}
+
+	/**
+	 * writes the manifest, see {@link #read(InputStream)}
+	 */
+	public void write(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeUTF(hash);
+		out.writeInt(chunks.size());
+		for (Chunk c : chunks) {
+			out.writeLong(c.getOffset());
+			out.writeInt(c.getLength());
+			out.writeUTF(c.getDigest());
+		}
+		out.flush();
+	}
+
+	/**
+	 * reads a manifest and checks that its chunks follow one another
+	 * 
+	 * @throws IOException
+	 *             if it is cut off or malformed
+	 */
+	public static ChunkManifest read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		String hash = in.readUTF();
+		int count = in.readInt();
+		if (count < 0)
+			throw new IOException("malformed manifest");
+		List<Chunk> chunks = new ArrayList<Chunk>(Math.min(count, 1024));
+		long offset = 0;
+		for (int i = 0; i < count; i++) {
+			Chunk c = new Chunk(in.readLong(), in.readInt(), in.readUTF());
+			if (c.getOffset() != offset || c.getLength() <= 0
+					|| c.getLength() > MAX_CHUNK)
+				throw new IOException("malformed manifest");
+			offset += c.getLength();
+			chunks.add(c);
+		}
+		return new ChunkManifest(hash, chunks);
+	}
+
+	private static String digest(byte[] b, int length) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(b, 0, length);
+		byte[] d = md.digest();
+		StringBuilder sb = new StringBuilder(d.length * 2);
+		for (byte x : d) {
+			sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(x & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
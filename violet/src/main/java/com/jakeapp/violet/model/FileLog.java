@@ -0,0 +1,873 @@
+package com.jakeapp.violet.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.violet.model.ILogModificationListener.ModifyActions;
+import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
+
+/**
+ * A {@link Log} stored in append-only segment files instead of a database.
+ * 
+ * Every change is a record appended to the current segment: a new entry, an
+ * entry set processed or all entries of an object set processed. A record
+ * is its length, a CRC32 and the payload. Full segments are read
+ * memory-mapped, each mapped once. The current segment still grows and is
+ * read through its channel.
+ * The indexes (by id, by path, by time, the heads and the unprocessed
+ * entries) are kept in memory; only the locations of the entries are kept,
+ * not their contents.
+ * 
+ * On {@link #disconnect()} the indexes are written to a checkpoint. On
+ * {@link #connect()} the checkpoint is loaded and only the records appended
+ * after it are scanned, or all segments are scanned if there is no usable
+ * checkpoint. A torn record at the end of the last segment (a crash while
+ * appending) is cut off.
+ * 
+ * There is nothing to archive: {@link #archive(Timestamp)} does nothing.
+ * 
+ * @see FileLogMigration
+ */
+public class FileLog implements Log {
+
+	private static Logger log = Logger.getLogger(FileLog.class);
+
+	/**
+	 * a new segment is started when the current one is this large
+	 */
+	private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final String CHECKPOINT = "checkpoint";
+
+	private static final int CHECKPOINT_VERSION = 1;
+
+	private static final int HEADER = 8;
+
+	private static final byte ENTRY = 1;
+
+	private static final byte PROCESSED = 2;
+
+	private static final byte ALL_PROCESSED = 3;
+
+	/**
+	 * locations are the segment number in the upper bits and the offset in
+	 * the lower bits
+	 */
+	private static final int OFFSET_BITS = 40;
+
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	/**
+	 * what is kept in memory of an entry
+	 */
+	private static class Slot {
+
+		final UUID id;
+
+		final long when;
+
+		final String what;
+
+		final long location;
+
+		boolean known;
+
+		Slot(UUID id, long when, String what, long location, boolean known) {
+			this.id = id;
+			this.when = when;
+			this.what = what;
+			this.location = location;
+			this.known = known;
+		}
+	}
+
+	private static final Comparator<Slot> ORDER = new Comparator<Slot>() {
+
+		@Override
+		public int compare(Slot a, Slot b) {
+			if (a.when != b.when)
+				return a.when < b.when ? -1 : 1;
+			return a.id.compareTo(b.id);
+		}
+	};
+
+	private final File dir;
+
+	private Set<ILogModificationListener> listeners = new HashSet<ILogModificationListener>();
+
+	private final Interner interner = new Interner();
+
+	private Map<UUID, Slot> byId = new HashMap<UUID, Slot>();
+
+	/**
+	 * in the order they were added, index + 1 is the sequence number
+	 */
+	private List<Slot> bySeq = new ArrayList<Slot>();
+
+	private SortedSet<Slot> byWhen = new TreeSet<Slot>(ORDER);
+
+	/**
+	 * relpath -&gt; entries of that object, in the order they were added
+	 */
+	private Map<String, List<Slot>> byWhat = new HashMap<String, List<Slot>>();
+
+	private Map<String, Slot> heads = new HashMap<String, Slot>();
+
+	private SortedSet<Slot> unprocessed = new TreeSet<Slot>(ORDER);
+
+	private Map<String, SortedSet<Slot>> unprocessedByWhat = new HashMap<String, SortedSet<Slot>>();
+
+	private Map<Integer, MappedByteBuffer> maps = new HashMap<Integer, MappedByteBuffer>();
+
+	private int segment;
+
+	private RandomAccessFile segmentFile;
+
+	private FileChannel channel;
+
+	private long position;
+
+	/**
+	 * @param dir
+	 *            the directory holding the segments
+	 */
+	public FileLog(File dir) {
+		this.dir = dir;
+	}
+
+	private File getSegmentFile(int n) {
+		return new File(dir, SEGMENT_PREFIX + String.format("%06d", n)
+				+ SEGMENT_SUFFIX);
+	}
+
+	private static long location(int segment, long offset) {
+		return ((long) segment << OFFSET_BITS) | offset;
+	}
+
+	@Override
+	public synchronized void connect() throws SQLException {
+		dir.mkdirs();
+		clear();
+		try {
+			int from = 1;
+			long offset = 0;
+			File checkpoint = new File(dir, CHECKPOINT);
+			if (checkpoint.exists()) {
+				try {
+					long[] at = readCheckpoint(checkpoint);
+					from = (int) at[0];
+					offset = at[1];
+				} catch (IOException e) {
+					log.warn("checkpoint unusable, scanning the log", e);
+					clear();
+					from = 1;
+					offset = 0;
+				}
+			}
+			segment = from;
+			position = offset;
+			for (int n = from; getSegmentFile(n).exists(); n++) {
+				segment = n;
+				position = recover(n, n == from ? offset : 0);
+			}
+			segmentFile = new RandomAccessFile(getSegmentFile(segment), "rw");
+			channel = segmentFile.getChannel();
+			channel.position(position);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized void disconnect() throws SQLException {
+		if (channel == null)
+			return;
+		try {
+			channel.force(false);
+			writeCheckpoint();
+			segmentFile.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			channel = null;
+			segmentFile = null;
+			clear();
+		}
+	}
+
+	private void clear() {
+		byId.clear();
+		bySeq.clear();
+		byWhen.clear();
+		byWhat.clear();
+		heads.clear();
+		unprocessed.clear();
+		unprocessedByWhat.clear();
+		maps.clear();
+	}
+
+	/*
+	 * recovery
+	 */
+
+	/**
+	 * reads the records of a segment into the indexes. A torn record at the
+	 * end of the last segment is cut off.
+	 * 
+	 * @return the end of the valid records
+	 */
+	private long recover(int n, long offset) throws IOException {
+		File f = getSegmentFile(n);
+		if (f.length() < offset)
+			throw new IOException(f + " is shorter than the checkpoint");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f)));
+		CRC32 crc = new CRC32();
+		long end = offset;
+		try {
+			in.skipBytes((int) offset);
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] payload;
+				try {
+					int checksum = in.readInt();
+					if (length <= 0 || end + HEADER + length > f.length())
+						break;
+					payload = new byte[length];
+					in.readFully(payload);
+					crc.reset();
+					crc.update(payload);
+					if ((int) crc.getValue() != checksum)
+						break;
+				} catch (EOFException e) {
+					break;
+				}
+				apply(location(n, end), payload);
+				end += HEADER + length;
+			}
+		} finally {
+			in.close();
+		}
+		if (end < f.length()) {
+			if (getSegmentFile(n + 1).exists())
+				throw new IOException(f + " is damaged at " + end);
+			log.warn("cutting off torn record at " + end + " of " + f);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(end);
+			} finally {
+				raf.close();
+			}
+		}
+		return end;
+	}
+
+	private void apply(long location, byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		byte type = in.readByte();
+		if (type == ENTRY) {
+			UUID id = new UUID(in.readLong(), in.readLong());
+			long when = in.readLong();
+			boolean known = in.readBoolean();
+			in.readUTF(); // who
+			String what = in.readUTF();
+			index(new Slot(id, when, what, location, known));
+		} else if (type == PROCESSED) {
+			Slot s = byId.get(new UUID(in.readLong(), in.readLong()));
+			if (s != null)
+				indexProcessed(s);
+		} else if (type == ALL_PROCESSED) {
+			indexAllProcessed(in.readUTF());
+		} else {
+			throw new IOException("unknown record " + type);
+		}
+	}
+
+	/*
+	 * checkpoint
+	 */
+
+	private void writeCheckpoint() throws IOException {
+		File tmp = new File(dir, CHECKPOINT + ".tmp");
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeInt(segment);
+			out.writeLong(position);
+			out.writeInt(bySeq.size());
+			for (Slot s : bySeq) {
+				out.writeLong(s.id.getMostSignificantBits());
+				out.writeLong(s.id.getLeastSignificantBits());
+				out.writeLong(s.when);
+				out.writeUTF(s.what);
+				out.writeLong(s.location);
+				out.writeBoolean(s.known);
+			}
+		} finally {
+			out.close();
+		}
+		File checkpoint = new File(dir, CHECKPOINT);
+		checkpoint.delete();
+		if (!tmp.renameTo(checkpoint))
+			throw new IOException("could not write " + checkpoint);
+	}
+
+	/**
+	 * @return segment and offset the checkpoint was written at
+	 */
+	private long[] readCheckpoint(File checkpoint) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(checkpoint))));
+		try {
+			if (in.readInt() != CHECKPOINT_VERSION)
+				throw new IOException("unknown checkpoint version");
+			long[] at = { in.readInt(), in.readLong() };
+			if (getSegmentFile((int) at[0]).length() < at[1])
+				throw new IOException("checkpoint is ahead of the log");
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				UUID id = new UUID(in.readLong(), in.readLong());
+				long when = in.readLong();
+				String what = in.readUTF();
+				long location = in.readLong();
+				index(new Slot(id, when, what, location, in.readBoolean()));
+			}
+			return at;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * indexes
+	 */
+
+	private void index(Slot s) {
+		if (byId.containsKey(s.id))
+			return;
+		// share the path strings
+		List<Slot> ofWhat = byWhat.get(s.what);
+		if (ofWhat == null) {
+			ofWhat = new ArrayList<Slot>();
+			byWhat.put(s.what, ofWhat);
+		} else {
+			s = new Slot(s.id, s.when, ofWhat.get(0).what, s.location, s.known);
+		}
+		ofWhat.add(s);
+		byId.put(s.id, s);
+		bySeq.add(s);
+		byWhen.add(s);
+		Slot head = heads.get(s.what);
+		if (head == null || ORDER.compare(head, s) < 0)
+			heads.put(s.what, s);
+		if (!s.known) {
+			unprocessed.add(s);
+			SortedSet<Slot> u = unprocessedByWhat.get(s.what);
+			if (u == null) {
+				u = new TreeSet<Slot>(ORDER);
+				unprocessedByWhat.put(s.what, u);
+			}
+			u.add(s);
+		}
+	}
+
+	private void indexProcessed(Slot s) {
+		if (s.known)
+			return;
+		s.known = true;
+		unprocessed.remove(s);
+		SortedSet<Slot> u = unprocessedByWhat.get(s.what);
+		if (u != null) {
+			u.remove(s);
+			if (u.isEmpty())
+				unprocessedByWhat.remove(s.what);
+		}
+	}
+
+	private void indexAllProcessed(String what) {
+		SortedSet<Slot> u = unprocessedByWhat.remove(what);
+		if (u == null)
+			return;
+		for (Slot s : u) {
+			s.known = true;
+			unprocessed.remove(s);
+		}
+	}
+
+	/*
+	 * writing
+	 */
+
+	/**
+	 * @return the location of the record
+	 */
+	private long append(byte[] payload) throws IOException {
+		if (channel == null)
+			throw new IllegalStateException("not connected");
+		if (position >= MAX_SEGMENT_SIZE) {
+			channel.force(false);
+			segmentFile.close();
+			segment++;
+			segmentFile = new RandomAccessFile(getSegmentFile(segment), "rw");
+			channel = segmentFile.getChannel();
+			position = 0;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer b = ByteBuffer.allocate(HEADER + payload.length);
+		b.putInt(payload.length);
+		b.putInt((int) crc.getValue());
+		b.put(payload);
+		b.flip();
+		long location = location(segment, position);
+		channel.position(position);
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+		position += HEADER + payload.length;
+		return location;
+	}
+
+	private static byte[] encode(LogEntry le) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(ENTRY);
+		out.writeLong(le.getId().getMostSignificantBits());
+		out.writeLong(le.getId().getLeastSignificantBits());
+		out.writeLong(le.getWhenMillis());
+		out.writeBoolean(le.getKnown());
+		out.writeUTF(le.getWho().getUserId());
+		out.writeUTF(le.getWhat().getRelPath());
+		out.writeUTF(le.getWhy());
+		out.writeUTF(le.getHow());
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static byte[] encodeProcessed(UUID id) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(PROCESSED);
+		out.writeLong(id.getMostSignificantBits());
+		out.writeLong(id.getLeastSignificantBits());
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static byte[] encodeAllProcessed(String what) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(ALL_PROCESSED);
+		out.writeUTF(what);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @return whether it was new
+	 */
+	private boolean write(LogEntry le) throws IOException {
+		if (byId.containsKey(le.getId()))
+			return false;
+		long location = append(encode(le));
+		index(new Slot(le.getId(), le.getWhenMillis(), le.getWhat()
+				.getRelPath(), location, le.getKnown()));
+		return true;
+	}
+
+	/*
+	 * reading
+	 */
+
+	/**
+	 * @return the segment, mapped. Only for segments that don't grow any
+	 *         more, a mapping can't be released before it is collected.
+	 */
+	private MappedByteBuffer getMap(int n) throws IOException {
+		MappedByteBuffer map = maps.get(n);
+		if (map == null) {
+			RandomAccessFile raf = new RandomAccessFile(getSegmentFile(n), "r");
+			try {
+				map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+						raf.length());
+			} finally {
+				raf.close();
+			}
+			maps.put(n, map);
+		}
+		return map;
+	}
+
+	private LogEntry read(Slot s) {
+		int n = (int) (s.location >>> OFFSET_BITS);
+		long offset = s.location & OFFSET_MASK;
+		try {
+			byte[] payload = readPayload(n, offset);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					payload));
+			in.readByte();
+			long msb = in.readLong();
+			long lsb = in.readLong();
+			long when = in.readLong();
+			in.readBoolean();
+			User who = interner.user(in.readUTF());
+			JakeObject what = interner.jakeObject(in.readUTF());
+			String why = in.readUTF();
+			String how = in.readUTF();
+			return new LogEntry(msb, lsb, when, who, what, why, how, s.known);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the payload of the record at the offset of the segment
+	 */
+	private byte[] readPayload(int n, long offset) throws IOException {
+		if (n == segment) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			readFully(header, offset);
+			byte[] payload = new byte[header.getInt(0)];
+			readFully(ByteBuffer.wrap(payload), offset + HEADER);
+			return payload;
+		}
+		ByteBuffer b = getMap(n).duplicate();
+		byte[] payload = new byte[b.getInt((int) offset)];
+		b.position((int) offset + HEADER);
+		b.get(payload);
+		return payload;
+	}
+
+	/**
+	 * reads from the current segment, without moving its position
+	 */
+	private void readFully(ByteBuffer b, long from) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, from + b.position()) < 0)
+				throw new EOFException("record cut off");
+		}
+	}
+
+	private List<LogEntry> read(Collection<Slot> slots) {
+		List<LogEntry> all = new ArrayList<LogEntry>(slots.size());
+		for (Slot s : slots) {
+			all.add(read(s));
+		}
+		return all;
+	}
+
+	private List<LogEntry> read(Iterator<Slot> slots,
+			boolean includeUnprocessed, int offset, int limit) {
+		List<LogEntry> page = new ArrayList<LogEntry>();
+		while (slots.hasNext() && page.size() < limit) {
+			Slot s = slots.next();
+			if (!includeUnprocessed && !s.known)
+				continue;
+			if (offset > 0)
+				offset--;
+			else
+				page.add(read(s));
+		}
+		return page;
+	}
+
+	/**
+	 * @return the entries of the object, or all, in time order
+	 */
+	private List<Slot> getSorted(JakeObject jakeObject) {
+		if (jakeObject == null)
+			return new ArrayList<Slot>(byWhen);
+		List<Slot> ofWhat = byWhat.get(jakeObject.getRelPath());
+		if (ofWhat == null)
+			return new ArrayList<Slot>();
+		List<Slot> sorted = new ArrayList<Slot>(ofWhat);
+		Collections.sort(sorted, ORDER);
+		return sorted;
+	}
+
+	private static boolean isDelete(LogEntry le) {
+		return le.getHow() == null || le.getHow().isEmpty();
+	}
+
+	/*
+	 * Log
+	 */
+
+	@Override
+	public synchronized void addModificationListener(ILogModificationListener l) {
+		this.listeners.add(l);
+	}
+
+	@Override
+	public synchronized void removeModificationListener(
+			ILogModificationListener l) {
+		this.listeners.remove(l);
+	}
+
+	@Override
+	public synchronized void add(LogEntry logEntry) {
+		try {
+			write(logEntry);
+			channel.force(false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized int addAll(Collection<LogEntry> logEntries) {
+		int added = 0;
+		try {
+			for (LogEntry le : logEntries) {
+				if (write(le))
+					added++;
+			}
+			if (added > 0)
+				channel.force(false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return added;
+	}
+
+	@Override
+	public synchronized LogEntry getById(UUID uuid, boolean includeUnprocessed)
+			throws NoSuchLogEntryException {
+		Slot s = byId.get(uuid);
+		if (s == null || (!includeUnprocessed && !s.known))
+			throw new NoSuchLogEntryException();
+		return read(s);
+	}
+
+	@Override
+	public synchronized void setProcessed(LogEntry logEntry)
+			throws NoSuchLogEntryException {
+		Slot s = byId.get(logEntry.getId());
+		if (s == null)
+			throw new NoSuchLogEntryException();
+		if (s.known)
+			return;
+		try {
+			append(encodeProcessed(s.id));
+			channel.force(false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		indexProcessed(s);
+	}
+
+	@Override
+	public synchronized List<LogEntry> getUnprocessed() {
+		return read(unprocessed);
+	}
+
+	@Override
+	public synchronized List<LogEntry> getUnprocessed(JakeObject jakeObject) {
+		SortedSet<Slot> u = unprocessedByWhat.get(jakeObject.getRelPath());
+		if (u == null)
+			return new ArrayList<LogEntry>();
+		return read(u);
+	}
+
+	@Override
+	public synchronized boolean hasUnprocessed(JakeObject jakeObject) {
+		return unprocessedByWhat.containsKey(jakeObject.getRelPath());
+	}
+
+	@Override
+	public synchronized LogEntry getNextUnprocessed()
+			throws NoSuchLogEntryException {
+		if (unprocessed.isEmpty())
+			throw new NoSuchLogEntryException();
+		return read(unprocessed.first());
+	}
+
+	@Override
+	public synchronized List<LogEntry> getAll(boolean includeUnprocessed) {
+		return read(byWhen.iterator(), includeUnprocessed, 0,
+				Integer.MAX_VALUE);
+	}
+
+	@Override
+	public synchronized List<LogEntry> getAllOfJakeObject(
+			JakeObject jakeObject, boolean includeUnprocessed) {
+		return read(getSorted(jakeObject).iterator(), includeUnprocessed, 0,
+				Integer.MAX_VALUE);
+	}
+
+	@Override
+	public synchronized LogEntry getLastOfJakeObject(JakeObject jakeObject,
+			boolean includeUnprocessed) throws NoSuchLogEntryException {
+		Slot head = heads.get(jakeObject.getRelPath());
+		if (head == null)
+			throw new NoSuchLogEntryException();
+		if (includeUnprocessed || head.known)
+			return read(head);
+		Slot last = null;
+		for (Slot s : byWhat.get(head.what)) {
+			if (s.known && (last == null || ORDER.compare(last, s) < 0))
+				last = s;
+		}
+		if (last == null)
+			throw new NoSuchLogEntryException();
+		return read(last);
+	}
+
+	@Override
+	public synchronized List<JakeObject> getExistingFileObjects(
+			boolean includeUnprocessed) {
+		List<JakeObject> all = new ArrayList<JakeObject>();
+		for (Slot head : heads.values()) {
+			try {
+				LogEntry le = getLastOfJakeObject(interner.jakeObject(head.what),
+						includeUnprocessed);
+				if (!isDelete(le))
+					all.add(le.getWhat());
+			} catch (NoSuchLogEntryException e) {
+				// only known remotely
+			}
+		}
+		return all;
+	}
+
+	@Override
+	public synchronized LogEntry getFirstEntry()
+			throws NoSuchLogEntryException {
+		if (byWhen.isEmpty())
+			throw new NoSuchLogEntryException();
+		return read(byWhen.first());
+	}
+
+	@Override
+	public synchronized List<LogEntry> getPage(JakeObject jakeObject,
+			boolean includeUnprocessed, boolean newestFirst, int offset,
+			int limit) {
+		List<Slot> sorted = getSorted(jakeObject);
+		if (newestFirst)
+			Collections.reverse(sorted);
+		return read(sorted.iterator(), includeUnprocessed, offset, limit);
+	}
+
+	@Override
+	public synchronized List<LogEntry> getPageAfter(JakeObject jakeObject,
+			boolean includeUnprocessed, LogEntry after, int limit) {
+		Iterator<Slot> slots;
+		if (jakeObject == null) {
+			if (after == null)
+				slots = byWhen.iterator();
+			else
+				slots = byWhen.tailSet(
+						new Slot(after.getId(), after.getWhenMillis(),
+								null, 0, true)).iterator();
+		} else {
+			slots = getSorted(jakeObject).iterator();
+		}
+		if (after != null) {
+			// skip up to and including after
+			List<Slot> rest = new ArrayList<Slot>();
+			Slot key = new Slot(after.getId(), after.getWhenMillis(),
+					null, 0, true);
+			while (slots.hasNext() && rest.size() < limit) {
+				Slot s = slots.next();
+				if (ORDER.compare(s, key) > 0
+						&& (includeUnprocessed || s.known))
+					rest.add(s);
+			}
+			return read(rest);
+		}
+		return read(slots, includeUnprocessed, 0, limit);
+	}
+
+	@Override
+	public void setAllPreviousProcessed(LogEntry logEntry) {
+		String what = logEntry.getWhat().getRelPath();
+		synchronized (this) {
+			try {
+				append(encodeAllProcessed(what));
+				channel.force(false);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			indexAllProcessed(what);
+		}
+		for (ILogModificationListener l : this.listeners) {
+			l.logModified(logEntry.getWhat(), ModifyActions.MODIFIED);
+		}
+	}
+
+	@Override
+	public synchronized long getLastSequence() {
+		return bySeq.size();
+	}
+
+	@Override
+	public synchronized List<LogEntry> getAllSince(long after, long upTo) {
+		int from = (int) Math.min(after, bySeq.size());
+		int to = (int) Math.min(upTo, bySeq.size());
+		if (from >= to)
+			return new ArrayList<LogEntry>();
+		return read(bySeq.subList(from, to));
+	}
+
+	/**
+	 * the segments are already cheap to keep, nothing is archived
+	 */
+	@Override
+	public int archive(Timestamp before) {
+		return 0;
+	}
+
+	@Override
+	public Iterator<LogEntry> getArchived() {
+		return Collections.<LogEntry> emptyList().iterator();
+	}
+
+	@Override
+	public Interner getInterner() {
+		return interner;
+	}
+
+}
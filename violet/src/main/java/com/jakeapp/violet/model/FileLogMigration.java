@@ -0,0 +1,82 @@
+package com.jakeapp.violet.model;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies a log into another one, e.g. an existing <code>.jakelog.db</code>
+ * into a {@link FileLog}. The archive is copied first, then the log in time
+ * order. Entries already in the target are skipped, so an interrupted
+ * migration can be run again.
+ */
+public class FileLogMigration {
+
+	private static Logger log = Logger.getLogger(FileLogMigration.class);
+
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * @param from
+	 *            connected
+	 * @param to
+	 *            connected
+	 * @return the number of entries copied
+	 */
+	public static int migrate(Log from, Log to) {
+		int copied = copy(from.getArchived(), to);
+		copied += copy(new LogCursor(from, null, true), to);
+		return copied;
+	}
+
+	private static int copy(Iterator<LogEntry> entries, Log to) {
+		int copied = 0;
+		List<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE);
+		while (entries.hasNext()) {
+			batch.add(entries.next());
+			if (batch.size() == BATCH_SIZE) {
+				copied += to.addAll(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			copied += to.addAll(batch);
+		return copied;
+	}
+
+	/**
+	 * @param args
+	 *            the <code>.jakelog.db</code> file and the directory of the
+	 *            new log
+	 */
+	public static void main(String[] args) throws SQLException {
+		if (args.length != 2) {
+			System.err.println("usage: " + FileLogMigration.class.getName()
+					+ " <.jakelog.db> <target directory>");
+			System.exit(1);
+		}
+		File db = new File(args[0]);
+		// the h2 driver appends the extension itself
+		String path = db.getPath();
+		if (path.endsWith(".h2.db"))
+			path = path.substring(0, path.length() - ".h2.db".length());
+		LogImpl from = new LogImpl(new File(path));
+		from.setDbDriver("h2");
+		from.setDbUsername("sa");
+		from.setDbPassword("");
+		FileLog to = new FileLog(new File(args[1]));
+		from.connect();
+		to.connect();
+		try {
+			int copied = migrate(from, to);
+			log.info("copied " + copied + " log entries");
+		} finally {
+			to.disconnect();
+			from.disconnect();
+		}
+	}
+}
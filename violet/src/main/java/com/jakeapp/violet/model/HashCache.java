@@ -0,0 +1,253 @@
+package com.jakeapp.violet.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.jake.fss.IFSService;
+import com.jakeapp.jake.fss.IModificationListener;
+import com.jakeapp.jake.fss.exceptions.InvalidFilenameException;
+import com.jakeapp.jake.fss.exceptions.NotAReadableFileException;
+
+/**
+ * Remembers the hashes of the files of a project together with their size and
+ * modification time, so that a file is only hashed again when it changed.
+ * 
+ * The hashes are kept in memory and in a journal file, which is read on
+ * startup and rewritten when it holds too many stale records. Register this
+ * with the <code>IFSService</code>, so that modified files are forgotten
+ * right away.
+ */
+public class HashCache implements IModificationListener {
+
+	private static final Logger log = Logger.getLogger(HashCache.class);
+
+	/**
+	 * files modified this recently (in ms) are not remembered, a change in
+	 * the same tick of the file system clock would go unnoticed
+	 */
+	static final long RACY_INTERVAL = 2000;
+
+	private static final byte PUT = 'p';
+
+	private static final byte REMOVE = 'r';
+
+	private static class Entry {
+
+		private final long length;
+
+		private final long modified;
+
+		private final String hash;
+
+		Entry(long length, long modified, String hash) {
+			this.length = length;
+			this.modified = modified;
+			this.hash = hash;
+		}
+
+		boolean matches(File f) {
+			return f.length() == length && f.lastModified() == modified;
+		}
+	}
+
+	private final IFSService fss;
+
+	private final File root;
+
+	private final File journal;
+
+	/**
+	 * relpath -&gt; what we know about it
+	 */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private DataOutputStream out;
+
+	/**
+	 * records in the journal
+	 */
+	private int records = 0;
+
+	/**
+	 * @param fss
+	 *            hashes the files, rooted at root
+	 * @param root
+	 *            the project directory
+	 * @param journal
+	 *            where the hashes are stored, created if necessary
+	 */
+	public HashCache(IFSService fss, File root, File journal) {
+		this.fss = fss;
+		this.root = root;
+		this.journal = journal;
+		load();
+	}
+
+	/**
+	 * @return the hash of the current content of the file
+	 * @throws FileNotFoundException
+	 * @throws InvalidFilenameException
+	 * @throws NotAReadableFileException
+	 */
+	public String getHash(String relpath) throws FileNotFoundException,
+			InvalidFilenameException, NotAReadableFileException {
+		File f = new File(root, relpath);
+		Entry e = entries.get(relpath);
+		if (e != null && e.matches(f))
+			return e.hash;
+
+		long length = f.length();
+		long modified = f.lastModified();
+		String hash = fss.calculateHashOverFile(relpath).toString();
+		if (f.length() != length || f.lastModified() != modified
+				|| System.currentTimeMillis() - modified < RACY_INTERVAL) {
+			// we can't tell which content we hashed
+			entries.remove(relpath);
+			return hash;
+		}
+		e = new Entry(length, modified, hash);
+		entries.put(relpath, e);
+		write(relpath, e);
+		return hash;
+	}
+
+	/**
+	 * forgets the hash of the file
+	 */
+	public void invalidate(String relpath) {
+		if (entries.remove(relpath) != null)
+			write(relpath, null);
+	}
+
+	@Override
+	public void fileModified(String relpath, ModifyActions action) {
+		invalidate(relpath);
+	}
+
+	/**
+	 * @return the number of files we know the hash of
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * closes the journal. It is opened again by the next write.
+	 */
+	public synchronized void close() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.debug("closing " + journal + " failed", e);
+		}
+		out = null;
+	}
+
+	private synchronized void load() {
+		if (!journal.exists())
+			return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(journal)));
+			try {
+				while (true) {
+					byte type = in.readByte();
+					String relpath = in.readUTF();
+					records++;
+					if (type == REMOVE) {
+						entries.remove(relpath);
+					} else if (type == PUT) {
+						entries.put(relpath, new Entry(in.readLong(), in
+								.readLong(), in.readUTF()));
+					} else {
+						throw new IOException("unknown record " + type);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			// the end, or a record cut off by a crash
+		} catch (IOException e) {
+			log.warn("reading " + journal + " failed, keeping what was read",
+					e);
+		}
+		// drops stale records and a cut off one
+		compact();
+	}
+
+	private synchronized void write(String relpath, Entry e) {
+		if (records > 2 * entries.size() + 1000) {
+			compact();
+			return;
+		}
+		try {
+			if (out == null)
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(journal, true)));
+			writeRecord(out, relpath, e);
+			out.flush();
+			records++;
+		} catch (IOException ex) {
+			log.warn("writing " + journal + " failed", ex);
+			close();
+		}
+	}
+
+	/**
+	 * rewrites the journal with one record per file
+	 */
+	private synchronized void compact() {
+		close();
+		File tmp = new File(journal.getPath() + ".tmp");
+		try {
+			DataOutputStream os = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			int written = 0;
+			try {
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					writeRecord(os, e.getKey(), e.getValue());
+					written++;
+				}
+			} finally {
+				os.close();
+			}
+			journal.delete();
+			if (!tmp.renameTo(journal))
+				throw new IOException("renaming " + tmp + " failed");
+			records = written;
+		} catch (IOException e) {
+			log.warn("compacting " + journal + " failed", e);
+			tmp.delete();
+		}
+	}
+
+	private static void writeRecord(DataOutputStream os, String relpath,
+			Entry e) throws IOException {
+		if (e == null) {
+			os.writeByte(REMOVE);
+			os.writeUTF(relpath);
+		} else {
+			os.writeByte(PUT);
+			os.writeUTF(relpath);
+			os.writeLong(e.length);
+			os.writeLong(e.modified);
+			os.writeUTF(e.hash);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.jakeapp.violet.model;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pools of the <code>User</code> and <code>JakeObject</code> instances of a
+ * project. A log holds a few users and paths, but many entries of each, so
+ * entries read from the log share one instance per user and per path instead
+ * of carrying their own copies.
+ */
+public class Interner {
+
+	private final ConcurrentMap<String, User> users = new ConcurrentHashMap<String, User>();
+
+	private final ConcurrentMap<String, JakeObject> jakeObjects = new ConcurrentHashMap<String, JakeObject>();
+
+	/**
+	 * @return the pooled user with this id
+	 */
+	public User user(String userid) {
+		User u = users.get(userid);
+		if (u == null) {
+			u = new User(userid);
+			User other = users.putIfAbsent(userid, u);
+			if (other != null)
+				u = other;
+		}
+		return u;
+	}
+
+	/**
+	 * @return the pooled object with this path
+	 */
+	public JakeObject jakeObject(String relpath) {
+		JakeObject jo = jakeObjects.get(relpath);
+		if (jo == null) {
+			jo = new JakeObject(relpath);
+			JakeObject other = jakeObjects.putIfAbsent(relpath, jo);
+			if (other != null)
+				jo = other;
+		}
+		return jo;
+	}
+
+	/**
+	 * @return the entry itself if it already uses the pooled user and object,
+	 *         otherwise an equal entry that does
+	 */
+	public LogEntry intern(LogEntry le) {
+		User who = user(le.getWho().getUserId());
+		JakeObject what = jakeObject(le.getWhat().getRelPath());
+		if (who == le.getWho() && what == le.getWhat())
+			return le;
+		UUID id = le.getId();
+		return new LogEntry(id.getMostSignificantBits(),
+				id.getLeastSignificantBits(), le.getWhenMillis(), who, what,
+				le.getWhy(), le.getHow(), le.getKnown());
+	}
+
+	/**
+	 * number of pooled users and objects
+	 */
+	public int size() {
+		return users.size() + jakeObjects.size();
+	}
+}
@@ -19,6 +19,15 @@ public class JakeObject {
 		return relpath.hashCode();
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		return relpath.equals(((JakeObject) obj).relpath);
+	}
+
 	@Override
 	public String toString() {
 		return relpath.toString();
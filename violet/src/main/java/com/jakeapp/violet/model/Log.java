@@ -1,6 +1,9 @@
 package com.jakeapp.violet.model;
 
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
@@ -33,7 +36,18 @@ public interface Log {
 	void add(LogEntry logEntry);
 
 	/**
-	 * Retrieve a </code>LogEntry</code>.
+	 * Stores all <code>LogEntries</code> that are not in the log yet. This is
+	 * done in one transaction, entries whose id is already known are skipped
+	 * silently.
+	 * 
+	 * @param logEntries
+	 *            the entries to merge into the log
+	 * @return the number of entries that were actually added
+	 */
+	int addAll(Collection<LogEntry> logEntries);
+
+	/**
+	 * Retrieve a </code>LogEntry</code>. Archived entries are found as well.
 	 * 
 	 * @param uuid
 	 *            the uuid of the requested </code>LogEntry</code>
@@ -103,7 +117,7 @@ public interface Log {
 
 	/**
 	 * Get all LogEntrys stored in the database concerning a specific
-	 * <code>JakeObject</code>.
+	 * <code>JakeObject</code>, including the archived ones.
 	 * 
 	 * @param jakeObject
 	 *            the <code>JakeObject</code> in question.
@@ -149,6 +163,46 @@ public interface Log {
 	 */
 	public LogEntry getFirstEntry() throws NoSuchLogEntryException;
 
+	/**
+	 * Get one page of the LogEntries, ordered by <code>when</code>.
+	 * 
+	 * @param jakeObject
+	 *            only entries concerning this <code>JakeObject</code>, or
+	 *            <code>null</code> for all
+	 * @param includeUnprocessed
+	 *            Whether to look at unprocessed LogEntries as well
+	 * @param newestFirst
+	 *            the direction
+	 * @param offset
+	 *            how many entries to skip
+	 * @param limit
+	 *            the maximum number of entries returned
+	 * @return List of LogEntries
+	 */
+	public List<LogEntry> getPage(JakeObject jakeObject,
+			boolean includeUnprocessed, boolean newestFirst, int offset,
+			int limit);
+
+	/**
+	 * Get the LogEntries following <code>after</code>, oldest first. Unlike
+	 * with an offset, paging through the log this way does not get slower
+	 * towards the end. See {@link LogCursor}.
+	 * 
+	 * @param jakeObject
+	 *            only entries concerning this <code>JakeObject</code>, or
+	 *            <code>null</code> for all
+	 * @param includeUnprocessed
+	 *            Whether to look at unprocessed LogEntries as well
+	 * @param after
+	 *            the last entry of the previous page, <code>null</code> to
+	 *            start at the beginning
+	 * @param limit
+	 *            the maximum number of entries returned
+	 * @return List of LogEntries
+	 */
+	public List<LogEntry> getPageAfter(JakeObject jakeObject,
+			boolean includeUnprocessed, LogEntry after, int limit);
+
 	/**
 	 * This methods sets all LogEntries with the same belongsTo object previous
 	 * to this one to processed
@@ -158,4 +212,56 @@ public interface Log {
 	 */
 	public void setAllPreviousProcessed(LogEntry logEntry);
 
+	/**
+	 * The sequence number is the order in which entries were added to this
+	 * log. It is local to this log and says nothing about <code>when</code>.
+	 * 
+	 * @return the sequence number of the last added entry, 0 if the log is
+	 *         empty
+	 */
+	public long getLastSequence();
+
+	/**
+	 * Get all LogEntries that were added to this log after the one with the
+	 * sequence number <code>after</code>, in the order they were added.
+	 * Includes unprocessed entries.
+	 * 
+	 * @param after
+	 *            the sequence number of the last entry already seen, 0 for
+	 *            everything
+	 * @param upTo
+	 *            the sequence number of the last entry to return, usually
+	 *            from {@link #getLastSequence()}
+	 * @return List of LogEntries
+	 */
+	public List<LogEntry> getAllSince(long after, long upTo);
+
+
+	/**
+	 * Moves processed LogEntries older than <code>before</code> into the
+	 * archive, if there is a newer processed LogEntry of the same
+	 * <code>JakeObject</code>. The latest entries of each
+	 * <code>JakeObject</code> stay in the log. Archived entries are left out
+	 * by all queries except {@link #getById(UUID, boolean)},
+	 * {@link #getAllOfJakeObject(JakeObject, boolean)} and
+	 * {@link #getArchived()}.
+	 * 
+	 * @param before
+	 *            only entries older than this are archived
+	 * @return the number of entries archived
+	 */
+	public int archive(Timestamp before);
+
+	/**
+	 * @return all archived LogEntries, in the order they were archived. The
+	 *         archive is read piece by piece while iterating.
+	 */
+	public Iterator<LogEntry> getArchived();
+
+	/**
+	 * @return the pool of the users and objects of the entries read from this
+	 *         log
+	 */
+	public Interner getInterner();
+
 }
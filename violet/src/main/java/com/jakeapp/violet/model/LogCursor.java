@@ -0,0 +1,107 @@
+package com.jakeapp.violet.model;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the LogEntries of a {@link Log}, oldest first, fetching them
+ * one page at a time. Only one page is in memory at once.
+ * 
+ * Entries added while iterating may or may not show up.
+ */
+public class LogCursor implements Iterator<LogEntry> {
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private final Log log;
+
+	private final JakeObject jakeObject;
+
+	private final boolean includeUnprocessed;
+
+	private final int pageSize;
+
+	private Iterator<LogEntry> page;
+
+	private LogEntry last;
+
+	private boolean exhausted = false;
+
+	/**
+	 * @param log
+	 * @param jakeObject
+	 *            only entries concerning this <code>JakeObject</code>, or
+	 *            <code>null</code> for all
+	 * @param includeUnprocessed
+	 *            Whether to look at unprocessed LogEntries as well
+	 */
+	public LogCursor(Log log, JakeObject jakeObject, boolean includeUnprocessed) {
+		this(log, jakeObject, includeUnprocessed, DEFAULT_PAGE_SIZE);
+	}
+
+	public LogCursor(Log log, JakeObject jakeObject,
+			boolean includeUnprocessed, int pageSize) {
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("pageSize");
+		this.log = log;
+		this.jakeObject = jakeObject;
+		this.includeUnprocessed = includeUnprocessed;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @return the archive followed by the log, for peers that need
+	 *         everything
+	 */
+	public static Iterator<LogEntry> withArchive(Log log) {
+		final Iterator<LogEntry> archived = log.getArchived();
+		final Iterator<LogEntry> current = new LogCursor(log, null, true);
+		return new Iterator<LogEntry>() {
+
+			@Override
+			public boolean hasNext() {
+				return archived.hasNext() || current.hasNext();
+			}
+
+			@Override
+			public LogEntry next() {
+				if (archived.hasNext())
+					return archived.next();
+				return current.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (page != null && page.hasNext())
+			return true;
+		if (exhausted)
+			return false;
+		List<LogEntry> next = log.getPageAfter(jakeObject, includeUnprocessed,
+				last, pageSize);
+		if (next.size() < pageSize)
+			exhausted = true;
+		page = next.iterator();
+		return page.hasNext();
+	}
+
+	@Override
+	public LogEntry next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		last = page.next();
+		return last;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
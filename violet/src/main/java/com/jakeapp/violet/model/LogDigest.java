@@ -0,0 +1,276 @@
+package com.jakeapp.violet.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A hash tree over the ids of a log, archive included, used to find the
+ * entries two peers don't have in common without sending the whole log.
+ * 
+ * Ids are put into buckets by the hex digits they start with. A bucket is
+ * named by that prefix, the empty prefix holding all ids, and has 16
+ * children, one per next digit. Two buckets with the same count and digest
+ * hold the same ids, so peers only have to look into the buckets that
+ * differ.
+ */
+public class LogDigest {
+
+	/**
+	 * the deepest prefix, all hex digits of the most significant half of the
+	 * id
+	 */
+	public static final int MAX_DEPTH = 16;
+
+	private static final String DIGITS = "0123456789abcdef";
+
+	private static final Comparator<UUID> UNSIGNED = new Comparator<UUID>() {
+
+		@Override
+		public int compare(UUID a, UUID b) {
+			int c = compareUnsigned(a.getMostSignificantBits(),
+					b.getMostSignificantBits());
+			if (c != 0)
+				return c;
+			return compareUnsigned(a.getLeastSignificantBits(),
+					b.getLeastSignificantBits());
+		}
+	};
+
+	/**
+	 * count and digest of the ids starting with a prefix
+	 */
+	public static class Bucket {
+
+		private final String prefix;
+
+		private final int count;
+
+		private final long digest;
+
+		public Bucket(String prefix, int count, long digest) {
+			this.prefix = prefix;
+			this.count = count;
+			this.digest = digest;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public long getDigest() {
+			return digest;
+		}
+
+		@Override
+		public int hashCode() {
+			return prefix.hashCode() ^ (int) digest;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			Bucket other = (Bucket) obj;
+			return count == other.count && digest == other.digest
+					&& prefix.equals(other.prefix);
+		}
+
+		@Override
+		public String toString() {
+			return prefix + ":" + count + ":" + Long.toHexString(digest);
+		}
+	}
+
+	private final long sequence;
+
+	/**
+	 * sorted by {@link #UNSIGNED}
+	 */
+	private final UUID[] ids;
+
+	/**
+	 * xor of the hashes of ids[0] to ids[i-1], so that the digest of a range
+	 * is the xor of two of these
+	 */
+	private final long[] xors;
+
+	/**
+	 * @param sequence
+	 *            the last sequence number of the log before the ids were read
+	 * @param ids
+	 *            all ids of the log, each once
+	 */
+	public LogDigest(long sequence, Iterator<UUID> ids) {
+		this.sequence = sequence;
+		List<UUID> all = new ArrayList<UUID>();
+		while (ids.hasNext())
+			all.add(ids.next());
+		Collections.sort(all, UNSIGNED);
+		this.ids = all.toArray(new UUID[all.size()]);
+		this.xors = new long[this.ids.length + 1];
+		for (int i = 0; i < this.ids.length; i++)
+			xors[i + 1] = xors[i] ^ hash(this.ids[i]);
+	}
+
+	/**
+	 * reads the ids of the whole log, archive included
+	 */
+	public static LogDigest of(Log log) {
+		long sequence = log.getLastSequence();
+		final Iterator<LogEntry> archived = log.getArchived();
+		final Iterator<LogEntry> current = new LogCursor(log, null, true);
+		return new LogDigest(sequence, new Iterator<UUID>() {
+
+			@Override
+			public boolean hasNext() {
+				return archived.hasNext() || current.hasNext();
+			}
+
+			@Override
+			public UUID next() {
+				if (archived.hasNext())
+					return archived.next().getId();
+				return current.next().getId();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+
+	/**
+	 * @return the last sequence number of the log this was read from. Entries
+	 *         with a higher one may be missing.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @param prefix
+	 *            lower case hex digits, at most {@link #MAX_DEPTH}
+	 */
+	public Bucket getBucket(String prefix) {
+		int from = lowerBound(prefix);
+		int to = upperBound(prefix);
+		return new Bucket(prefix, to - from, xors[to] ^ xors[from]);
+	}
+
+	/**
+	 * @param prefix
+	 *            lower case hex digits, less than {@link #MAX_DEPTH}
+	 * @return the 16 buckets one digit deeper, empty ones included
+	 */
+	public List<Bucket> getChildren(String prefix) {
+		List<Bucket> children = new ArrayList<Bucket>(DIGITS.length());
+		for (int i = 0; i < DIGITS.length(); i++)
+			children.add(getBucket(prefix + DIGITS.charAt(i)));
+		return children;
+	}
+
+	/**
+	 * @return the ids in the bucket
+	 */
+	public List<UUID> getIds(String prefix) {
+		return Arrays.asList(ids).subList(lowerBound(prefix),
+				upperBound(prefix));
+	}
+
+	/**
+	 * @return whether this is a bucket name
+	 */
+	public static boolean isPrefix(String s) {
+		if (s.length() > MAX_DEPTH)
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (DIGITS.indexOf(s.charAt(i)) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * index of the first id with this prefix or a greater one
+	 */
+	private int lowerBound(String prefix) {
+		if (prefix.isEmpty())
+			return 0;
+		return search(parse(prefix) << (64 - 4 * prefix.length()));
+	}
+
+	/**
+	 * index after the last id with this prefix
+	 */
+	private int upperBound(String prefix) {
+		if (prefix.isEmpty())
+			return ids.length;
+		long next = parse(prefix) + 1;
+		if (prefix.length() < MAX_DEPTH)
+			next <<= 64 - 4 * prefix.length();
+		if (next == 0)
+			// past the greatest prefix
+			return ids.length;
+		return search(next);
+	}
+
+	private static long parse(String prefix) {
+		long value = 0;
+		for (int i = 0; i < prefix.length(); i++)
+			value = value << 4 | DIGITS.indexOf(prefix.charAt(i));
+		return value;
+	}
+
+	/**
+	 * @return index of the first id whose most significant half is not below
+	 *         msb
+	 */
+	private int search(long msb) {
+		int low = 0;
+		int high = ids.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareUnsigned(ids[mid].getMostSignificantBits(), msb) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * spreads the bits of the id, so that the xor of a few ids can't cancel
+	 * out by accident
+	 */
+	private static long hash(UUID id) {
+		return mix(id.getMostSignificantBits() ^ mix(id
+				.getLeastSignificantBits()));
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
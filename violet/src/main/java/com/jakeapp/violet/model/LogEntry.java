@@ -1,25 +1,55 @@
 package com.jakeapp.violet.model;
 
 import java.sql.Timestamp;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.UUID;
 
-import org.codehaus.jackson.annotate.JsonTypeInfo;
-import org.mockito.exceptions.misusing.NullInsteadOfMockException;
-
 public class LogEntry {
 
+	/**
+	 * the order of the log: by <code>when</code>, then by <code>id</code>
+	 */
+	public static final Comparator<LogEntry> ORDER = new Comparator<LogEntry>() {
+
+		@Override
+		public int compare(LogEntry a, LogEntry b) {
+			if (a.when != b.when)
+				return a.when < b.when ? -1 : 1;
+			// like UUID.compareTo
+			if (a.idMsb != b.idMsb)
+				return a.idMsb < b.idMsb ? -1 : 1;
+			if (a.idLsb != b.idLsb)
+				return a.idLsb < b.idLsb ? -1 : 1;
+			return 0;
+		}
+	};
+
 	public LogEntry(UUID id, Timestamp when, User who, JakeObject what,
 			String why, String how, boolean known) {
+		this(id == null ? UUID.randomUUID() : id, when == null ? new Date()
+				.getTime() : when.getTime(), who, what, why, how, known);
+	}
+
+	private LogEntry(UUID id, long when, User who, JakeObject what,
+			String why, String how, boolean known) {
+		this(id.getMostSignificantBits(), id.getLeastSignificantBits(), when,
+				who, what, why, how, known);
+	}
+
+	/**
+	 * the compact form, for reading entries in bulk without creating
+	 * <code>UUID</code> and <code>Timestamp</code> objects
+	 * 
+	 * @param when
+	 *            milliseconds since the epoch
+	 */
+	public LogEntry(long idMsb, long idLsb, long when, User who,
+			JakeObject what, String why, String how, boolean known) {
 		super();
-		if (id == null)
-			this.id = UUID.randomUUID();
-		else
-			this.id = id;
-		if (when == null)
-			this.when = new Timestamp(new Date().getTime());
-		else
-			this.when = when;
+		this.idMsb = idMsb;
+		this.idLsb = idLsb;
+		this.when = when;
 		if (who == null)
 			throw new NullPointerException();
 		this.who = who;
@@ -38,45 +68,60 @@ public class LogEntry {
 	}
 
 	/**
-	 * Id of the log entry
+	 * Id of the log entry, kept as the two halves of the UUID
 	 */
-	private UUID id;
+	private final long idMsb;
+
+	private final long idLsb;
 
 	/**
-	 * Time stamp of the action
+	 * Time stamp of the action, in milliseconds since the epoch
 	 */
-	private Timestamp when;
+	private final long when;
 
 	/**
 	 * User Id of the culprit
 	 */
-	private User who;
+	private final User who;
 
 	/**
 	 * reference to the object modified (i.e. the relpath of the file)
 	 */
-	private JakeObject what;
+	private final JakeObject what;
 
 	/**
 	 * an optional commit msg.
 	 */
-	private String why;
+	private final String why;
 
 	/**
 	 * a hash of the file if not empty
 	 */
-	private String how;
+	private final String how;
 
 	/**
 	 * true if we have processed this log entry.
 	 */
-	private Boolean known;
+	private final boolean known;
 
+	/**
+	 * @return a new <code>UUID</code> each time
+	 */
 	public UUID getId() {
-		return id;
+		return new UUID(idMsb, idLsb);
 	}
 
+	/**
+	 * @return a new <code>Timestamp</code> each time
+	 */
 	public Timestamp getWhen() {
+		return new Timestamp(when);
+	}
+
+	/**
+	 * @return the time stamp in milliseconds since the epoch
+	 */
+	public long getWhenMillis() {
 		return when;
 	}
 
@@ -102,10 +147,7 @@ public class LogEntry {
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((id == null) ? 0 : id.hashCode());
-		return result;
+		return (int) (idMsb ^ (idMsb >>> 32) ^ idLsb ^ (idLsb >>> 32));
 	}
 
 	@Override
@@ -117,41 +159,9 @@ public class LogEntry {
 		if (getClass() != obj.getClass())
 			return false;
 		LogEntry other = (LogEntry) obj;
-		if (how == null) {
-			if (other.how != null)
-				return false;
-		} else if (!how.equals(other.how))
-			return false;
-		if (id == null) {
-			if (other.id != null)
-				return false;
-		} else if (!id.equals(other.id))
-			return false;
-		if (known == null) {
-			if (other.known != null)
-				return false;
-		} else if (!known.equals(other.known))
-			return false;
-		if (what == null) {
-			if (other.what != null)
-				return false;
-		} else if (!what.equals(other.what))
-			return false;
-		if (when == null) {
-			if (other.when != null)
-				return false;
-		} else if (!when.equals(other.when))
-			return false;
-		if (who == null) {
-			if (other.who != null)
-				return false;
-		} else if (!who.equals(other.who))
-			return false;
-		if (why == null) {
-			if (other.why != null)
-				return false;
-		} else if (!why.equals(other.why))
-			return false;
-		return true;
+		return idMsb == other.idMsb && idLsb == other.idLsb
+				&& when == other.when && known == other.known
+				&& how.equals(other.how) && what.equals(other.what)
+				&& who.equals(other.who) && why.equals(other.why);
 	}
 }
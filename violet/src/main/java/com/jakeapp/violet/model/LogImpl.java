@@ -1,19 +1,28 @@
 package com.jakeapp.violet.model;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -25,12 +34,140 @@ import com.jakeapp.violet.model.exceptions.NoSuchLogEntryException;
 /**
  * Implementation of Log
  * 
+ * Changes are queued and run by a writer thread on its own connection.
+ * Changes waiting at the same time are committed together. Reads use a small
+ * pool of connections, each with its own prepared statements, and don't wait
+ * for the writer. Safe for use by several threads.
+ * 
  * @author user
  * 
  */
 public class LogImpl implements Log {
 
-	private Connection conn;
+	/**
+	 * how many inserts are sent to the database at once in
+	 * {@link #addAll(Collection)}
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * how many entries {@link #archive(Timestamp)} puts into one segment
+	 */
+	private static final int SEGMENT_SIZE = 10000;
+
+	/**
+	 * how many connections are opened at most for reading
+	 */
+	private static final int READERS = 4;
+
+	/**
+	 * how many queued changes are committed together at most
+	 */
+	private static final int GROUP_COMMIT_SIZE = 100;
+
+	/**
+	 * readers see the last committed state and don't wait for the writer
+	 */
+	private static final String CONNECTION_OPTIONS = ";MVCC=TRUE";
+
+	/**
+	 * A connection and its prepared statements. Used by one thread at a time,
+	 * so the parameters of the shared statements are not overwritten.
+	 */
+	private class Session {
+
+		private final Connection conn;
+
+		private final Map<String, PreparedStatement> queries = new HashMap<String, PreparedStatement>();
+
+		/**
+		 * nested {@link LogImpl#read()} calls of the thread using it
+		 */
+		private int depth = 0;
+
+		Session(Connection conn) {
+			this.conn = conn;
+		}
+
+		PreparedStatement getPrepared(String query) throws SQLException {
+			PreparedStatement q = queries.get(query);
+			if (q == null) {
+				q = conn.prepareStatement(query);
+				queries.put(query, q);
+			}
+			return q;
+		}
+
+		void close() throws SQLException {
+			queries.clear();
+			conn.close();
+		}
+	}
+
+	/**
+	 * A change to the log. Changes are run one after another by the writer
+	 * thread, and those waiting at the same time are committed together.
+	 */
+	private abstract class Write<T> {
+
+		private boolean done = false;
+
+		private T result;
+
+		private Exception failure;
+
+		abstract T run() throws SQLException, NoSuchLogEntryException;
+
+		synchronized void complete(T result, Exception failure) {
+			this.result = result;
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized T await() throws NoSuchLogEntryException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			if (failure instanceof NoSuchLogEntryException)
+				throw (NoSuchLogEntryException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure != null)
+				throw new IllegalStateException(failure);
+			return result;
+		}
+	}
+
+	/**
+	 * the session of the current thread, if it is using one
+	 */
+	private final ThreadLocal<Session> session = new ThreadLocal<Session>();
+
+	private Session writer;
+
+	private Thread writerThread;
+
+	private final BlockingQueue<Write<?>> writes = new LinkedBlockingQueue<Write<?>>();
+
+	/**
+	 * tells the writer thread to stop
+	 */
+	private final Write<Void> stop = new Write<Void>() {
+
+		@Override
+		Void run() {
+			return null;
+		}
+	};
+
+	private final List<Session> readers = new ArrayList<Session>();
+
+	private final BlockingQueue<Session> idleReaders = new LinkedBlockingQueue<Session>();
 
 	private File file;
 
@@ -71,123 +208,536 @@ public class LogImpl implements Log {
 		} catch (ClassNotFoundException e) {
 			throw new IllegalStateException(e);
 		}
-		conn = DriverManager.getConnection(
-				"jdbc:" + dbDriver + ":" + file.getAbsolutePath(), dbUsername,
+		writer = new Session(openConnection());
+		createSchema(writer.conn);
+
+		writerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runWrites();
+			}
+		}, "log writer " + file.getName());
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	private Connection openConnection() throws SQLException {
+		return DriverManager.getConnection("jdbc:" + dbDriver + ":"
+				+ file.getAbsolutePath() + CONNECTION_OPTIONS, dbUsername,
 				dbPassword);
+	}
+
+	private void createSchema(Connection conn) throws SQLException {
 		// if it doesn't exist:
 		Statement stmt = conn.createStatement();
 		// create schema of table
 		stmt.execute(DBQueries.DB_CREATELOGTABLE);
+		stmt.execute(DBQueries.DB_ADDLOGSEQCOLUMN);
 
 		stmt.execute(DBQueries.DB_CREATELOGINDEXWHEN);
 		// create index on relpath
 		stmt.execute(DBQueries.DB_CREATELOGINDEXWHAT);
+		// create index on id, for lookups and merging
+		stmt.execute(DBQueries.DB_CREATELOGINDEXID);
+		// for the first/last entry of an object and of the unprocessed ones
+		stmt.execute(DBQueries.DB_CREATELOGINDEXWHATWHEN);
+		stmt.execute(DBQueries.DB_CREATELOGINDEXKNOWNWHEN);
+		// archive
+		stmt.execute(DBQueries.DB_CREATESEGMENTTABLE);
+		stmt.execute(DBQueries.DB_CREATEARCHIVEDTABLE);
+		stmt.execute(DBQueries.DB_CREATEARCHIVEDINDEXWHAT);
+		// head versions
+		stmt.execute(DBQueries.DB_CREATEHEADTABLE);
+		ResultSet rs = stmt.executeQuery(DBQueries.DB_COUNTHEADS);
+		if (rs.next() && rs.getInt(1) == 0) {
+			rebuildHeads(conn);
+		}
+		stmt.close();
 	}
 
-	@Override
-	public void disconnect() throws SQLException {
-		if (conn != null)
-			conn.close();
-		conn = null;
-		queries.clear();
+	/**
+	 * fills the head table from the log. Needed for logs created before there
+	 * was a head table.
+	 */
+	private void rebuildHeads(Connection conn) throws SQLException {
+		List<String> relpaths = new ArrayList<String>();
+		ResultSet rs = conn.createStatement().executeQuery(
+				DBQueries.DB_GETDISTINCTRELPATHS);
+		while (rs.next()) {
+			relpaths.add(rs.getString(1));
+		}
+		PreparedStatement stmt = conn
+				.prepareStatement(DBQueries.DB_REBUILDHEAD);
+		conn.setAutoCommit(false);
+		try {
+			for (String relpath : relpaths) {
+				stmt.setString(1, relpath);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(true);
+		}
+		stmt.close();
 	}
 
-	@Override
-	public void add(LogEntry logEntry) {
-		PreparedStatement addStmt = getPrepared(DBQueries.DB_INSERTLOG);
+	/**
+	 * The writer thread: runs the queued changes on the writer session. All
+	 * changes waiting at the same time are run in one transaction, each
+	 * behind a savepoint so a failing one does not affect the others.
+	 */
+	private void runWrites() {
+		session.set(writer);
+		writer.depth = 1;
+		Connection conn = writer.conn;
+		boolean stopped = false;
+		while (!stopped) {
+			List<Write<?>> group = new ArrayList<Write<?>>();
+			try {
+				group.add(writes.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			writes.drainTo(group, GROUP_COMMIT_SIZE - 1);
+			int stopAt = group.indexOf(stop);
+			if (stopAt >= 0) {
+				stopped = true;
+				for (Write<?> w : group.subList(stopAt, group.size())) {
+					w.complete(null, null);
+				}
+				group = group.subList(0, stopAt);
+			}
+			if (!group.isEmpty())
+				runGroup(conn, group);
+		}
+		// changes queued after disconnect
+		Write<?> w;
+		while ((w = writes.poll()) != null) {
+			w.complete(null, new IllegalStateException("not connected"));
+		}
+		session.remove();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void runGroup(Connection conn, List<Write<?>> group) {
+		Object[] results = new Object[group.size()];
+		Exception[] failures = new Exception[group.size()];
 		try {
-			addStmt.setObject(0, logEntry.getId());
-			addStmt.setTimestamp(1, logEntry.getWhen());
-			addStmt.setString(2, logEntry.getWho().getUserId());
-			addStmt.setString(3, logEntry.getWhat().getRelPath());
-			addStmt.setString(4, logEntry.getWhy());
-			addStmt.setString(5, logEntry.getHow());
-			addStmt.setBoolean(6, logEntry.getKnown());
-			addStmt.execute();
+			conn.setAutoCommit(false);
+			try {
+				for (int i = 0; i < group.size(); i++) {
+					Savepoint savepoint = conn.setSavepoint();
+					try {
+						results[i] = group.get(i).run();
+					} catch (Exception e) {
+						conn.rollback(savepoint);
+						failures[i] = e;
+					}
+				}
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
 		} catch (SQLException e) {
+			for (Write<?> w : group) {
+				w.complete(null, e);
+			}
+			return;
+		}
+		for (int i = 0; i < group.size(); i++) {
+			((Write<Object>) group.get(i)).complete(results[i], failures[i]);
+		}
+	}
+
+	/**
+	 * queues the change and waits until it is committed. Changes made from
+	 * within a change are run directly.
+	 */
+	private <T> T write(Write<T> w) throws NoSuchLogEntryException {
+		if (session.get() == writer && writer != null) {
+			try {
+				return w.run();
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		if (writerThread == null)
+			throw new IllegalStateException("not connected");
+		writes.add(w);
+		return w.await();
+	}
+
+	/**
+	 * like {@link #write(Write)}, for changes that can't fail for a missing
+	 * entry
+	 */
+	private <T> T writeUnchecked(Write<T> w) {
+		try {
+			return write(w);
+		} catch (NoSuchLogEntryException e) {
 			throw new IllegalStateException(e);
 		}
 	}
 
+	/**
+	 * Gets a session for reading. Nested calls of a thread get the same
+	 * session, the writer thread always uses its own. Call {@link #done}
+	 * afterwards.
+	 */
+	private Session read() {
+		Session s = session.get();
+		if (s == null) {
+			s = idleReaders.poll();
+			if (s == null) {
+				synchronized (readers) {
+					if (readers.size() < READERS) {
+						try {
+							s = new Session(openConnection());
+						} catch (SQLException e) {
+							throw new IllegalStateException(e);
+						}
+						readers.add(s);
+					}
+				}
+			}
+			if (s == null) {
+				try {
+					s = idleReaders.take();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			session.set(s);
+		}
+		s.depth++;
+		return s;
+	}
+
+	private void done(Session s) {
+		s.depth--;
+		if (s.depth == 0) {
+			session.remove();
+			idleReaders.add(s);
+		}
+	}
+
+	@Override
+	public void disconnect() throws SQLException {
+		if (writerThread != null) {
+			writes.add(stop);
+			try {
+				stop.await();
+				writerThread.join();
+			} catch (NoSuchLogEntryException e) {
+				// can't happen
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			writerThread = null;
+		}
+		synchronized (readers) {
+			for (Session s : readers) {
+				s.close();
+			}
+			readers.clear();
+			idleReaders.clear();
+		}
+		if (writer != null)
+			writer.close();
+		writer = null;
+	}
+
+	@Override
+	public void add(final LogEntry logEntry) {
+		writeUnchecked(new Write<Void>() {
+
+			@Override
+			Void run() throws SQLException {
+				PreparedStatement addStmt = getPrepared(DBQueries.DB_INSERTLOG);
+				setLogEntry(addStmt, logEntry);
+				addStmt.execute();
+				updateHeads(Collections.singletonList(logEntry));
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public int addAll(final Collection<LogEntry> logEntries) {
+		return writeUnchecked(new Write<Integer>() {
+
+			@Override
+			Integer run() throws SQLException {
+				PreparedStatement stmt = getPrepared(DBQueries.DB_INSERTLOGIFABSENT);
+				int added = 0;
+				List<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE);
+				for (LogEntry logEntry : logEntries) {
+					setLogEntry(stmt, logEntry);
+					stmt.setObject(8, logEntry.getId());
+					stmt.setObject(9, logEntry.getId());
+					stmt.addBatch();
+					batch.add(logEntry);
+					if (batch.size() == BATCH_SIZE) {
+						added += insertBatch(stmt, batch);
+						batch.clear();
+					}
+				}
+				if (!batch.isEmpty())
+					added += insertBatch(stmt, batch);
+				return added;
+			}
+		});
+	}
+
+	/**
+	 * executes the batch and updates the heads for the entries that were
+	 * actually inserted
+	 * 
+	 * @param batch
+	 *            the entries in the batch, in order
+	 * @return the number of rows inserted by the batch
+	 */
+	private int insertBatch(PreparedStatement stmt, List<LogEntry> batch)
+			throws SQLException {
+		int[] counts = stmt.executeBatch();
+		List<LogEntry> inserted = new ArrayList<LogEntry>(batch.size());
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0)
+				inserted.add(batch.get(i));
+		}
+		updateHeads(inserted);
+		return inserted.size();
+	}
+
+	/**
+	 * makes the entries the head of their JakeObject if they are newer than
+	 * the current one, and counts the unprocessed ones. Call within the
+	 * transaction that added them.
+	 */
+	private void updateHeads(List<LogEntry> added) throws SQLException {
+		if (added.isEmpty())
+			return;
+		PreparedStatement insert = getPrepared(DBQueries.DB_INSERTHEADIFABSENT);
+		PreparedStatement update = getPrepared(DBQueries.DB_UPDATEHEADIFNEWER);
+		PreparedStatement increment = getPrepared(DBQueries.DB_INCREMENTHEADUNPROCESSED);
+		boolean anyUnprocessed = false;
+		for (LogEntry le : added) {
+			String what = le.getWhat().getRelPath();
+			boolean deleted = isDelete(le);
+
+			insert.setString(1, what);
+			insert.setObject(2, le.getId());
+			insert.setTimestamp(3, le.getWhen());
+			insert.setString(4, le.getWho().getUserId());
+			insert.setString(5, le.getHow());
+			insert.setBoolean(6, deleted);
+			insert.setBoolean(7, le.getKnown());
+			insert.setString(8, what);
+			insert.addBatch();
+
+			update.setObject(1, le.getId());
+			update.setTimestamp(2, le.getWhen());
+			update.setString(3, le.getWho().getUserId());
+			update.setString(4, le.getHow());
+			update.setBoolean(5, deleted);
+			update.setBoolean(6, le.getKnown());
+			update.setString(7, what);
+			update.setTimestamp(8, le.getWhen());
+			update.setTimestamp(9, le.getWhen());
+			update.setObject(10, le.getId());
+			update.addBatch();
+
+			if (!le.getKnown()) {
+				increment.setString(1, what);
+				increment.addBatch();
+				anyUnprocessed = true;
+			}
+		}
+		// order matters: the first entry of an object becomes its head, then
+		// newer ones replace it
+		insert.executeBatch();
+		update.executeBatch();
+		if (anyUnprocessed)
+			increment.executeBatch();
+	}
+
+	private static boolean isDelete(LogEntry le) {
+		return le.getHow() == null || le.getHow().isEmpty();
+	}
+
+	/**
+	 * fills in the first 7 parameters in the order of
+	 * {@link DBQueries#DB_INSERTLOG}
+	 */
+	private void setLogEntry(PreparedStatement stmt, LogEntry logEntry)
+			throws SQLException {
+		stmt.setObject(1, logEntry.getId());
+		stmt.setTimestamp(2, logEntry.getWhen());
+		stmt.setString(3, logEntry.getWho().getUserId());
+		stmt.setString(4, logEntry.getWhat().getRelPath());
+		stmt.setString(5, logEntry.getWhy());
+		stmt.setString(6, logEntry.getHow());
+		stmt.setBoolean(7, logEntry.getKnown());
+	}
+
 	@Override
 	public LogEntry getById(UUID uuid, boolean includeUnprocessed)
 			throws NoSuchLogEntryException {
-		PreparedStatement stmt = getPrepared(DBQueries.DB_GETLOGBYID);
+		Session s = read();
 		try {
-			stmt.setObject(0, uuid);
-			stmt.setBoolean(1, includeUnprocessed);
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				return resultToLogEntry(rs);
-			} else {
-				throw new NoSuchLogEntryException();
+			PreparedStatement stmt;
+			if (includeUnprocessed)
+				stmt = getPrepared(DBQueries.DB_GETLOGBYID);
+			else
+				stmt = getPrepared(DBQueries.DB_GETPROCESSEDLOGBYID);
+			try {
+				stmt.setObject(1, uuid);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					return resultToLogEntry(rs);
+				} else {
+					return getArchivedById(uuid);
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
 			}
-		} catch (SQLException e) {
+		} finally {
+			done(s);
+		}
+	}
+
+	private LogEntry getArchivedById(UUID uuid) throws SQLException,
+			NoSuchLogEntryException {
+		PreparedStatement stmt = getPrepared(DBQueries.DB_GETSEGMENTOFID);
+		stmt.setObject(1, uuid);
+		ResultSet rs = stmt.executeQuery();
+		if (!rs.next())
+			throw new NoSuchLogEntryException();
+		for (LogEntry le : readSegment(rs.getLong(1))) {
+			if (le.getId().equals(uuid))
+				return le;
+		}
+		throw new NoSuchLogEntryException();
+	}
+
+	private List<LogEntry> readSegment(long segment) throws SQLException {
+		PreparedStatement stmt = getPrepared(DBQueries.DB_GETSEGMENT);
+		stmt.setLong(1, segment);
+		ResultSet rs = stmt.executeQuery();
+		if (!rs.next())
+			throw new IllegalStateException("segment " + segment
+					+ " is missing");
+		try {
+			return LogSegment.read(interner, rs.getBytes(1));
+		} catch (IOException e) {
 			throw new IllegalStateException(e);
 		}
 	}
 
 	private LogEntry resultToLogEntry(ResultSet rs) {
 		try {
-			return new LogEntry((UUID) rs.getObject(0), rs.getTimestamp(0),
-					new User(rs.getString(1)), new JakeObject(rs.getString(2)),
-					rs.getString(3), rs.getString(4), rs.getBoolean(5));
+			UUID id = (UUID) rs.getObject(1);
+			return new LogEntry(id.getMostSignificantBits(),
+					id.getLeastSignificantBits(), rs.getTimestamp(2).getTime(),
+					interner.user(rs.getString(3)),
+					interner.jakeObject(rs.getString(4)), rs.getString(5),
+					rs.getString(6), rs.getBoolean(7));
 		} catch (SQLException e) {
 			throw new IllegalStateException(e);
 		}
 	}
 
 	@Override
-	public void setProcessed(LogEntry logEntry) throws NoSuchLogEntryException {
-		PreparedStatement stmt = getPrepared(DBQueries.DB_SETPROCESSEDBYID);
-		try {
-			stmt.setObject(0, logEntry.getId());
-			if (stmt.executeUpdate() == 0) {
-				throw new NoSuchLogEntryException();
+	public void setProcessed(final LogEntry logEntry)
+			throws NoSuchLogEntryException {
+		write(new Write<Void>() {
+
+			@Override
+			Void run() throws SQLException, NoSuchLogEntryException {
+				// the handed in entry may be outdated
+				LogEntry stored = getById(logEntry.getId(), true);
+				if (stored.getKnown())
+					return null;
+				PreparedStatement stmt = getPrepared(DBQueries.DB_SETPROCESSEDBYID);
+				PreparedStatement headStmt = getPrepared(DBQueries.DB_SETHEADPROCESSEDBYID);
+				stmt.setObject(1, stored.getId());
+				if (stmt.executeUpdate() == 0) {
+					throw new NoSuchLogEntryException();
+				}
+				headStmt.setObject(1, stored.getId());
+				headStmt.setString(2, stored.getWhat().getRelPath());
+				headStmt.executeUpdate();
+				return null;
 			}
-		} catch (SQLException e) {
-			throw new IllegalStateException(e);
-		}
+		});
 	}
 
 	@Override
 	public List<LogEntry> getUnprocessed() {
-		return getAll(true, false, null);
+		Session s = read();
+		try {
+			return getAll(true, false, null);
+		} finally {
+			done(s);
+		}
 	}
 
 	@Override
 	public List<LogEntry> getUnprocessed(JakeObject jakeobject) {
-		return getAll(true, false, jakeobject);
+		Session s = read();
+		try {
+			return getAll(true, false, jakeobject);
+		} finally {
+			done(s);
+		}
 	}
 
 	@Override
 	public boolean hasUnprocessed(JakeObject jakeObject) {
-		if (getUnprocessed(jakeObject).isEmpty())
-			return false;
-		else
-			return true;
+		Session s = read();
+		try {
+			PreparedStatement stmt = getPrepared(DBQueries.DB_GETHEADUNPROCESSED);
+			try {
+				stmt.setString(1, jakeObject.getRelPath());
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next() && rs.getInt(1) > 0)
+					return true;
+				else
+					return false;
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		} finally {
+			done(s);
+		}
 	}
 
 	@Override
 	public LogEntry getNextUnprocessed() throws NoSuchLogEntryException {
-		List<LogEntry> unprocessed = getUnprocessed();
-		if (unprocessed.isEmpty())
-			throw new NoSuchLogEntryException();
-		else
-			return unprocessed.iterator().next();
+		Session s = read();
+		try {
+			return getSingle(true, false, null, false);
+		} finally {
+			done(s);
+		}
 	}
 
 	private List<LogEntry> getAll(boolean includeUnprocessed,
 			boolean includeProcessed, JakeObject jo) {
-		PreparedStatement stmt = getStatement(includeUnprocessed,
-				includeProcessed, jo);
+		PreparedStatement stmt = getPrepared(getQuery(includeUnprocessed,
+				includeProcessed, jo) + DBQueries.DB_ORDERBYWHEN);
 		try {
-			ResultSet rs = stmt.executeQuery();
-			ArrayList<LogEntry> all = new ArrayList<LogEntry>();
-			while (rs.next()) {
-				all.add(resultToLogEntry(rs));
-			}
-			return all;
+			if (jo != null)
+				stmt.setString(1, jo.getRelPath());
+			return getResults(stmt);
 		} catch (SQLException e) {
 			throw new IllegalStateException(e);
 		}
@@ -196,38 +746,80 @@ public class LogImpl implements Log {
 	private LogEntry getLast(boolean includeUnprocessed,
 			boolean includeProcessed, JakeObject jo)
 			throws NoSuchLogEntryException {
-		List<LogEntry> all = getAll(includeUnprocessed, includeProcessed, jo);
-		if (all.isEmpty())
+		return getSingle(includeUnprocessed, includeProcessed, jo, true);
+	}
+
+	/**
+	 * @return the first (or last) entry by time, looked up with a single-row
+	 *         query
+	 */
+	private LogEntry getSingle(boolean includeUnprocessed,
+			boolean includeProcessed, JakeObject jo, boolean newestFirst)
+			throws NoSuchLogEntryException {
+		List<LogEntry> page = getPage(includeUnprocessed, includeProcessed,
+				jo, newestFirst, 0, 1);
+		if (page.isEmpty())
 			throw new NoSuchLogEntryException();
-		return all.get(all.size() - 1);
+		return page.get(0);
+	}
+
+	private List<LogEntry> getPage(boolean includeUnprocessed,
+			boolean includeProcessed, JakeObject jo, boolean newestFirst,
+			int offset, int limit) {
+		String query = getQuery(includeUnprocessed, includeProcessed, jo);
+		if (newestFirst)
+			query += DBQueries.DB_ORDERBYWHENDESC;
+		else
+			query += DBQueries.DB_ORDERBYWHEN;
+		PreparedStatement stmt = getPrepared(query + DBQueries.DB_LIMITOFFSET);
+		try {
+			int i = 1;
+			if (jo != null)
+				stmt.setString(i++, jo.getRelPath());
+			stmt.setInt(i++, limit);
+			stmt.setInt(i++, offset);
+			return getResults(stmt);
+		} catch (SQLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private List<LogEntry> getResults(PreparedStatement stmt)
+			throws SQLException {
+		ResultSet rs = stmt.executeQuery();
+		ArrayList<LogEntry> all = new ArrayList<LogEntry>();
+		while (rs.next()) {
+			all.add(resultToLogEntry(rs));
+		}
+		return all;
 	}
 
-	private PreparedStatement getStatement(boolean includeUnprocessed,
+	private String getQuery(boolean includeUnprocessed,
 			boolean includeProcessed, JakeObject jo) {
-		PreparedStatement stmt = null;
+		String query = null;
 		if (jo == null) {
 			if (includeProcessed)
 				// for getAll() calls
 				if (includeUnprocessed)
-					stmt = getPrepared(DBQueries.DB_GETALL);
+					query = DBQueries.DB_GETALL;
 				else
-					stmt = getPrepared(DBQueries.DB_GETPROCESSED);
+					query = DBQueries.DB_GETPROCESSED;
 			else if (includeUnprocessed)
 				// for getUnprocessed calls
-				stmt = getPrepared(DBQueries.DB_GETUNPROCESSED);
+				query = DBQueries.DB_GETUNPROCESSED;
 		} else {
 			if (includeUnprocessed)
 				if (includeProcessed)
 					// for getAllOfJakeObject(jo) calls
-					stmt = getPrepared(DBQueries.DB_GETALLFORWHAT);
+					query = DBQueries.DB_GETALLFORWHAT;
 				else
 					// for getUnprocessed(jo) calls
-					stmt = getPrepared(DBQueries.DB_GETUNPROCESSEDFORWHAT);
+					query = DBQueries.DB_GETUNPROCESSEDFORWHAT;
 			else if (includeProcessed)
 				// for getAllOfJakeObject(jo) calls
-				stmt = getPrepared(DBQueries.DB_GETPROCESSEDFORWHAT);
+				query = DBQueries.DB_GETPROCESSEDFORWHAT;
 		}
-		if (stmt == null) {
+		if (query == null) {
 			if (!includeProcessed && !includeUnprocessed) {
 				throw new IllegalArgumentException(
 						"neither processed nor unprocessed? "
@@ -235,21 +827,22 @@ public class LogImpl implements Log {
 			}
 			throw new IllegalStateException("query not found!");
 		}
-		return stmt;
+		return query;
 	}
 
-	private Map<String, PreparedStatement> queries = new HashMap<String, PreparedStatement>();
+	private Set<ILogModificationListener> listeners = new CopyOnWriteArraySet<ILogModificationListener>();
 
-	private Set<ILogModificationListener> listeners = new HashSet<ILogModificationListener>();
+	private final Interner interner = new Interner();
 
+	/**
+	 * @return the statement of the session of the current thread
+	 */
 	private PreparedStatement getPrepared(String query) {
-		PreparedStatement q = queries.get(query);
+		Session s = session.get();
+		if (s == null)
+			throw new IllegalStateException("no session");
 		try {
-			if (q == null) {
-				q = conn.prepareStatement(query);
-				queries.put(query, q);
-			}
-			return q;
+			return s.getPrepared(query);
 		} catch (SQLException e) {
 			throw new IllegalStateException(e);
 		}
@@ -257,62 +850,243 @@ public class LogImpl implements Log {
 
 	@Override
 	public List<LogEntry> getAll(boolean includeUnprocessed) {
-		return getAll(includeUnprocessed, true, null);
+		Session s = read();
+		try {
+			return getAll(includeUnprocessed, true, null);
+		} finally {
+			done(s);
+		}
 	}
 
 	@Override
 	public List<LogEntry> getAllOfJakeObject(JakeObject jakeObject,
 			boolean includeUnprocessed) {
-		return getAll(includeUnprocessed, true, jakeObject);
+		Session s = read();
+		try {
+			List<LogEntry> all = getAll(includeUnprocessed, true, jakeObject);
+			PreparedStatement stmt = getPrepared(DBQueries.DB_GETSEGMENTSOFWHAT);
+			try {
+				stmt.setString(1, jakeObject.getRelPath());
+				ResultSet rs = stmt.executeQuery();
+				List<Long> segments = new ArrayList<Long>();
+				while (rs.next()) {
+					segments.add(rs.getLong(1));
+				}
+				if (segments.isEmpty())
+					return all;
+				for (long segment : segments) {
+					for (LogEntry le : readSegment(segment)) {
+						if (le.getWhat().getRelPath().equals(
+								jakeObject.getRelPath()))
+							all.add(le);
+					}
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+			Collections.sort(all, LogEntry.ORDER);
+			return all;
+		} finally {
+			done(s);
+		}
 	}
 
 	@Override
 	public LogEntry getLastOfJakeObject(JakeObject jakeObject,
 			boolean includeUnprocessed) throws NoSuchLogEntryException {
-		return getLast(includeUnprocessed, true, jakeObject);
+		Session s = read();
+		try {
+			LogEntry head = getHead(jakeObject);
+			if (head == null)
+				throw new NoSuchLogEntryException();
+			if (includeUnprocessed || head.getKnown())
+				return head;
+			// the head is not processed yet, look for the last processed one
+			return getLast(false, true, jakeObject);
+		} finally {
+			done(s);
+		}
 	}
 
-	@Override
-	public List<JakeObject> getExistingFileObjects(boolean includeUnprocessed) {
-		PreparedStatement stmt;
-		if (includeUnprocessed)
-			stmt = getPrepared(DBQueries.DB_GETRELPATHSPROCESSED);
-		else
-			stmt = getPrepared(DBQueries.DB_GETRELPATHS);
+	/**
+	 * @return the latest entry of the JakeObject, processed or not.
+	 *         <code>null</code> if there is none.
+	 */
+	private LogEntry getHead(JakeObject jakeObject) {
+		PreparedStatement stmt = getPrepared(DBQueries.DB_GETHEAD);
 		try {
+			stmt.setString(1, jakeObject.getRelPath());
 			ResultSet rs = stmt.executeQuery();
-			ArrayList<JakeObject> all = new ArrayList<JakeObject>();
-			while (rs.next()) {
-				all.add(new JakeObject(rs.getString(0)));
-			}
-			return all;
+			if (rs.next())
+				return resultToLogEntry(rs);
+			else
+				return null;
 		} catch (SQLException e) {
 			throw new IllegalStateException(e);
 		}
 	}
 
+	@Override
+	public List<JakeObject> getExistingFileObjects(boolean includeUnprocessed) {
+		Session s = read();
+		try {
+			try {
+				ArrayList<JakeObject> all = new ArrayList<JakeObject>();
+				if (includeUnprocessed) {
+					for (String relpath : getRelPaths(DBQueries.DB_GETEXISTINGHEADS)) {
+						all.add(interner.jakeObject(relpath));
+					}
+				} else {
+					for (String relpath : getRelPaths(DBQueries.DB_GETEXISTINGPROCESSEDHEADS)) {
+						all.add(interner.jakeObject(relpath));
+					}
+					// few: the head is not processed yet, so look at the last
+					// processed one
+					for (String relpath : getRelPaths(DBQueries.DB_GETUNPROCESSEDHEADS)) {
+						JakeObject jo = interner.jakeObject(relpath);
+						try {
+							if (!isDelete(getLast(false, true, jo)))
+								all.add(jo);
+						} catch (NoSuchLogEntryException e) {
+							// only known remotely
+						}
+					}
+				}
+				return all;
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		} finally {
+			done(s);
+		}
+	}
+
+	private List<String> getRelPaths(String query) throws SQLException {
+		ResultSet rs = getPrepared(query).executeQuery();
+		List<String> relpaths = new ArrayList<String>();
+		while (rs.next()) {
+			relpaths.add(rs.getString(1));
+		}
+		return relpaths;
+	}
+
 	@Override
 	public LogEntry getFirstEntry() throws NoSuchLogEntryException {
-		List<LogEntry> all = getAll(true, true, null);
-		if (all.isEmpty())
-			throw new NoSuchLogEntryException();
-		return all.get(0);
+		Session s = read();
+		try {
+			return getSingle(true, true, null, false);
+		} finally {
+			done(s);
+		}
 	}
 
 	@Override
-	public void setAllPreviousProcessed(LogEntry logEntry) {
-		PreparedStatement stmt = getPrepared(DBQueries.DB_SETPROCESSEDFORWHAT);
+	public List<LogEntry> getPage(JakeObject jakeObject,
+			boolean includeUnprocessed, boolean newestFirst, int offset,
+			int limit) {
+		Session s = read();
 		try {
-			stmt.setObject(0, logEntry.getWhat());
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			throw new IllegalStateException(e);
+			return getPage(includeUnprocessed, true, jakeObject, newestFirst,
+					offset, limit);
+		} finally {
+			done(s);
+		}
+	}
+
+	@Override
+	public List<LogEntry> getPageAfter(JakeObject jakeObject,
+			boolean includeUnprocessed, LogEntry after, int limit) {
+		Session s = read();
+		try {
+			if (after == null)
+				return getPage(jakeObject, includeUnprocessed, false, 0, limit);
+			String query = getQuery(includeUnprocessed, true, jakeObject);
+			if (query.contains(" WHERE "))
+				query += " AND";
+			else
+				query += " WHERE";
+			query += DBQueries.DB_AFTERWHEN + DBQueries.DB_ORDERBYWHEN
+					+ DBQueries.DB_LIMITOFFSET;
+			PreparedStatement stmt = getPrepared(query);
+			try {
+				int i = 1;
+				if (jakeObject != null)
+					stmt.setString(i++, jakeObject.getRelPath());
+				stmt.setTimestamp(i++, after.getWhen());
+				stmt.setTimestamp(i++, after.getWhen());
+				stmt.setObject(i++, after.getId());
+				stmt.setInt(i++, limit);
+				stmt.setInt(i++, 0);
+				return getResults(stmt);
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		} finally {
+			done(s);
 		}
+	}
+
+	@Override
+	public void setAllPreviousProcessed(final LogEntry logEntry) {
+		writeUnchecked(new Write<Void>() {
+
+			@Override
+			Void run() throws SQLException {
+				PreparedStatement stmt = getPrepared(DBQueries.DB_SETPROCESSEDFORWHAT);
+				PreparedStatement headStmt = getPrepared(DBQueries.DB_SETHEADPROCESSEDFORWHAT);
+				stmt.setString(1, logEntry.getWhat().getRelPath());
+				stmt.executeUpdate();
+				headStmt.setString(1, logEntry.getWhat().getRelPath());
+				headStmt.executeUpdate();
+				return null;
+			}
+		});
 		for (ILogModificationListener l : this.listeners) {
 			l.logModified(logEntry.getWhat(), ModifyActions.MODIFIED);
 		}
 	}
 
+	@Override
+	public long getLastSequence() {
+		Session s = read();
+		try {
+			PreparedStatement stmt = getPrepared(DBQueries.DB_GETLASTSEQ);
+			try {
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next())
+					// MAX of nothing is NULL, which becomes 0
+					return rs.getLong(1);
+				return 0;
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		} finally {
+			done(s);
+		}
+	}
+
+	@Override
+	public List<LogEntry> getAllSince(long after, long upTo) {
+		Session s = read();
+		try {
+			PreparedStatement stmt = getPrepared(DBQueries.DB_GETALLINSEQRANGE);
+			try {
+				stmt.setLong(1, after);
+				stmt.setLong(2, upTo);
+				ResultSet rs = stmt.executeQuery();
+				ArrayList<LogEntry> all = new ArrayList<LogEntry>();
+				while (rs.next()) {
+					all.add(resultToLogEntry(rs));
+				}
+				return all;
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		} finally {
+			done(s);
+		}
+	}
+
 	@Override
 	public void addModificationListener(ILogModificationListener l) {
 		this.listeners.add(l);
@@ -322,4 +1096,117 @@ public class LogImpl implements Log {
 	public void removeModificationListener(ILogModificationListener l) {
 		this.listeners.remove(l);
 	}
+
+	@Override
+	public int archive(final Timestamp before) {
+		int archived = 0;
+		while (true) {
+			// one segment per transaction, other changes can go in between
+			int n = writeUnchecked(new Write<Integer>() {
+
+				@Override
+				Integer run() throws SQLException {
+					return archiveSegment(before);
+				}
+			});
+			archived += n;
+			if (n < SEGMENT_SIZE)
+				break;
+		}
+		return archived;
+	}
+
+	/**
+	 * @return the number of entries archived
+	 */
+	private int archiveSegment(Timestamp before) throws SQLException {
+		PreparedStatement select = getPrepared(DBQueries.DB_GETARCHIVABLE);
+		PreparedStatement insertSegment = getPrepared(DBQueries.DB_INSERTSEGMENT);
+		PreparedStatement insertArchived = getPrepared(DBQueries.DB_INSERTARCHIVED);
+		PreparedStatement delete = getPrepared(DBQueries.DB_DELETELOGBYID);
+		select.setTimestamp(1, before);
+		select.setInt(2, SEGMENT_SIZE);
+		List<LogEntry> entries = getResults(select);
+		if (entries.isEmpty())
+			return 0;
+		byte[] data;
+		try {
+			data = LogSegment.write(entries);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		insertSegment.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+		insertSegment.setBytes(2, data);
+		insertSegment.executeUpdate();
+		ResultSet rs = getPrepared(DBQueries.DB_GETLASTIDENTITY).executeQuery();
+		rs.next();
+		long segment = rs.getLong(1);
+		for (LogEntry le : entries) {
+			insertArchived.setObject(1, le.getId());
+			insertArchived.setString(2, le.getWhat().getRelPath());
+			insertArchived.setLong(3, segment);
+			insertArchived.addBatch();
+			delete.setObject(1, le.getId());
+			delete.addBatch();
+		}
+		insertArchived.executeBatch();
+		delete.executeBatch();
+		return entries.size();
+	}
+
+	@Override
+	public Iterator<LogEntry> getArchived() {
+		final List<Long> segments = new ArrayList<Long>();
+		Session s = read();
+		try {
+			ResultSet rs = getPrepared(DBQueries.DB_GETSEGMENTS).executeQuery();
+			while (rs.next()) {
+				segments.add(rs.getLong(1));
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			done(s);
+		}
+		return new Iterator<LogEntry>() {
+
+			private int next = 0;
+
+			private Iterator<LogEntry> current = Collections
+					.<LogEntry> emptyList().iterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext() && next < segments.size()) {
+					Session s = read();
+					try {
+						current = readSegment(segments.get(next++)).iterator();
+					} catch (SQLException e) {
+						throw new IllegalStateException(e);
+					} finally {
+						done(s);
+					}
+				}
+				return current.hasNext();
+			}
+
+			@Override
+			public LogEntry next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return current.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public Interner getInterner() {
+		return interner;
+	}
+
 }
@@ -0,0 +1,74 @@
+package com.jakeapp.violet.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the archive segments of {@link LogImpl}: the gzipped list of
+ * entries. Archived entries are always processed, so <code>known</code> is
+ * not stored.
+ */
+final class LogSegment {
+
+	private static final int VERSION = 1;
+
+	private LogSegment() {
+	}
+
+	static byte[] write(List<LogEntry> entries) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bos));
+		out.writeInt(VERSION);
+		out.writeInt(entries.size());
+		for (LogEntry le : entries) {
+			UUID id = le.getId();
+			out.writeLong(id.getMostSignificantBits());
+			out.writeLong(id.getLeastSignificantBits());
+			out.writeLong(le.getWhenMillis());
+			out.writeUTF(le.getWho().getUserId());
+			out.writeUTF(le.getWhat().getRelPath());
+			out.writeUTF(le.getWhy());
+			out.writeUTF(le.getHow());
+		}
+		out.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @param interner
+	 *            pool of the users and objects of the log
+	 */
+	static List<LogEntry> read(Interner interner, byte[] data)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(
+				new ByteArrayInputStream(data)));
+		try {
+			if (in.readInt() != VERSION)
+				throw new IOException("unknown segment version");
+			int n = in.readInt();
+			List<LogEntry> entries = new ArrayList<LogEntry>(n);
+			for (int i = 0; i < n; i++) {
+				long msb = in.readLong();
+				long lsb = in.readLong();
+				long when = in.readLong();
+				User who = interner.user(in.readUTF());
+				JakeObject what = interner.jakeObject(in.readUTF());
+				String why = in.readUTF();
+				String how = in.readUTF();
+				entries.add(new LogEntry(msb, lsb, when, who, what, why, how,
+						true));
+			}
+			return entries;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.jakeapp.violet.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * What we measured of the transfers with each user: how long it takes to agree
+ * on a transfer, how fast the data arrives and how often it failed lately.
+ * Used to ask the users first that are expected to be done first.
+ * 
+ * The averages are weighted exponentially, failures are forgotten over time.
+ * The stats are kept in a file, so they survive restarts.
+ * 
+ * Also remembers which users run a version that knows the newer requests,
+ * see {@link #isUpToDate(String)}.
+ */
+public class PeerStats {
+
+	private static final Logger log = Logger.getLogger(PeerStats.class);
+
+	/**
+	 * weight of a new measurement
+	 */
+	static final double WEIGHT = 0.3;
+
+	/**
+	 * in ms, for users we didn't measure yet
+	 */
+	static final double DEFAULT_LATENCY = 2000;
+
+	/**
+	 * in bytes per ms (about 100 KB/s), for users we didn't measure yet
+	 */
+	static final double DEFAULT_THROUGHPUT = 100;
+
+	/**
+	 * smaller transfers say more about the latency than about the throughput
+	 * and are not measured
+	 */
+	static final long MIN_MEASURED = 64 * 1024;
+
+	/**
+	 * in ms, after this a failure counts half
+	 */
+	static final long FAILURE_HALF_LIFE = 10 * 60 * 1000;
+
+	/**
+	 * in ms, what a recent failure adds to the expected time
+	 */
+	static final long FAILURE_PENALTY = 60 * 1000;
+
+	private static class Stats {
+
+		private double latency = DEFAULT_LATENCY;
+
+		private double throughput = DEFAULT_THROUGHPUT;
+
+		/**
+		 * failures, as of {@link #since}
+		 */
+		private double failures = 0;
+
+		private long since = 0;
+
+		/**
+		 * @return the failures, the older ones counting less
+		 */
+		double getFailures(long now) {
+			if (failures == 0)
+				return 0;
+			return failures
+					* Math.pow(0.5, (double) (now - since) / FAILURE_HALF_LIFE);
+		}
+	}
+
+	private final File file;
+
+	/**
+	 * userid -&gt; stats
+	 */
+	private final Map<String, Stats> peers = new HashMap<String, Stats>();
+
+	/**
+	 * userid -&gt; whether its version knows the newer requests. Not stored,
+	 * the user may update meanwhile.
+	 */
+	private final Map<String, Boolean> upToDate = new HashMap<String, Boolean>();
+
+	/**
+	 * @param file
+	 *            where the stats are stored, created if necessary
+	 */
+	public PeerStats(File file) {
+		this.file = file;
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		load();
+	}
+
+	/**
+	 * the user agreed to a transfer
+	 * 
+	 * @param millis
+	 *            since we asked
+	 */
+	public synchronized void negotiated(String userid, long millis) {
+		Stats s = get(userid);
+		s.latency += WEIGHT * (millis - s.latency);
+		save();
+	}
+
+	/**
+	 * a transfer from the user succeeded
+	 * 
+	 * @param bytes
+	 *            that arrived
+	 * @param millis
+	 *            since the transfer started
+	 */
+	public synchronized void transferred(String userid, long bytes,
+			long millis) {
+		Stats s = get(userid);
+		if (bytes >= MIN_MEASURED) {
+			double throughput = (double) bytes / Math.max(millis, 1);
+			s.throughput += WEIGHT * (throughput - s.throughput);
+		}
+		long now = System.currentTimeMillis();
+		s.failures = s.getFailures(now) / 2;
+		s.since = now;
+		save();
+	}
+
+	/**
+	 * a request to the user failed
+	 */
+	public synchronized void failed(String userid) {
+		Stats s = get(userid);
+		long now = System.currentTimeMillis();
+		s.failures = s.getFailures(now) + 1;
+		s.since = now;
+		save();
+	}
+
+	/**
+	 * @return whether the version of the user knows the requests older
+	 *         versions reject: ranges, compression and supplied signatures.
+	 *         null if we don't know yet.
+	 */
+	public synchronized Boolean isUpToDate(String userid) {
+		return upToDate.get(userid);
+	}
+
+	public synchronized void setUpToDate(String userid, boolean upToDate) {
+		this.upToDate.put(userid, upToDate);
+	}
+
+	/**
+	 * @param size
+	 *            of the transfer, in bytes
+	 * @return how long a transfer from the user is expected to take, in ms
+	 */
+	public synchronized double getExpectedTime(String userid, long size) {
+		Stats s = peers.get(userid);
+		if (s == null)
+			s = new Stats();
+		return s.latency + size / s.throughput + FAILURE_PENALTY
+				* s.getFailures(System.currentTimeMillis());
+	}
+
+	private Stats get(String userid) {
+		Stats s = peers.get(userid);
+		if (s == null) {
+			s = new Stats();
+			peers.put(userid, s);
+		}
+		return s;
+	}
+
+	private void load() {
+		if (!file.exists())
+			return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String userid = in.readUTF();
+					Stats s = new Stats();
+					s.latency = in.readDouble();
+					s.throughput = in.readDouble();
+					s.failures = in.readDouble();
+					s.since = in.readLong();
+					if (s.throughput > 0)
+						peers.put(userid, s);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.warn("reading " + file + " failed, keeping what was read", e);
+		}
+	}
+
+	private void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream os = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				os.writeInt(peers.size());
+				for (Map.Entry<String, Stats> e : peers.entrySet()) {
+					Stats s = e.getValue();
+					os.writeUTF(e.getKey());
+					os.writeDouble(s.latency);
+					os.writeDouble(s.throughput);
+					os.writeDouble(s.failures);
+					os.writeLong(s.since);
+				}
+			} finally {
+				os.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("renaming " + tmp + " failed");
+		} catch (IOException e) {
+			log.warn("writing " + file + " failed", e);
+			tmp.delete();
+		}
+	}
+}
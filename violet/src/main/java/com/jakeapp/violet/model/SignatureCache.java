@@ -0,0 +1,312 @@
+package com.jakeapp.violet.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.metastatic.rsync.Rdiff;
+
+import com.jakeapp.jake.fss.IModificationListener;
+
+/**
+ * Keeps the rdiff signatures of the files we serve on disk, so that they are
+ * computed once per version instead of once per request.
+ * 
+ * A signature is stored in a file named after the relpath and the hash of the
+ * version it belongs to. The least recently used signatures are removed when
+ * the cache grows beyond its size. Register this with the
+ * <code>IFSService</code>, so that the signatures of modified files are
+ * removed right away.
+ */
+public class SignatureCache implements IModificationListener {
+
+	private static final Logger log = Logger.getLogger(SignatureCache.class);
+
+	/**
+	 * default size of all signatures together, in bytes
+	 */
+	public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File dir;
+
+	private final long maxSize;
+
+	/**
+	 * file name -&gt; size, least recently used first
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+
+	private long size = 0;
+
+	/**
+	 * file name -&gt; signatures being written, not deleted meanwhile
+	 */
+	private final Map<String, Integer> readers = new HashMap<String, Integer>();
+
+	/**
+	 * removed while being written, deleted after that
+	 */
+	private final Set<String> removed = new HashSet<String>();
+
+	/**
+	 * @param dir
+	 *            where the signatures are stored, created if necessary
+	 * @param maxSize
+	 *            size of all signatures together, in bytes
+	 */
+	public SignatureCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		dir.mkdirs();
+		load();
+	}
+
+	public SignatureCache(File dir) {
+		this(dir, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * reads what is left from last time, the oldest first
+	 */
+	private synchronized void load() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File a, File b) {
+				long c = a.lastModified() - b.lastModified();
+				return c < 0 ? -1 : (c == 0 ? 0 : 1);
+			}
+		});
+		for (File f : files) {
+			if (f.getName().endsWith(TMP_SUFFIX)) {
+				// left over from a crash
+				f.delete();
+				continue;
+			}
+			entries.put(f.getName(), f.length());
+			size += f.length();
+		}
+		evict();
+	}
+
+	/**
+	 * writes the signature of the file to the stream, computing it if it is
+	 * not cached. The cached signature is not deleted while it is written.
+	 * 
+	 * @param relpath
+	 *            the file
+	 * @param hash
+	 *            the hash of the current content of the file
+	 * @param file
+	 *            the file to compute the signature of if it is not cached
+	 * @param os
+	 *            gets the signature, it is not closed
+	 * @throws IOException
+	 */
+	public void writeSignature(String relpath, String hash, File file,
+			OutputStream os) throws IOException {
+		String name = getName(relpath, hash);
+		File f = pin(name);
+		if (f == null)
+			f = create(relpath, name, file);
+		try {
+			InputStream is = new FileInputStream(f);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int n;
+				while ((n = is.read(buf)) >= 0)
+					os.write(buf, 0, n);
+			} finally {
+				is.close();
+			}
+		} finally {
+			if (f.getName().equals(name))
+				unpin(name);
+			else
+				f.delete();
+		}
+	}
+
+	/**
+	 * @return the cached signature, null if there is none
+	 */
+	private synchronized File pin(String name) {
+		if (entries.get(name) == null)
+			return null;
+		File f = new File(dir, name);
+		if (!f.exists()) {
+			remove(name);
+			return null;
+		}
+		// remembered for the next start
+		f.setLastModified(System.currentTimeMillis());
+		Integer count = readers.get(name);
+		readers.put(name, count == null ? 1 : count + 1);
+		return f;
+	}
+
+	private synchronized void unpin(String name) {
+		int count = readers.get(name) - 1;
+		if (count > 0) {
+			readers.put(name, count);
+			return;
+		}
+		readers.remove(name);
+		if (removed.remove(name))
+			new File(dir, name).delete();
+	}
+
+	/**
+	 * computes the signature
+	 * 
+	 * @return the signature, pinned if it was cached, else a temporary file
+	 */
+	private File create(String relpath, String name, File file)
+			throws IOException {
+		long modified = file.lastModified();
+		long length = file.length();
+		File tmp = File.createTempFile(name, TMP_SUFFIX, dir);
+		InputStream is = new FileInputStream(file);
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				new Rdiff().makeSignatures(is, os);
+			} finally {
+				os.close();
+			}
+		} catch (Exception e) {
+			tmp.delete();
+			if (e instanceof IOException)
+				throw (IOException) e;
+			throw new IOException(e.toString());
+		} finally {
+			is.close();
+		}
+		if (file.lastModified() != modified || file.length() != length) {
+			// modified meanwhile, don't keep it under the old hash
+			log.debug(relpath + " was modified while signing it");
+			return tmp;
+		}
+
+		synchronized (this) {
+			if (readers.containsKey(name))
+				// the old one is still being read
+				return tmp;
+			File f = new File(dir, name);
+			if (entries.get(name) != null)
+				remove(name);
+			if (!tmp.renameTo(f)) {
+				log.warn("could not store signature of " + relpath);
+				return tmp;
+			}
+			entries.put(name, f.length());
+			size += f.length();
+			readers.put(name, 1);
+			evict();
+			return f;
+		}
+	}
+
+	/**
+	 * removes the signatures of all versions of the file
+	 */
+	public synchronized void invalidate(String relpath) {
+		String prefix = getPrefix(relpath);
+		List<String> names = new ArrayList<String>();
+		for (String name : entries.keySet()) {
+			if (name.startsWith(prefix))
+				names.add(name);
+		}
+		for (String name : names)
+			remove(name);
+	}
+
+	@Override
+	public void fileModified(String relpath, ModifyActions action) {
+		invalidate(relpath);
+	}
+
+	/**
+	 * @return the size of all signatures together, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			it.remove();
+			size -= e.getValue();
+			delete(e.getKey());
+		}
+	}
+
+	private void remove(String name) {
+		Long length = entries.remove(name);
+		if (length != null)
+			size -= length;
+		delete(name);
+	}
+
+	private void delete(String name) {
+		if (readers.containsKey(name))
+			removed.add(name);
+		else
+			new File(dir, name).delete();
+	}
+
+	private static String getName(String relpath, String hash) {
+		return getPrefix(relpath) + hex(digest(hash));
+	}
+
+	/**
+	 * the names of all signatures of a file start with this
+	 */
+	private static String getPrefix(String relpath) {
+		return hex(digest(relpath)) + "-";
+	}
+
+	private static byte[] digest(String s) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte x : b) {
+			sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(x & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,123 @@
+package com.jakeapp.violet.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps what arrived of versions whose transfer failed partway, so that the
+ * next request continues where it stopped instead of starting over.
+ * 
+ * The part of a version is stored in a file named after its log entry id, so
+ * any user that has the same version can send the rest. Parts that were not
+ * continued for {@link #MAX_AGE} are removed on startup.
+ */
+public class TransferSpool {
+
+	private static final Logger log = Logger.getLogger(TransferSpool.class);
+
+	/**
+	 * in ms
+	 */
+	public static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+	private static final String SUFFIX = ".part";
+
+	private final File dir;
+
+	/**
+	 * @param dir
+	 *            where the parts are stored, created if necessary
+	 */
+	public TransferSpool(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+		clean();
+	}
+
+	private void clean() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		long oldest = System.currentTimeMillis() - MAX_AGE;
+		for (File f : files) {
+			if (f.lastModified() < oldest) {
+				log.debug("removing stale part " + f);
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes of the version we already have
+	 */
+	public synchronized long getOffset(UUID logEntryId) {
+		return getPart(logEntryId).length();
+	}
+
+	/**
+	 * @return the file holding the part of the version. It may not exist.
+	 *         Don't modify it.
+	 */
+	public File getPart(UUID logEntryId) {
+		return new File(dir, logEntryId + SUFFIX);
+	}
+
+	/**
+	 * appends what was received to the part of the version. Bytes we already
+	 * have are skipped, so transfers that started at an older offset can be
+	 * added as well.
+	 * 
+	 * @param offset
+	 *            where the received data starts in the version
+	 * @param data
+	 *            the received data
+	 * @return the bytes of the version we have now
+	 * @throws IOException
+	 */
+	public synchronized long append(UUID logEntryId, long offset, File data)
+			throws IOException {
+		File part = getPart(logEntryId);
+		long length = part.length();
+		if (offset > length) {
+			log.debug("can't append at " + offset + " to " + length
+					+ " bytes of " + logEntryId);
+			return length;
+		}
+		InputStream is = new FileInputStream(data);
+		try {
+			long skip = length - offset;
+			while (skip > 0) {
+				long skipped = is.skip(skip);
+				if (skipped <= 0)
+					return length;
+				skip -= skipped;
+			}
+			OutputStream os = new FileOutputStream(part, true);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int n;
+				while ((n = is.read(buf)) >= 0)
+					os.write(buf, 0, n);
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+		return part.length();
+	}
+
+	/**
+	 * forgets the part of the version
+	 */
+	public synchronized void remove(UUID logEntryId) {
+		getPart(logEntryId).delete();
+	}
+}
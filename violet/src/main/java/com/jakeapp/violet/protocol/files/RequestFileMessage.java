@@ -1,8 +1,11 @@
 package com.jakeapp.violet.protocol.files;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.violet.model.ChunkManifest;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.protocol.Message;
 
@@ -13,16 +16,74 @@ import com.jakeapp.violet.protocol.Message;
  * 
  * - delta (type = "delta"). delta:UUID -- uuid is identifier
  * 
+ * - delta against a supplied signature (type = "deltasupplied").
+ * deltasupplied:UUID -- uuid is identifier. The signature of the requester's
+ * version was sent right before as a
+ * {@link com.jakeapp.violet.protocol.msg.SignatureMessage}, so the delta is
+ * made without requesting it.
+ * 
  * - signature (type = "signature"). signature:relpath -- relpath is identifier
+ * 
+ * - logs (type = "logs"). logs: -- no identifier, the whole log
+ * 
+ * - logs since (type = "logssince"). logssince:seq -- the last sequence number
+ * we saw from this peer is identifier, only newer entries are sent
+ * 
+ * - reconcile (type = "reconcile"). reconcile:t-tab-e0f3 -- a list of buckets
+ * of the {@link com.jakeapp.violet.model.LogDigest} is identifier. For
+ * <code>t</code> and a prefix the digests of the 16 children are sent, for
+ * <code>e</code> and a prefix all log entries of that bucket.
+ * 
+ * - manifest (type = "manifest"). manifest:UUID -- uuid is identifier, the
+ * {@link com.jakeapp.violet.model.ChunkManifest} of the version is sent
+ * 
+ * - chunk (type = "chunk"). chunk:UUID_offset_length -- a chunk of the
+ * version from its manifest is identifier, or a run of consecutive chunks of
+ * up to {@link com.jakeapp.violet.model.ChunkManifest#MAX_RUN} bytes
+ * 
+ * - range (type = "range"). range:UUID_offset -- the version from offset to
+ * its end is sent, to continue a transfer that failed partway
+ * 
+ * A file, range or delta request can be marked compressed (type = "file+z"
+ * etc.), the data is sent compressed then, see {@link TransferCompression}.
+ * A full version that doesn't get smaller may be sent as it is.
+ * Older versions reject marked requests, so unmarked ones are sent to them.
  */
 public class RequestFileMessage extends Message {
 
+	/**
+	 * reconcile: asks for the children of the bucket
+	 */
+	public static final char RECONCILE_CHILDREN = 't';
+
+	/**
+	 * reconcile: asks for the log entries of the bucket
+	 */
+	public static final char RECONCILE_ENTRIES = 'e';
+
+	/**
+	 * reconcile: between the buckets. Can't be a dot, see
+	 * {@link RequestMarshaller}
+	 */
+	public static final String RECONCILE_SEPARATOR = "-";
+
+	/**
+	 * chunk and range: between log entry id, offset and length. Can't be a
+	 * dot or a part of the id.
+	 */
+	public static final String CHUNK_SEPARATOR = "_";
+
 	private RequestType type;
 
 	private String identifier;
 
+	private boolean compressed = false;
+
 	public enum RequestType {
-		FILE("file"), LOGS("logs"), DELTA("delta"), SIGNATURE("signature");
+		FILE("file"), LOGS("logs"), LOGS_SINCE("logssince"), DELTA("delta"),
+		SIGNATURE("signature"), RECONCILE("reconcile"),
+		DELTA_SUPPLIED("deltasupplied"), MANIFEST("manifest"), CHUNK("chunk"),
+		RANGE("range");
 
 		private String s;
 
@@ -34,6 +95,20 @@ public class RequestFileMessage extends Message {
 		public String toString() {
 			return s;
 		}
+
+		/**
+		 * inverse of {@link #toString()}
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if there is no such type
+		 */
+		public static RequestType fromString(String s) {
+			for (RequestType t : values()) {
+				if (t.s.equals(s))
+					return t;
+			}
+			throw new IllegalArgumentException("unknown request type: " + s);
+		}
 	}
 
 	public void setType(RequestType type) {
@@ -52,6 +127,17 @@ public class RequestFileMessage extends Message {
 		return identifier;
 	}
 
+	/**
+	 * @return whether the requester wants the data compressed
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
 	RequestFileMessage(UUID projectId, UserId user, RequestType type,
 			String identifier) {
 		super(projectId, user);
@@ -92,6 +178,55 @@ public class RequestFileMessage extends Message {
 		return new RequestFileMessage(projectId, user, RequestType.LOGS, "");
 	}
 
+	/**
+	 * Requesting the log entries the other user got after the ones we already
+	 * have from her
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param watermark
+	 *            the last sequence number we got from user, 0 for the whole
+	 *            log
+	 * @return the message
+	 */
+	public static RequestFileMessage createRequestLogsSinceMessage(
+			UUID projectId, UserId user, long watermark) {
+		return new RequestFileMessage(projectId, user, RequestType.LOGS_SINCE,
+				Long.toString(watermark));
+	}
+
+	/**
+	 * Requesting a step of the log reconciliation
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param children
+	 *            prefixes of the buckets whose children we want to compare
+	 * @param entries
+	 *            prefixes of the buckets whose log entries we want
+	 * @return the message
+	 */
+	public static RequestFileMessage createReconcileMessage(UUID projectId,
+			UserId user, List<String> children, List<String> entries) {
+		StringBuilder identifier = new StringBuilder();
+		for (String prefix : children) {
+			if (identifier.length() > 0)
+				identifier.append(RECONCILE_SEPARATOR);
+			identifier.append(RECONCILE_CHILDREN).append(prefix);
+		}
+		for (String prefix : entries) {
+			if (identifier.length() > 0)
+				identifier.append(RECONCILE_SEPARATOR);
+			identifier.append(RECONCILE_ENTRIES).append(prefix);
+		}
+		return new RequestFileMessage(projectId, user, RequestType.RECONCILE,
+				identifier.toString());
+	}
+
 	/**
 	 * Requesting a delta update file
 	 * 
@@ -109,6 +244,103 @@ public class RequestFileMessage extends Message {
 				.getId().toString());
 	}
 
+	/**
+	 * Requesting a delta update file against the signature we sent before
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param le
+	 *            relevant Log entry
+	 * @return the message
+	 */
+	public static RequestFileMessage createRequestSuppliedDeltaMessage(
+			UUID projectId, UserId user, LogEntry le) {
+		return new RequestFileMessage(projectId, user,
+				RequestType.DELTA_SUPPLIED, le.getId().toString());
+	}
+
+	/**
+	 * Requesting the chunk manifest of a version
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param le
+	 *            relevant Log entry
+	 * @return the message
+	 */
+	public static RequestFileMessage createRequestManifestMessage(
+			UUID projectId, UserId user, LogEntry le) {
+		return new RequestFileMessage(projectId, user, RequestType.MANIFEST,
+				le.getId().toString());
+	}
+
+	/**
+	 * Requesting a chunk of a version
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param le
+	 *            relevant Log entry
+	 * @param chunk
+	 *            from the manifest of the version
+	 * @return the message
+	 */
+	public static RequestFileMessage createRequestChunkMessage(UUID projectId,
+			UserId user, LogEntry le, ChunkManifest.Chunk chunk) {
+		return createRequestChunkMessage(projectId, user, le, Collections
+				.singletonList(chunk));
+	}
+
+	/**
+	 * Requesting a run of chunks of a version at once
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param le
+	 *            relevant Log entry
+	 * @param run
+	 *            consecutive chunks from the manifest of the version
+	 * @return the message
+	 */
+	public static RequestFileMessage createRequestChunkMessage(UUID projectId,
+			UserId user, LogEntry le, List<ChunkManifest.Chunk> run) {
+		ChunkManifest.Chunk first = run.get(0);
+		ChunkManifest.Chunk last = run.get(run.size() - 1);
+		long length = last.getOffset() + last.getLength() - first.getOffset();
+		String identifier = le.getId() + CHUNK_SEPARATOR + first.getOffset()
+				+ CHUNK_SEPARATOR + length;
+		return new RequestFileMessage(projectId, user, RequestType.CHUNK,
+				identifier);
+	}
+
+	/**
+	 * Requesting the rest of a version
+	 * 
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param le
+	 *            relevant Log entry
+	 * @param offset
+	 *            the bytes of the version we already have
+	 * @return the message
+	 */
+	public static RequestFileMessage createRequestRangeMessage(UUID projectId,
+			UserId user, LogEntry le, long offset) {
+		String identifier = le.getId() + CHUNK_SEPARATOR + offset;
+		return new RequestFileMessage(projectId, user, RequestType.RANGE,
+				identifier);
+	}
+
 	/**
 	 * Requesting a signature of what the current checksums are, so that a delta
 	 * can be created
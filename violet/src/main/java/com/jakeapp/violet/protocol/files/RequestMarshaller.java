@@ -15,6 +15,11 @@ public class RequestMarshaller implements IRequestMarshaller {
 
 	private static final String FIELD_SEPERATOR = ".";
 
+	/**
+	 * appended to the type of compressed requests
+	 */
+	private static final String COMPRESSED_SUFFIX = "+z";
+
 	private static Logger log = Logger.getLogger(RequestMarshaller.class);
 
 	/*
@@ -27,8 +32,11 @@ public class RequestMarshaller implements IRequestMarshaller {
 	@Override
 	public String serialize(RequestFileMessage msg) {
 		// can't use XML characters
-		return msg.getProjectId() + FIELD_SEPERATOR + msg.getType()
-				+ FIELD_SEPERATOR + msg.getIdentifier();
+		String type = msg.getType().toString();
+		if (msg.isCompressed())
+			type += COMPRESSED_SUFFIX;
+		return msg.getProjectId() + FIELD_SEPERATOR + type + FIELD_SEPERATOR
+				+ msg.getIdentifier();
 	}
 
 	/*
@@ -43,9 +51,17 @@ public class RequestMarshaller implements IRequestMarshaller {
 			UserId from) {
 		try {
 			String[] parts = incomingMessage.split("\\" + FIELD_SEPERATOR, 3);
-			RequestType t = RequestFileMessage.RequestType.valueOf(parts[1]);
+			String type = parts[1];
+			boolean compressed = type.endsWith(COMPRESSED_SUFFIX);
+			if (compressed)
+				type = type.substring(0, type.length()
+						- COMPRESSED_SUFFIX.length());
+			RequestType t = RequestFileMessage.RequestType.fromString(type);
 			UUID projectId = UUID.fromString(parts[0]);
-			return new RequestFileMessage(projectId, from, t, parts[2]);
+			RequestFileMessage msg = new RequestFileMessage(projectId, from, t,
+					parts[2]);
+			msg.setCompressed(compressed);
+			return msg;
 		} catch (Exception e) {
 			log.warn("decoding problem", e);
 			return null;
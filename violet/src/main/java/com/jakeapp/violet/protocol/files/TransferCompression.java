@@ -0,0 +1,168 @@
+package com.jakeapp.violet.protocol.files;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of full versions and deltas on the wire. A requester that wants
+ * it marks the request, see {@link RequestFileMessage#isCompressed()}, the
+ * sender then sends a zlib stream. Content that doesn't get smaller is sent
+ * in stored blocks, except for a full version: that is sent as it is, straight
+ * from the project, and the requester tells it apart by its missing zlib
+ * header, see {@link #isZlib(File)}.
+ * 
+ * Whether content compresses is told by the extension of the file for the
+ * requester, and by compressing a sample of it for the sender.
+ */
+public class TransferCompression {
+
+	/**
+	 * bytes of a file compressed to tell if it is worth it
+	 */
+	static final int SAMPLE = 64 * 1024;
+
+	/**
+	 * a sample has to get smaller than this part of it
+	 */
+	static final double MIN_RATIO = 0.9;
+
+	private static final int BUFFER = 64 * 1024;
+
+	/**
+	 * extensions of formats that are compressed already
+	 */
+	private static final Set<String> COMPRESSED = new HashSet<String>(Arrays
+			.asList("zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar",
+					"war", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4",
+					"m4a", "ogg", "avi", "mkv", "mov", "pdf", "docx", "xlsx",
+					"pptx", "odt", "ods", "odp"));
+
+	/**
+	 * @return false if the name of the file tells it is compressed already
+	 */
+	public static boolean isCompressible(String relpath) {
+		String name = relpath.substring(relpath.lastIndexOf('/') + 1);
+		int dot = name.lastIndexOf('.');
+		if (dot < 0)
+			return true;
+		return !COMPRESSED.contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	/**
+	 * @return whether the start of the file gets smaller when compressed
+	 * @throws IOException
+	 */
+	public static boolean isCompressible(File file) throws IOException {
+		byte[] sample = new byte[SAMPLE];
+		int length = 0;
+		InputStream is = new FileInputStream(file);
+		try {
+			int n;
+			while (length < SAMPLE
+					&& (n = is.read(sample, length, SAMPLE - length)) >= 0)
+				length += n;
+		} finally {
+			is.close();
+		}
+		if (length == 0)
+			return false;
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] out = new byte[BUFFER];
+			long compressed = 0;
+			while (!deflater.finished())
+				compressed += deflater.deflate(out);
+			return compressed < length * MIN_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return whether the file starts with a zlib header. Few other files do.
+	 * @throws IOException
+	 */
+	public static boolean isZlib(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			int cmf = is.read();
+			int flg = is.read();
+			if (cmf < 0 || flg < 0)
+				return false;
+			// deflate, a window of at most 32K, no preset dictionary
+			return (cmf & 0x0f) == 8 && (cmf >> 4) <= 7
+					&& (flg & 0x20) == 0 && ((cmf << 8) | flg) % 31 == 0;
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * @param os
+	 *            where the zlib stream is written to
+	 * @param content
+	 *            the file the data comes from, decides if it is compressed
+	 *            or only stored
+	 * @return the stream to write the data to. Close it.
+	 * @throws IOException
+	 */
+	public static OutputStream compress(OutputStream os, File content)
+			throws IOException {
+		int level = isCompressible(content) ? Deflater.BEST_SPEED
+				: Deflater.NO_COMPRESSION;
+		final Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(os, deflater, BUFFER) {
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param file
+	 *            a zlib stream, it may be cut off
+	 * @return a temporary file holding what could be decompressed
+	 * @throws IOException
+	 *             if the data is broken
+	 */
+	public static File decompress(File file) throws IOException {
+		File out = File.createTempFile("inflated", "recv");
+		out.deleteOnExit();
+		InputStream is = new InflaterInputStream(new FileInputStream(file));
+		try {
+			OutputStream os = new FileOutputStream(out);
+			try {
+				byte[] buf = new byte[BUFFER];
+				int n;
+				while ((n = is.read(buf)) >= 0)
+					os.write(buf, 0, n);
+			} catch (EOFException e) {
+				// cut off, what was decompressed is fine
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+		return out;
+	}
+}
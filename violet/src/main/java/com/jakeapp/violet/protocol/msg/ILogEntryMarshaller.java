@@ -3,37 +3,101 @@ package com.jakeapp.violet.protocol.msg;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
+import com.jakeapp.violet.model.LogDigest;
 import com.jakeapp.violet.model.LogEntry;
 
 public interface ILogEntryMarshaller {
 
 	/**
-	 * serialize the log entries
+	 * serialize the log entries. They are written as they are taken from the
+	 * iterator, so the log never has to be in memory as a whole.
 	 * 
 	 * @param projectid
 	 * @param logs
-	 * @return
+	 * @param os
 	 * @throws IOException
 	 */
-	public abstract void packLogEntries(UUID projectid, List<LogEntry> logs,
+	public abstract void packLogEntries(UUID projectid, Iterator<LogEntry> logs,
 			OutputStream os) throws IOException;
 
 	/**
-	 * de-serialize the log entries
+	 * de-serialize the log entries. Each entry is handed to the receiver as
+	 * soon as it is decoded.
 	 * 
 	 * @param projectid
+	 * @param is
+	 * @param receiver
+	 * @throws IOException
+	 */
+	public abstract void unpackLogEntries(UUID projectid, InputStream is,
+			ILogEntryReceiver receiver) throws IOException;
+
+	/**
+	 * serialize the log entries of an incremental log sync, together with the
+	 * sequence number the receiver should ask for next time
+	 * 
+	 * @param projectid
+	 * @param watermark
+	 *            sequence number of the last entry in logs
+	 * @param logs
+	 * @param os
+	 * @throws IOException
+	 */
+	public abstract void packLogEntriesSince(UUID projectid, long watermark,
+			Iterator<LogEntry> logs, OutputStream os) throws IOException;
+
+	/**
+	 * de-serialize the log entries of an incremental log sync
+	 * 
+	 * @param projectid
+	 * @param is
+	 * @param receiver
+	 *            gets the log entries as soon as they are decoded
+	 * @return the watermark to use for the next sync
+	 * @throws IOException
+	 */
+	public abstract long unpackLogEntriesSince(UUID projectid, InputStream is,
+			ILogEntryReceiver receiver) throws IOException;
+
+	/**
+	 * serialize a step of the log reconciliation
+	 * 
+	 * @param projectid
+	 * @param watermark
+	 *            the last sequence number of the digest the buckets are from
+	 * @param buckets
+	 *            the requested children
 	 * @param logs
-	 * @return
+	 *            the log entries of the requested buckets
+	 * @param os
+	 * @throws IOException
+	 */
+	public abstract void packReconciliation(UUID projectid, long watermark,
+			List<LogDigest.Bucket> buckets, Iterator<LogEntry> logs,
+			OutputStream os) throws IOException;
+
+	/**
+	 * de-serialize a step of the log reconciliation
+	 * 
+	 * @param projectid
+	 * @param is
+	 * @param buckets
+	 *            the decoded buckets are added here
+	 * @param receiver
+	 *            gets the log entries as soon as they are decoded
+	 * @return the watermark of the digest
 	 * @throws IOException
 	 */
-	public abstract List<LogEntry> unpackLogEntries(UUID projectid,
-			InputStream is) throws IOException;
+	public abstract long unpackReconciliation(UUID projectid, InputStream is,
+			List<LogDigest.Bucket> buckets, ILogEntryReceiver receiver)
+			throws IOException;
 
 	public abstract String serializeLogEntry(LogEntry le) throws IOException;
 
 	public abstract LogEntry deSerializeLogEntry(String s) throws IOException;
 
-}
\ No newline at end of file
+}
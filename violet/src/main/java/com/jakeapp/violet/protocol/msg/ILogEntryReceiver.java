@@ -0,0 +1,21 @@
+package com.jakeapp.violet.protocol.msg;
+
+import java.io.IOException;
+
+import com.jakeapp.violet.model.LogEntry;
+
+/**
+ * Gets the log entries one by one while they are decoded by a
+ * {@link ILogEntryMarshaller}.
+ */
+public interface ILogEntryReceiver {
+
+	/**
+	 * @param le
+	 *            the next decoded log entry
+	 * @throws IOException
+	 *             to abort decoding
+	 */
+	void received(LogEntry le) throws IOException;
+
+}
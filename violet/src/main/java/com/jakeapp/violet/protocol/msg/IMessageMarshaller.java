@@ -27,4 +27,32 @@ public interface IMessageMarshaller {
 	 */
 	public abstract String serialize(PokeMessage msg) throws IOException;
 
+	/**
+	 * @param s
+	 *            message in string format
+	 * @return whether s is a signature message, and not a poke
+	 */
+	public abstract boolean isSignatureMessage(String s);
+
+	/**
+	 * de-serialize the signature message
+	 * 
+	 * @param s
+	 *            message in string format
+	 * @param from
+	 * @return the Message
+	 * @throws IOException
+	 */
+	public abstract SignatureMessage decodeSignatureMessage(String s,
+			UserId from) throws IOException;
+
+	/**
+	 * serialize the signature message
+	 * 
+	 * @param msg
+	 * @return
+	 * @throws IOException
+	 */
+	public abstract String serialize(SignatureMessage msg) throws IOException;
+
 }
\ No newline at end of file
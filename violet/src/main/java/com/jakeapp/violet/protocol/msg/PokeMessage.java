@@ -1,5 +1,8 @@
 package com.jakeapp.violet.protocol.msg;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import com.jakeapp.jake.ics.UserId;
@@ -7,28 +10,58 @@ import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.protocol.Message;
 
 /**
- * Newsflash about a new log entry.
+ * Newsflash about new log entries. Without entries, it asks the receiver to
+ * do a logsync with us.
  */
 public class PokeMessage extends Message {
 
-	private LogEntry logEntry;
+	private List<LogEntry> logEntries;
 
+	/**
+	 * @return the first log entry, null if there is none
+	 */
 	public LogEntry getLogEntry() {
-		return logEntry;
+		if (logEntries.isEmpty())
+			return null;
+		return logEntries.get(0);
 	}
 
 	public void setLogEntry(LogEntry logEntry) {
-		this.logEntry = logEntry;
+		if (logEntry == null)
+			setLogEntries(Collections.<LogEntry> emptyList());
+		else
+			setLogEntries(Collections.singletonList(logEntry));
 	}
 
-	private PokeMessage(UUID projectId, UserId user, LogEntry logEntry) {
-		super(projectId, user);
-		setLogEntry(logEntry);
+	/**
+	 * @return the log entries, empty if the receiver should sync with us
+	 */
+	public List<LogEntry> getLogEntries() {
+		return logEntries;
+	}
 
+	public void setLogEntries(List<LogEntry> logEntries) {
+		this.logEntries = new ArrayList<LogEntry>(logEntries);
+	}
+
+	private PokeMessage(UUID projectId, UserId user, List<LogEntry> logEntries) {
+		super(projectId, user);
+		setLogEntries(logEntries);
 	}
 
 	public static PokeMessage createPokeMessage(UUID projectId, UserId user,
 			LogEntry logEntry) {
-		return new PokeMessage(projectId, user, logEntry);
+		PokeMessage msg = new PokeMessage(projectId, user,
+				Collections.<LogEntry> emptyList());
+		msg.setLogEntry(logEntry);
+		return msg;
+	}
+
+	/**
+	 * pushes several log entries at once
+	 */
+	public static PokeMessage createPushMessage(UUID projectId, UserId user,
+			List<LogEntry> logEntries) {
+		return new PokeMessage(projectId, user, logEntries);
 	}
 }
@@ -0,0 +1,70 @@
+package com.jakeapp.violet.protocol.msg;
+
+import java.util.UUID;
+
+import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.protocol.Message;
+
+/**
+ * The rdiff signature of the version of a file we have, sent right before a
+ * {@link com.jakeapp.violet.protocol.files.RequestFileMessage.RequestType#DELTA_SUPPLIED}
+ * request for a newer version. The receiver makes the delta against it
+ * instead of requesting our signature.
+ */
+public class SignatureMessage extends Message {
+
+	private UUID logEntryId;
+
+	private byte[] signature;
+
+	public UUID getLogEntryId() {
+		return logEntryId;
+	}
+
+	public void setLogEntryId(UUID logEntryId) {
+		this.logEntryId = logEntryId;
+	}
+
+	/**
+	 * @return the signature as written by <code>Rdiff.makeSignatures</code>
+	 */
+	public byte[] getSignature() {
+		return signature;
+	}
+
+	public void setSignature(byte[] signature) {
+		this.signature = signature;
+	}
+
+	private SignatureMessage(UUID projectId, UserId user, UUID logEntryId,
+			byte[] signature) {
+		super(projectId, user);
+		setLogEntryId(logEntryId);
+		setSignature(signature);
+	}
+
+	/**
+	 * @param projectId
+	 *            Project
+	 * @param user
+	 *            other User
+	 * @param logEntryId
+	 *            the version we are going to request
+	 * @param signature
+	 *            signature of the version we have
+	 * @return the message
+	 */
+	public static SignatureMessage createSignatureMessage(UUID projectId,
+			UserId user, UUID logEntryId, byte[] signature) {
+		return new SignatureMessage(projectId, user, logEntryId, signature);
+	}
+
+	/**
+	 * @see #createSignatureMessage(UUID, UserId, UUID, byte[])
+	 */
+	public static SignatureMessage createSignatureMessage(UUID projectId,
+			UserId user, LogEntry le, byte[] signature) {
+		return createSignatureMessage(projectId, user, le.getId(), signature);
+	}
+}
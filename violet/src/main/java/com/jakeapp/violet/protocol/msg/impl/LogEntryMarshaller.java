@@ -4,26 +4,44 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.Timestamp;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogDigest;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.model.User;
 import com.jakeapp.violet.protocol.msg.ILogEntryMarshaller;
+import com.jakeapp.violet.protocol.msg.ILogEntryReceiver;
 
 /**
  * This class is used to marshal and unmarshal (build and analyze) messages sent
  * to a msgService or received from a msgService
+ * 
+ * A log entry is a JSON array of strings: id, when, who, what, how, why. Lists
+ * of log entries are written and read with the streaming API, entry by entry.
+ * A bucket of the reconciliation is an array of prefix, count and digest.
  */
 public class LogEntryMarshaller implements ILogEntryMarshaller {
 
 	private static Logger log = Logger.getLogger(LogEntryMarshaller.class);
 
+	private static final String WATERMARK_FIELD = "watermark";
+
+	private static final String ENTRIES_FIELD = "entries";
+
+	private static final String BUCKETS_FIELD = "buckets";
+
+	private static final int FIELDS = 6;
+
 	private ObjectMapper objectMapper = new ObjectMapper();
 
 	/*
@@ -31,16 +49,14 @@ public class LogEntryMarshaller implements ILogEntryMarshaller {
 	 * 
 	 * @see
 	 * com.jakeapp.violet.protocol.msg.ILogEntryMarshaller#packLogEntries(java
-	 * .util.UUID, java.util.List, java.io.OutputStream)
+	 * .util.UUID, java.util.Iterator, java.io.OutputStream)
 	 */
 	@Override
-	public void packLogEntries(UUID projectid, List<LogEntry> logs,
+	public void packLogEntries(UUID projectid, Iterator<LogEntry> logs,
 			OutputStream os) throws IOException {
-		List<String> logStrings = new ArrayList<String>(logs.size());
-		for (LogEntry le : logs) {
-			logStrings.add(serializeLogEntry(le));
-		}
-		objectMapper.writeValue(os, logStrings);
+		JsonGenerator g = createGenerator(os);
+		writeLogEntries(g, logs);
+		g.flush();
 	}
 
 	/*
@@ -48,17 +64,226 @@ public class LogEntryMarshaller implements ILogEntryMarshaller {
 	 * 
 	 * @see
 	 * com.jakeapp.violet.protocol.msg.ILogEntryMarshaller#unpackLogEntries(
-	 * java.util.UUID, java.io.InputStream)
+	 * java.util.UUID, java.io.InputStream,
+	 * com.jakeapp.violet.protocol.msg.ILogEntryReceiver)
+	 */
+	@Override
+	public void unpackLogEntries(UUID projectid, InputStream is,
+			ILogEntryReceiver receiver) throws IOException {
+		JsonParser p = objectMapper.getJsonFactory().createJsonParser(is);
+		p.nextToken();
+		readLogEntries(p, receiver);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.ILogEntryMarshaller#packLogEntriesSince
+	 * (java.util.UUID, long, java.util.Iterator, java.io.OutputStream)
+	 */
+	@Override
+	public void packLogEntriesSince(UUID projectid, long watermark,
+			Iterator<LogEntry> logs, OutputStream os) throws IOException {
+		JsonGenerator g = createGenerator(os);
+		g.writeStartObject();
+		g.writeNumberField(WATERMARK_FIELD, watermark);
+		g.writeFieldName(ENTRIES_FIELD);
+		writeLogEntries(g, logs);
+		g.writeEndObject();
+		g.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.ILogEntryMarshaller#unpackLogEntriesSince
+	 * (java.util.UUID, java.io.InputStream,
+	 * com.jakeapp.violet.protocol.msg.ILogEntryReceiver)
+	 */
+	@Override
+	public long unpackLogEntriesSince(UUID projectid, InputStream is,
+			ILogEntryReceiver receiver) throws IOException {
+		JsonParser p = objectMapper.getJsonFactory().createJsonParser(is);
+		if (p.nextToken() != JsonToken.START_OBJECT)
+			throw new IOException("unexpected format");
+		Long watermark = null;
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			p.nextToken();
+			if (WATERMARK_FIELD.equals(field)) {
+				watermark = p.getLongValue();
+			} else if (ENTRIES_FIELD.equals(field)) {
+				readLogEntries(p, receiver);
+			} else {
+				p.skipChildren();
+			}
+		}
+		if (watermark == null)
+			throw new IOException("watermark missing");
+		return watermark;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.ILogEntryMarshaller#packReconciliation
+	 * (java.util.UUID, long, java.util.List, java.util.Iterator,
+	 * java.io.OutputStream)
+	 */
+	@Override
+	public void packReconciliation(UUID projectid, long watermark,
+			List<LogDigest.Bucket> buckets, Iterator<LogEntry> logs,
+			OutputStream os) throws IOException {
+		JsonGenerator g = createGenerator(os);
+		g.writeStartObject();
+		g.writeNumberField(WATERMARK_FIELD, watermark);
+		g.writeArrayFieldStart(BUCKETS_FIELD);
+		for (LogDigest.Bucket b : buckets) {
+			g.writeStartArray();
+			g.writeString(b.getPrefix());
+			g.writeNumber(b.getCount());
+			g.writeNumber(b.getDigest());
+			g.writeEndArray();
+		}
+		g.writeEndArray();
+		g.writeFieldName(ENTRIES_FIELD);
+		writeLogEntries(g, logs);
+		g.writeEndObject();
+		g.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.ILogEntryMarshaller#unpackReconciliation
+	 * (java.util.UUID, java.io.InputStream, java.util.List,
+	 * com.jakeapp.violet.protocol.msg.ILogEntryReceiver)
 	 */
 	@Override
-	public List<LogEntry> unpackLogEntries(UUID projectid, InputStream is)
+	public long unpackReconciliation(UUID projectid, InputStream is,
+			List<LogDigest.Bucket> buckets, ILogEntryReceiver receiver)
+			throws IOException {
+		JsonParser p = objectMapper.getJsonFactory().createJsonParser(is);
+		if (p.nextToken() != JsonToken.START_OBJECT)
+			throw new IOException("unexpected format");
+		Long watermark = null;
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			p.nextToken();
+			if (WATERMARK_FIELD.equals(field)) {
+				watermark = p.getLongValue();
+			} else if (BUCKETS_FIELD.equals(field)) {
+				readBuckets(p, buckets);
+			} else if (ENTRIES_FIELD.equals(field)) {
+				readLogEntries(p, receiver);
+			} else {
+				p.skipChildren();
+			}
+		}
+		if (watermark == null)
+			throw new IOException("watermark missing");
+		return watermark;
+	}
+
+	/**
+	 * @param p
+	 *            positioned at the start of the list
+	 */
+	private void readBuckets(JsonParser p, List<LogDigest.Bucket> buckets)
+			throws IOException {
+		if (p.getCurrentToken() != JsonToken.START_ARRAY)
+			throw new IOException("unexpected format: list expected");
+		JsonToken t;
+		while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+			if (t != JsonToken.START_ARRAY)
+				throw new IOException("unexpected format: " + t);
+			p.nextToken();
+			String prefix = p.getText();
+			p.nextToken();
+			int count = p.getIntValue();
+			p.nextToken();
+			long digest = p.getLongValue();
+			if (p.nextToken() != JsonToken.END_ARRAY
+					|| !LogDigest.isPrefix(prefix))
+				throw new IOException("unexpected format: bad bucket");
+			buckets.add(new LogDigest.Bucket(prefix, count, digest));
+		}
+	}
+
+	private JsonGenerator createGenerator(OutputStream os) throws IOException {
+		JsonGenerator g = objectMapper.getJsonFactory().createJsonGenerator(
+				os, JsonEncoding.UTF8);
+		// closing is up to the caller
+		g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		return g;
+	}
+
+	private void writeLogEntries(JsonGenerator g, Iterator<LogEntry> logs)
+			throws IOException {
+		g.writeStartArray();
+		while (logs.hasNext()) {
+			g.writeStartArray();
+			for (String field : toFields(logs.next())) {
+				g.writeString(field);
+			}
+			g.writeEndArray();
+		}
+		g.writeEndArray();
+	}
+
+	/**
+	 * @param p
+	 *            positioned at the start of the list
+	 */
+	private void readLogEntries(JsonParser p, ILogEntryReceiver receiver)
 			throws IOException {
-		List<String> logStrings = objectMapper.readValue(is, List.class);
-		List<LogEntry> logs = new ArrayList<LogEntry>(logStrings.size());
-		for (String s : logStrings) {
-			logs.add(deSerializeLogEntry(s));
+		if (p.getCurrentToken() != JsonToken.START_ARRAY)
+			throw new IOException("unexpected format: list expected");
+		JsonToken t;
+		while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+			if (t == JsonToken.START_ARRAY) {
+				receiver.received(fromFields(readFields(p)));
+			} else if (t == JsonToken.VALUE_STRING) {
+				// a peer that still encodes each entry separately
+				receiver.received(deSerializeLogEntry(p.getText()));
+			} else {
+				throw new IOException("unexpected format: " + t);
+			}
 		}
-		return logs;
+	}
+
+	/**
+	 * @param p
+	 *            positioned at the start of the entry
+	 */
+	private String[] readFields(JsonParser p) throws IOException {
+		String[] a = new String[FIELDS];
+		int i = 0;
+		while (p.nextToken() != JsonToken.END_ARRAY) {
+			if (i < FIELDS)
+				a[i] = p.getText();
+			i++;
+		}
+		if (i < FIELDS)
+			throw new IOException("log entry incomplete");
+		return a;
+	}
+
+	private String[] toFields(LogEntry le) {
+		String[] s = { le.getId().toString(),
+				Long.toString(le.getWhenMillis()), le.getWho().getUserId(),
+				le.getWhat().getRelPath(), le.getHow(), le.getWhy() };
+		return s;
+	}
+
+	private LogEntry fromFields(String[] a) {
+		return new LogEntry(UUID.fromString(a[0]), new Timestamp(
+				Long.parseLong(a[1])), new User(a[2]), new JakeObject(a[3]),
+				a[5], a[4], false);
 	}
 
 	/*
@@ -70,10 +295,7 @@ public class LogEntryMarshaller implements ILogEntryMarshaller {
 	 */
 	@Override
 	public String serializeLogEntry(LogEntry le) throws IOException {
-		String[] s = { le.getId().toString(),
-				Long.toString(le.getWhen().getTime()), le.getWho().getUserId(),
-				le.getWhat().getRelPath(), le.getHow(), le.getWhy() };
-		return objectMapper.writeValueAsString(s);
+		return objectMapper.writeValueAsString(toFields(le));
 	}
 
 	/*
@@ -86,9 +308,9 @@ public class LogEntryMarshaller implements ILogEntryMarshaller {
 	@Override
 	public LogEntry deSerializeLogEntry(String s) throws IOException {
 		String[] a = objectMapper.readValue(s, String[].class);
-		return new LogEntry(UUID.fromString(a[0]), new Timestamp(
-				Long.parseLong(a[1])), new User(a[2]), new JakeObject(a[3]),
-				a[5], a[4], false);
+		if (a.length < FIELDS)
+			throw new IOException("log entry incomplete");
+		return fromFields(a);
 	}
 
 }
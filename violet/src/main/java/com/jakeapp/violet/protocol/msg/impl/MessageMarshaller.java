@@ -1,19 +1,35 @@
 package com.jakeapp.violet.protocol.msg.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
+import javax.xml.bind.DatatypeConverter;
+
 import org.apache.log4j.Logger;
 
 import com.jakeapp.jake.ics.UserId;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.protocol.msg.ILogEntryMarshaller;
+import com.jakeapp.violet.protocol.msg.ILogEntryReceiver;
 import com.jakeapp.violet.protocol.msg.IMessageMarshaller;
 import com.jakeapp.violet.protocol.msg.PokeMessage;
+import com.jakeapp.violet.protocol.msg.SignatureMessage;
 
 /**
  * This class is used to marshal and unmarshal (build and analyze) messages sent
  * to a msgService or received from a msgService
+ * 
+ * A poke is the project id, the poke tag and the log entries, separated by
+ * dots. The entries are a list as written by
+ * {@link ILogEntryMarshaller#packLogEntries}, or a single serialized entry
+ * from peers that only send one.
+ * 
+ * A signature message is the project id, the signature tag, the id of the
+ * requested log entry and the base64 encoded signature, separated by dots.
  */
 public class MessageMarshaller implements IMessageMarshaller {
 
@@ -21,6 +37,15 @@ public class MessageMarshaller implements IMessageMarshaller {
 
 	static final String POKE_MESSAGE = "<poke/>";
 
+	static final String SIGNATURE_MESSAGE = "<signature/>";
+
+	/**
+	 * a single serialized entry is a list of strings, not a list of lists
+	 */
+	private static final String SINGLE_ENTRY = "[\"";
+
+	private static final String ENCODING = "UTF-8";
+
 	private static Logger log = Logger.getLogger(MessageMarshaller.class);
 
 	private ILogEntryMarshaller logEntryMarshaller;
@@ -44,13 +69,24 @@ public class MessageMarshaller implements IMessageMarshaller {
 		if (parts.length != 3)
 			throw new IOException("unexpected format: " + s);
 
-		if (!POKE_MESSAGE.equals(parts[2]))
+		if (!POKE_MESSAGE.equals(parts[1]))
 			throw new IOException("unexpected type: " + s);
-		LogEntry le = null;
-		if (parts[1].length() != 0)
-			le = logEntryMarshaller.deSerializeLogEntry(parts[1]);
-		PokeMessage msg = PokeMessage.createPokeMessage(
-				UUID.fromString(parts[0]), from, le);
+		UUID projectid = UUID.fromString(parts[0]);
+		final List<LogEntry> les = new ArrayList<LogEntry>();
+		if (parts[2].startsWith(SINGLE_ENTRY)) {
+			les.add(logEntryMarshaller.deSerializeLogEntry(parts[2]));
+		} else if (parts[2].length() != 0) {
+			logEntryMarshaller.unpackLogEntries(projectid,
+					new ByteArrayInputStream(parts[2].getBytes(ENCODING)),
+					new ILogEntryReceiver() {
+
+						@Override
+						public void received(LogEntry le) {
+							les.add(le);
+						}
+					});
+		}
+		PokeMessage msg = PokeMessage.createPushMessage(projectid, from, les);
 		return msg;
 	}
 
@@ -64,10 +100,66 @@ public class MessageMarshaller implements IMessageMarshaller {
 	@Override
 	public String serialize(PokeMessage msg) throws IOException {
 		String leString = "";
-		if (msg.getLogEntry() != null)
-			leString = logEntryMarshaller.serializeLogEntry(msg.getLogEntry());
+		if (!msg.getLogEntries().isEmpty()) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			logEntryMarshaller.packLogEntries(msg.getProjectId(), msg
+					.getLogEntries().iterator(), os);
+			leString = os.toString(ENCODING);
+		}
 		return msg.getProjectId().toString() + FIELD_SEPERATOR + POKE_MESSAGE
 				+ FIELD_SEPERATOR + leString;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.IMessageMarshaller#isSignatureMessage
+	 * (java.lang.String)
+	 */
+	@Override
+	public boolean isSignatureMessage(String s) {
+		String[] parts = s.split("\\" + FIELD_SEPERATOR, 3);
+		return parts.length == 3 && SIGNATURE_MESSAGE.equals(parts[1]);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.IMessageMarshaller#decodeSignatureMessage
+	 * (java.lang.String, com.jakeapp.jake.ics.UserId)
+	 */
+	@Override
+	public SignatureMessage decodeSignatureMessage(String s, UserId from)
+			throws IOException {
+		String[] parts = s.split("\\" + FIELD_SEPERATOR, 4);
+		if (parts.length != 4)
+			throw new IOException("unexpected format");
+		if (!SIGNATURE_MESSAGE.equals(parts[1]))
+			throw new IOException("unexpected type: " + parts[1]);
+		try {
+			return SignatureMessage.createSignatureMessage(
+					UUID.fromString(parts[0]), from, UUID.fromString(parts[2]),
+					DatatypeConverter.parseBase64Binary(parts[3]));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("unexpected format: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.jakeapp.violet.protocol.msg.IMessageMarshaller#serialize(com.jakeapp
+	 * .violet.protocol.msg.SignatureMessage)
+	 */
+	@Override
+	public String serialize(SignatureMessage msg) throws IOException {
+		return msg.getProjectId().toString() + FIELD_SEPERATOR
+				+ SIGNATURE_MESSAGE + FIELD_SEPERATOR + msg.getLogEntryId()
+				+ FIELD_SEPERATOR
+				+ DatatypeConverter.printBase64Binary(msg.getSignature());
+	}
+
 }
@@ -1,8 +1,18 @@
 package com.jakeapp.core.synchronization;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
 import junit.framework.Assert;
@@ -12,15 +22,20 @@ import org.junit.Test;
 
 import com.jakeapp.jake.ics.UserId;
 import com.jakeapp.violet.actions.global.MockUserIdFactory;
+import com.jakeapp.violet.model.ChunkManifest;
 import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogDigest;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.model.User;
 import com.jakeapp.violet.protocol.files.IRequestMarshaller;
 import com.jakeapp.violet.protocol.files.RequestFileMessage;
 import com.jakeapp.violet.protocol.files.RequestMarshaller;
+import com.jakeapp.violet.protocol.files.TransferCompression;
 import com.jakeapp.violet.protocol.msg.ILogEntryMarshaller;
+import com.jakeapp.violet.protocol.msg.ILogEntryReceiver;
 import com.jakeapp.violet.protocol.msg.IMessageMarshaller;
 import com.jakeapp.violet.protocol.msg.PokeMessage;
+import com.jakeapp.violet.protocol.msg.SignatureMessage;
 import com.jakeapp.violet.protocol.msg.impl.LogEntryMarshaller;
 import com.jakeapp.violet.protocol.msg.impl.MessageMarshaller;
 
@@ -60,9 +75,170 @@ public class PacketsTest {
 
 	@Test
 	public void testPoke() throws IOException {
-		PokeMessage msg = PokeMessage.createPokeMessage(projectid, userid, le);
-		Assert.assertEquals("00000000-0000-0015-0000-00000000002a.",
+		PokeMessage msg = PokeMessage.createPokeMessage(projectid, userid, null);
+		Assert.assertEquals("00000000-0000-0015-0000-00000000002a.<poke/>.",
 				mm.serialize(msg));
+		Assert.assertTrue(mm.decodePokeMessage(mm.serialize(msg), userid)
+				.getLogEntries().isEmpty());
+	}
+
+	@Test
+	public void testPush() throws IOException {
+		LogEntry other = new LogEntry(null, time, user, fo, commitmsg, hash,
+				true);
+		PokeMessage msg = PokeMessage.createPushMessage(projectid, userid,
+				Arrays.asList(le, other));
+		PokeMessage decoded = mm.decodePokeMessage(mm.serialize(msg), userid);
+		Assert.assertEquals(projectid, decoded.getProjectId());
+		Assert.assertEquals(2, decoded.getLogEntries().size());
+		Assert.assertEquals(le.getId(), decoded.getLogEntries().get(0).getId());
+		Assert.assertEquals(other.getId(), decoded.getLogEntries().get(1)
+				.getId());
+
+		// a peer that sends a single entry
+		String single = projectid + ".<poke/>." + lm.serializeLogEntry(le);
+		Assert.assertEquals(le.getId(), mm.decodePokeMessage(single, userid)
+				.getLogEntry().getId());
+	}
+
+	@Test
+	public void testSignature() throws IOException {
+		byte[] signature = new byte[] { 'r', 's', 0, 1, -1, 42 };
+		SignatureMessage msg = SignatureMessage.createSignatureMessage(
+				projectid, userid, le, signature);
+		String s = mm.serialize(msg);
+		Assert.assertTrue(mm.isSignatureMessage(s));
+		Assert.assertFalse(mm.isSignatureMessage(mm.serialize(PokeMessage
+				.createPokeMessage(projectid, userid, le))));
+
+		SignatureMessage decoded = mm.decodeSignatureMessage(s, userid);
+		Assert.assertEquals(projectid, decoded.getProjectId());
+		Assert.assertEquals(le.getId(), decoded.getLogEntryId());
+		Assert.assertTrue(Arrays.equals(signature, decoded.getSignature()));
+
+		RequestFileMessage req = RequestFileMessage
+				.createRequestSuppliedDeltaMessage(projectid, userid, le);
+		RequestFileMessage decodedReq = rm.decodeRequestFileMessage(
+				rm.serialize(req), userid);
+		Assert.assertEquals(RequestFileMessage.RequestType.DELTA_SUPPLIED,
+				decodedReq.getType());
+		Assert.assertEquals(le.getId().toString(), decodedReq.getIdentifier());
+	}
+
+	@Test
+	public void testChunkManifest() throws IOException {
+		byte[] content = new byte[8 * 1024 * 1024];
+		new Random(42).nextBytes(content);
+		ChunkManifest manifest = ChunkManifest.of(hash,
+				new ByteArrayInputStream(content));
+		Assert.assertEquals(content.length, manifest.getLength());
+		Assert.assertTrue(manifest.getChunks().size() > 1);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		manifest.write(os);
+		ChunkManifest read = ChunkManifest.read(new ByteArrayInputStream(os
+				.toByteArray()));
+		Assert.assertEquals(hash, read.getHash());
+		Assert.assertEquals(manifest.getChunks().size(), read.getChunks()
+				.size());
+
+		// an insertion at the start only changes the first chunk
+		byte[] modified = new byte[content.length + 100];
+		System.arraycopy(content, 0, modified, 100, content.length);
+		ChunkManifest other = ChunkManifest.of(hash, new ByteArrayInputStream(
+				modified));
+		int shared = 0;
+		for (ChunkManifest.Chunk c : other.getChunks()) {
+			if (manifest.getChunksByDigest().containsKey(c.getDigest()))
+				shared++;
+		}
+		Assert.assertEquals(manifest.getChunks().size() - 1, shared);
+
+		RequestFileMessage req = RequestFileMessage.createRequestChunkMessage(
+				projectid, userid, le, manifest.getChunks().get(1));
+		Assert.assertEquals(le.getId() + "_"
+				+ manifest.getChunks().get(1).getOffset() + "_"
+				+ manifest.getChunks().get(1).getLength(), rm
+				.decodeRequestFileMessage(rm.serialize(req), userid)
+				.getIdentifier());
+
+		// a run is asked for in one request
+		req = RequestFileMessage.createRequestChunkMessage(projectid, userid,
+				le, manifest.getChunks().subList(1, 3));
+		Assert.assertEquals(le.getId() + "_"
+				+ manifest.getChunks().get(1).getOffset() + "_"
+				+ (manifest.getChunks().get(1).getLength() + manifest
+						.getChunks().get(2).getLength()), req.getIdentifier());
+	}
+
+	@Test
+	public void testPackUnpackLogEntriesSince() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		lm.packLogEntriesSince(projectid, 42,
+				Collections.singletonList(le).iterator(), os);
+
+		final List<LogEntry> logs = new ArrayList<LogEntry>();
+		long watermark = lm.unpackLogEntriesSince(projectid,
+				new ByteArrayInputStream(os.toByteArray()),
+				new ILogEntryReceiver() {
+
+					@Override
+					public void received(LogEntry le) {
+						logs.add(le);
+					}
+				});
+		Assert.assertEquals(42, watermark);
+		Assert.assertEquals(1, logs.size());
+		Assert.assertEquals(le.getId(), logs.get(0).getId());
+		Assert.assertEquals(le.getHow(), logs.get(0).getHow());
+		Assert.assertEquals(le.getWhy(), logs.get(0).getWhy());
+	}
+
+	@Test
+	public void testReconcile() throws IOException {
+		List<UUID> ids = new ArrayList<UUID>();
+		for (int i = 0; i < 100; i++)
+			ids.add(UUID.randomUUID());
+		LogDigest theirs = new LogDigest(7, ids.iterator());
+		ids.add(le.getId());
+		LogDigest ours = new LogDigest(7, ids.iterator());
+		Assert.assertEquals(100, theirs.getBucket("").getCount());
+		Assert.assertFalse(theirs.getBucket("").equals(ours.getBucket("")));
+
+		// only the bucket of the added id differs
+		String prefix = le.getId().toString().substring(0, 1);
+		for (LogDigest.Bucket b : theirs.getChildren("")) {
+			Assert.assertEquals(b.getPrefix().equals(prefix),
+					!b.equals(ours.getBucket(b.getPrefix())));
+		}
+		Assert.assertEquals(le.getId(), ours.getIds(
+				le.getId().toString().substring(0, 8)).get(0));
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		lm.packReconciliation(projectid, 7, theirs.getChildren(""),
+				Collections.singletonList(le).iterator(), os);
+		List<LogDigest.Bucket> buckets = new ArrayList<LogDigest.Bucket>();
+		final List<LogEntry> logs = new ArrayList<LogEntry>();
+		Assert.assertEquals(7, lm.unpackReconciliation(projectid,
+				new ByteArrayInputStream(os.toByteArray()), buckets,
+				new ILogEntryReceiver() {
+
+					@Override
+					public void received(LogEntry le) {
+						logs.add(le);
+					}
+				}));
+		Assert.assertEquals(theirs.getChildren(""), buckets);
+		Assert.assertEquals(le.getId(), logs.get(0).getId());
+	}
+
+	@Test
+	public void testRequestReconcile() {
+		RequestFileMessage msg = RequestFileMessage.createReconcileMessage(
+				projectid, userid, Arrays.asList("", "a0"), Arrays.asList("f"));
+		Assert.assertEquals(
+				"00000000-0000-0015-0000-00000000002a.reconcile.t-ta0-ef",
+				rm.serialize(msg));
 	}
 
 	@Test
@@ -73,6 +249,24 @@ public class PacketsTest {
 				rm.serialize(msg));
 	}
 
+	@Test
+	public void testRequestLogsSince() {
+		RequestFileMessage msg = RequestFileMessage
+				.createRequestLogsSinceMessage(projectid, userid, 42);
+		Assert.assertEquals(
+				"00000000-0000-0015-0000-00000000002a.logssince.42",
+				rm.serialize(msg));
+	}
+
+	@Test
+	public void testDecodeRequestLogsSince() {
+		RequestFileMessage req = rm.decodeRequestFileMessage(
+				"00000000-0000-0015-0000-00000000002a.logssince.42", userid);
+		Assert.assertEquals(RequestFileMessage.RequestType.LOGS_SINCE,
+				req.getType());
+		Assert.assertEquals("42", req.getIdentifier());
+	}
+
 	@Test
 	public void testRequestFile() {
 		RequestFileMessage msg = RequestFileMessage.createRequestFileMessage(
@@ -94,6 +288,47 @@ public class PacketsTest {
 		Assert.assertEquals(projectid, req.getProjectId());
 	}
 
+	@Test
+	public void testRequestCompressedFile() {
+		RequestFileMessage msg = RequestFileMessage.createRequestFileMessage(
+				projectid, userid, le);
+		msg.setCompressed(true);
+		String serialized = rm.serialize(msg);
+		Assert.assertEquals(REQUEST_MSG.replace(".file.", ".file+z."),
+				serialized);
+
+		RequestFileMessage req = rm.decodeRequestFileMessage(serialized,
+				userid);
+		Assert.assertEquals(RequestFileMessage.RequestType.FILE, req.getType());
+		Assert.assertTrue(req.isCompressed());
+		Assert.assertFalse(rm.decodeRequestFileMessage(REQUEST_MSG, userid)
+				.isCompressed());
+		Assert.assertTrue(TransferCompression.isCompressible("my/notes.txt"));
+		Assert.assertFalse(TransferCompression.isCompressible("my/photo.JPG"));
+	}
+
+	@Test
+	public void testCompressedFileSentAsItIs() throws Exception {
+		File content = File.createTempFile("content", ".bin");
+		content.deleteOnExit();
+		byte[] random = new byte[100 * 1024];
+		new Random(3).nextBytes(random);
+		FileOutputStream fos = new FileOutputStream(content);
+		fos.write(random);
+		fos.close();
+		Assert.assertFalse(TransferCompression.isCompressible(content));
+
+		File sent = File.createTempFile("sent", ".z");
+		sent.deleteOnExit();
+		OutputStream os = TransferCompression.compress(new FileOutputStream(
+				sent), content);
+		os.write(random);
+		os.close();
+		Assert.assertTrue(TransferCompression.isZlib(sent));
+		// random data rarely starts like a zlib stream, this one doesn't
+		Assert.assertFalse(TransferCompression.isZlib(content));
+	}
+
 	@Test
 	public void testDecodeUUID_InvalidRequestFile() {
 		RequestFileMessage req = rm.decodeRequestFileMessage("blabla", userid);
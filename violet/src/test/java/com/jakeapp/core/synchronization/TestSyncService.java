@@ -12,6 +12,7 @@ import com.jakeapp.jake.fss.HashValue;
 import com.jakeapp.jake.fss.ProjectDir;
 import com.jakeapp.jake.test.TmpdirEnabledTestCase;
 import com.jakeapp.violet.actions.project.local.AttributedCalculator;
+import com.jakeapp.violet.model.HashCache;
 import com.jakeapp.violet.model.JakeObject;
 import com.jakeapp.violet.model.Log;
 import com.jakeapp.violet.model.LogEntry;
@@ -37,6 +38,8 @@ public class TestSyncService extends TmpdirEnabledTestCase {
 
 	private Log log;
 
+	private HashCache hashes;
+
 	@Override
 	public void setup() throws Exception {
 		super.setup();
@@ -47,11 +50,13 @@ public class TestSyncService extends TmpdirEnabledTestCase {
 		fss = new FSService();
 		fss.setRootPath(new ProjectDir(tmpdir));
 		this.log = new LogImpl(new File(tmpdir, "test.db"));
+		this.hashes = new HashCache(fss, tmpdir, new File(tmpdir, "hashes"));
 	}
 
 	@After
 	public void teardown() throws Exception {
 		log.disconnect();
+		hashes.close();
 		fss.unsetRootPath();
 		super.teardown();
 	}
@@ -61,7 +66,7 @@ public class TestSyncService extends TmpdirEnabledTestCase {
 	}
 
 	private Attributed getAttributed() throws Exception {
-		return AttributedCalculator.calculateAttributed(fss, log, jo);
+		return AttributedCalculator.calculateAttributed(fss, hashes, log, jo);
 	}
 
 	@Test
@@ -0,0 +1,87 @@
+package com.jakeapp.violet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Timestamp;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.jake.test.TmpdirEnabledTestCase;
+import com.jakeapp.violet.model.FileLog;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.Log;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.User;
+
+public class FileLogTest extends TmpdirEnabledTestCase {
+
+	private File dir;
+
+	private Log log;
+
+	private JakeObject what = new JakeObject("my/file.txt");
+
+	private User who = new User("someone@localhost");
+
+	private UUID id = new UUID(12, 31);
+
+	@Before
+	public void setUp() throws Exception {
+		super.setup();
+		dir = new File(tmpdir, "log");
+		log = new FileLog(dir);
+		log.connect();
+		log.add(new LogEntry(null, new Timestamp(12000000), who, what, "",
+				"1234", true));
+		log.add(new LogEntry(id, new Timestamp(12001000), who, what, "",
+				"5678", false));
+	}
+
+	private void check() throws Exception {
+		Assert.assertEquals(2, log.getAll(true).size());
+		Assert.assertEquals(2, log.getLastSequence());
+		Assert.assertTrue(log.hasUnprocessed(what));
+		Assert.assertEquals("5678", log.getLastOfJakeObject(what, true)
+				.getHow());
+		Assert.assertEquals("1234", log.getLastOfJakeObject(what, false)
+				.getHow());
+		Assert.assertEquals(id, log.getById(id, true).getId());
+	}
+
+	@Test
+	public void testReopenFromCheckpoint() throws Exception {
+		log.disconnect();
+		Assert.assertTrue(new File(dir, "checkpoint").exists());
+		log.connect();
+		check();
+	}
+
+	@Test
+	public void testReopenByScanning() throws Exception {
+		log.disconnect();
+		new File(dir, "checkpoint").delete();
+		log.connect();
+		check();
+	}
+
+	@Test
+	public void testTornRecordIsCutOff() throws Exception {
+		log.disconnect();
+		new File(dir, "checkpoint").delete();
+		FileOutputStream os = new FileOutputStream(new File(dir,
+				"segment-000001.log"), true);
+		os.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+		os.close();
+		log.connect();
+		check();
+		log.setProcessed(log.getById(id, true));
+		log.disconnect();
+		log.connect();
+		Assert.assertFalse(log.hasUnprocessed(what));
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.jakeapp.violet;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.jake.fss.FSService;
+import com.jakeapp.jake.fss.HashValue;
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.jake.test.TmpdirEnabledTestCase;
+import com.jakeapp.violet.model.HashCache;
+
+public class HashCacheTest extends TmpdirEnabledTestCase {
+
+	private static final String ORIGINAL_CONTENT = "mycontent";
+
+	private static final String hash = "be23baf848cb92aabbc648b89a92cb68e434369b87fe0415b2642b2ec0ddff7a7fb52f3dc9786a712acc127822356d79f0260ed1570084a4baab806ec513d1ab";
+
+	private static final String MODIFIED_CONTENT = "hello foo bar\nbla";
+
+	private String relpath = "my/foo";
+
+	private FSService fss;
+
+	private HashCache hashes;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setup();
+
+		HashValue.DIGEST = "SHA-512";
+		HashValue.N_BITS = 512;
+
+		fss = new FSService();
+		fss.setRootPath(new ProjectDir(tmpdir));
+		hashes = new HashCache(fss, tmpdir, new File(tmpdir, "hashes"));
+	}
+
+	@After
+	public void teardown() throws Exception {
+		hashes.close();
+		fss.unsetRootPath();
+		super.teardown();
+	}
+
+	@Test
+	public void testRememberedAcrossRestarts() throws Exception {
+		fss.writeFile(relpath, ORIGINAL_CONTENT.getBytes());
+		File f = new File(tmpdir, relpath);
+		// written just now, so it is not remembered yet
+		Assert.assertEquals(hash, hashes.getHash(relpath));
+		Assert.assertEquals(0, hashes.size());
+
+		f.setLastModified(System.currentTimeMillis() - 60 * 1000);
+		Assert.assertEquals(hash, hashes.getHash(relpath));
+		Assert.assertEquals(1, hashes.size());
+		hashes.close();
+		hashes = new HashCache(fss, tmpdir, new File(tmpdir, "hashes"));
+		Assert.assertEquals(1, hashes.size());
+	}
+
+	@Test
+	public void testModified() throws Exception {
+		fss.writeFile(relpath, ORIGINAL_CONTENT.getBytes());
+		new File(tmpdir, relpath).setLastModified(System.currentTimeMillis()
+				- 60 * 1000);
+		Assert.assertEquals(hash, hashes.getHash(relpath));
+
+		fss.writeFile(relpath, MODIFIED_CONTENT.getBytes());
+		Assert.assertFalse(hash.equals(hashes.getHash(relpath)));
+		hashes.invalidate(relpath);
+		Assert.assertEquals(0, hashes.size());
+	}
+}
@@ -3,6 +3,9 @@ package com.jakeapp.violet;
 import java.io.File;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
 import junit.framework.Assert;
@@ -11,8 +14,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.jakeapp.jake.test.TmpdirEnabledTestCase;
+import com.jakeapp.violet.model.CachingLog;
 import com.jakeapp.violet.model.JakeObject;
 import com.jakeapp.violet.model.Log;
+import com.jakeapp.violet.model.LogCursor;
 import com.jakeapp.violet.model.LogEntry;
 import com.jakeapp.violet.model.LogImpl;
 import com.jakeapp.violet.model.User;
@@ -99,4 +104,155 @@ public class LogImplTest extends TmpdirEnabledTestCase {
 		log.getById(le.getId(), false);
 	}
 
+	@Test
+	public void testAddAllSkipsKnown() throws SQLException,
+			NoSuchLogEntryException {
+		LogEntry known = new LogEntry(null, when1, who, what, why, how, true);
+		log.add(known);
+		LogEntry unknown = new LogEntry(null, when2, who, what, why, how, true);
+
+		List<LogEntry> entries = new ArrayList<LogEntry>();
+		entries.add(known);
+		entries.add(unknown);
+		entries.add(unknown);
+		Assert.assertEquals(1, log.addAll(entries));
+		Assert.assertEquals(unknown, log.getById(unknown.getId(), false));
+	}
+
+	@Test
+	public void testGetLastOfJakeObject() throws NoSuchLogEntryException {
+		Assert.assertEquals(when3, log.getLastOfJakeObject(what, true)
+				.getWhen());
+		Assert.assertEquals(when2, log.getLastOfJakeObject(what, false)
+				.getWhen());
+		Assert.assertEquals(when1, log.getFirstEntry().getWhen());
+	}
+
+	@Test
+	public void testLogCursor() {
+		LogCursor cursor = new LogCursor(log, what, true, 2);
+		Assert.assertEquals(when1, cursor.next().getWhen());
+		Assert.assertEquals(when2, cursor.next().getWhen());
+		Assert.assertEquals(when3, cursor.next().getWhen());
+		Assert.assertFalse(cursor.hasNext());
+	}
+
+	@Test
+	public void testHeadFollowsProcessing() throws NoSuchLogEntryException {
+		Assert.assertTrue(log.hasUnprocessed(what));
+		// the last processed version is a delete
+		Assert.assertTrue(log.getExistingFileObjects(false).isEmpty());
+		Assert.assertEquals(1, log.getExistingFileObjects(true).size());
+
+		log.setProcessed(log.getLastOfJakeObject(what, true));
+		Assert.assertFalse(log.hasUnprocessed(what));
+		Assert.assertEquals(when3, log.getLastOfJakeObject(what, false)
+				.getWhen());
+		Assert.assertEquals(what.getRelPath(), log.getExistingFileObjects(
+				false).get(0).getRelPath());
+	}
+
+	@Test
+	public void testInterning() throws Exception {
+		List<LogEntry> all = log.getAll(true);
+		Assert.assertEquals(3, all.size());
+		for (LogEntry le : all) {
+			Assert.assertEquals(what, le.getWhat());
+			Assert.assertSame(all.get(0).getWhat(), le.getWhat());
+			Assert.assertSame(log.getInterner().user(
+					le.getWho().getUserId()), le.getWho());
+		}
+		LogEntry first = all.get(0);
+		Assert.assertEquals(first, log.getById(first.getId(), true));
+	}
+
+	@Test
+	public void testCachingLog() throws Exception {
+		log.disconnect();
+		Log cached = new CachingLog(log);
+		cached.connect();
+		Assert.assertTrue(cached.hasUnprocessed(what));
+		LogEntry next = cached.getNextUnprocessed();
+		Assert.assertEquals(when3, next.getWhen());
+		Assert.assertEquals(next, cached.getById(next.getId(), true));
+
+		List<LogEntry> les = new ArrayList<LogEntry>();
+		les.add(next);
+		les.add(new LogEntry(id, when2, who, what, why, how, known));
+		Assert.assertEquals(1, cached.addAll(les));
+		Assert.assertEquals(id, cached.getById(id, false).getId());
+
+		cached.setProcessed(next);
+		Assert.assertFalse(cached.hasUnprocessed(what));
+		Assert.assertTrue(cached.getUnprocessed().isEmpty());
+		Assert.assertTrue(cached.getLastOfJakeObject(what, false).getKnown());
+		Assert.assertFalse(log.hasUnprocessed(what));
+		cached.disconnect();
+	}
+
+	@Test
+	public void testArchive() throws NoSuchLogEntryException {
+		LogEntry first = log.getFirstEntry();
+		// only the first one is superseded by a processed entry
+		Assert.assertEquals(1, log.archive(new Timestamp(when3.getTime() + 1)));
+		Assert.assertEquals(2, log.getAll(true).size());
+		Assert.assertEquals(when2, log.getFirstEntry().getWhen());
+		Assert.assertEquals(when2, log.getLastOfJakeObject(what, false)
+				.getWhen());
+
+		Assert.assertEquals(3, log.getAllOfJakeObject(what, true).size());
+		Assert.assertEquals(first.getId(), log.getById(first.getId(), false)
+				.getId());
+		Iterator<LogEntry> archived = log.getArchived();
+		Assert.assertEquals(first.getId(), archived.next().getId());
+		Assert.assertFalse(archived.hasNext());
+		Iterator<LogEntry> all = LogCursor.withArchive(log);
+		Assert.assertEquals(first.getId(), all.next().getId());
+		Assert.assertEquals(when2, all.next().getWhen());
+		Assert.assertEquals(when3, all.next().getWhen());
+		Assert.assertFalse(all.hasNext());
+
+		List<LogEntry> les = new ArrayList<LogEntry>();
+		les.add(first);
+		Assert.assertEquals(0, log.addAll(les));
+		Assert.assertEquals(0, log.archive(new Timestamp(when3.getTime() + 1)));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final int threads = 4;
+		final int entries = 50;
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> running = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final User user = new User("user" + t + "@localhost");
+			Thread thread = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < entries; i++) {
+							log.add(new LogEntry(null, null, user,
+									new JakeObject("file" + i), why, how,
+									false));
+							log.getAll(true);
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			thread.start();
+			running.add(thread);
+		}
+		for (Thread thread : running) {
+			thread.join();
+		}
+		Assert.assertTrue(failures.isEmpty());
+		Assert.assertEquals(3 + threads * entries, log.getAll(true).size());
+		Assert.assertTrue(log.hasUnprocessed(new JakeObject("file0")));
+	}
+
 }
@@ -0,0 +1,62 @@
+package com.jakeapp.violet;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.jake.test.TmpdirEnabledTestCase;
+import com.jakeapp.violet.model.PeerStats;
+
+public class PeerStatsTest extends TmpdirEnabledTestCase {
+
+	private static final long SIZE = 1024 * 1024;
+
+	private File file;
+
+	private PeerStats stats;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setup();
+		file = new File(tmpdir, "peers");
+		stats = new PeerStats(file);
+	}
+
+	@Test
+	public void testFastPeerFirst() throws Exception {
+		double unknown = stats.getExpectedTime("unknown", SIZE);
+		stats.negotiated("fast", 100);
+		stats.transferred("fast", SIZE, 1000);
+		Assert.assertTrue(stats.getExpectedTime("fast", SIZE) < unknown);
+	}
+
+	@Test
+	public void testFailingPeerLast() throws Exception {
+		double unknown = stats.getExpectedTime("unknown", SIZE);
+		stats.failed("failing");
+		Assert.assertTrue(stats.getExpectedTime("failing", SIZE) > unknown);
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		stats.negotiated("fast", 100);
+		stats.transferred("fast", SIZE, 1000);
+		PeerStats reloaded = new PeerStats(file);
+		Assert.assertEquals(stats.getExpectedTime("fast", SIZE), reloaded
+				.getExpectedTime("fast", SIZE), 1);
+	}
+
+	@Test
+	public void testUpToDateNotStored() throws Exception {
+		Assert.assertNull(stats.isUpToDate("old"));
+		stats.setUpToDate("old", false);
+		stats.setUpToDate("new", true);
+		Assert.assertEquals(Boolean.FALSE, stats.isUpToDate("old"));
+		Assert.assertEquals(Boolean.TRUE, stats.isUpToDate("new"));
+		stats.negotiated("new", 100);
+		Assert.assertNull(new PeerStats(file).isUpToDate("new"));
+	}
+}
@@ -0,0 +1,78 @@
+package com.jakeapp.violet;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.violet.actions.global.serve.TokenBucket;
+
+public class TokenBucketTest {
+
+	private static final long RATE = 1000;
+
+	private static final double DELTA = 0.001;
+
+	private static class FakeClockBucket extends TokenBucket {
+
+		private long time = 0;
+
+		@Override
+		protected long now() {
+			return time;
+		}
+	}
+
+	private FakeClockBucket bucket;
+
+	@Before
+	public void setUp() throws Exception {
+		bucket = new FakeClockBucket();
+		bucket.setRate(RATE);
+	}
+
+	@Test
+	public void testTakeThenRefill() throws Exception {
+		bucket.take(500, false);
+		Assert.assertEquals(-500, bucket.getTokens(), DELTA);
+		bucket.time += 250;
+		Assert.assertEquals(-250, bucket.getTokens(), DELTA);
+		bucket.time += 250;
+		Assert.assertEquals(0, bucket.getTokens(), DELTA);
+	}
+
+	@Test
+	public void testHoldsASecond() throws Exception {
+		bucket.time += 10 * 1000;
+		Assert.assertEquals(RATE, bucket.getTokens(), DELTA);
+	}
+
+	@Test
+	public void testPriorityDoesntWait() throws Exception {
+		bucket.take(500, false);
+		// would wait without priority
+		bucket.take(100, true);
+		Assert.assertEquals(-600, bucket.getTokens(), DELTA);
+	}
+
+	@Test
+	public void testChargeAndRefund() throws Exception {
+		bucket.charge(300);
+		Assert.assertEquals(-300, bucket.getTokens(), DELTA);
+		bucket.charge(-300);
+		Assert.assertEquals(0, bucket.getTokens(), DELTA);
+		bucket.charge(-5 * RATE);
+		Assert.assertEquals(RATE, bucket.getTokens(), DELTA);
+	}
+
+	@Test
+	public void testNoLimit() throws Exception {
+		bucket.take(500, false);
+		bucket.setRate(0);
+		Assert.assertEquals(0, bucket.getTokens(), DELTA);
+		// would wait with a rate
+		bucket.take(1024 * 1024, false);
+		bucket.charge(1024 * 1024);
+		Assert.assertEquals(0, bucket.getTokens(), DELTA);
+	}
+}
@@ -0,0 +1,68 @@
+package com.jakeapp.violet;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.jake.test.TmpdirEnabledTestCase;
+import com.jakeapp.violet.model.TransferSpool;
+
+public class TransferSpoolTest extends TmpdirEnabledTestCase {
+
+	private TransferSpool spool;
+
+	private UUID id = new UUID(12, 31);
+
+	@Before
+	public void setUp() throws Exception {
+		super.setup();
+		spool = new TransferSpool(new File(tmpdir, "spool"));
+	}
+
+	private File write(String name, String content) throws Exception {
+		File f = new File(tmpdir, name);
+		FileOutputStream os = new FileOutputStream(f);
+		os.write(content.getBytes());
+		os.close();
+		return f;
+	}
+
+	private String read(File f) throws Exception {
+		byte[] b = new byte[(int) f.length()];
+		DataInputStream is = new DataInputStream(new FileInputStream(f));
+		is.readFully(b);
+		is.close();
+		return new String(b);
+	}
+
+	@Test
+	public void testAppend() throws Exception {
+		Assert.assertEquals(0, spool.getOffset(id));
+		Assert.assertEquals(6, spool.append(id, 0, write("a", "hello ")));
+		// started before the first part arrived
+		Assert.assertEquals(11, spool.append(id, 3, write("b", "lo world")));
+		Assert.assertEquals(11, spool.getOffset(id));
+		Assert.assertEquals("hello world", read(spool.getPart(id)));
+	}
+
+	@Test
+	public void testGap() throws Exception {
+		spool.append(id, 0, write("a", "hello"));
+		Assert.assertEquals(5, spool.append(id, 6, write("c", "!")));
+		Assert.assertEquals("hello", read(spool.getPart(id)));
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		spool.append(id, 0, write("a", "hello"));
+		spool.remove(id);
+		Assert.assertEquals(0, spool.getOffset(id));
+	}
+}
@@ -0,0 +1,100 @@
+package com.jakeapp.violet.actions.global.serve;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransferRuntimeTest {
+
+	private static class FakeClockRuntime extends TransferRuntime {
+
+		private long time = 0;
+
+		@Override
+		protected long now() {
+			return time;
+		}
+	}
+
+	private FakeClockRuntime runtime;
+
+	@Before
+	public void setUp() throws Exception {
+		runtime = new FakeClockRuntime();
+	}
+
+	@Test
+	public void testAdmitUpToThePeerLimit() throws Exception {
+		for (int i = 0; i < TransferRuntime.MAX_SERVING_PER_PEER; i++)
+			Assert.assertTrue(runtime.admit("a@b", "a@b/" + i));
+		Assert.assertFalse(runtime.admit("a@b", "a@b/more"));
+		// others are still served
+		Assert.assertTrue(runtime.admit("c@d", "c@d/0"));
+		Assert.assertEquals(TransferRuntime.MAX_SERVING_PER_PEER + 1, runtime
+				.getServing());
+	}
+
+	@Test
+	public void testAdmitUpToTheLimit() throws Exception {
+		for (int i = 0; i < TransferRuntime.MAX_SERVING; i++)
+			Assert.assertTrue(runtime.admit("peer" + i, "peer" + i + "/f"));
+		Assert.assertFalse(runtime.admit("other", "other/f"));
+		runtime.release("peer0/f");
+		Assert.assertTrue(runtime.admit("other", "other/f"));
+	}
+
+	@Test
+	public void testSameRequestTwice() throws Exception {
+		Assert.assertTrue(runtime.admit("a@b", "a@b/f"));
+		Assert.assertTrue(runtime.admit("a@b", "a@b/f"));
+		Assert.assertEquals(2, runtime.getServing());
+		runtime.started("a@b/f");
+		runtime.release("a@b/f");
+		Assert.assertEquals(1, runtime.getServing());
+		runtime.release("a@b/f");
+		Assert.assertEquals(0, runtime.getServing());
+	}
+
+	@Test
+	public void testCancelKeepsStartedTransfers() throws Exception {
+		runtime.admit("a@b", "a@b/f");
+		runtime.started("a@b/f");
+		runtime.cancel("a@b/f");
+		Assert.assertEquals(1, runtime.getServing());
+		runtime.admit("a@b", "a@b/f");
+		runtime.cancel("a@b/f");
+		Assert.assertEquals(1, runtime.getServing());
+	}
+
+	@Test
+	public void testUnstartedSlotExpires() throws Exception {
+		runtime.admit("a@b", "a@b/started");
+		runtime.started("a@b/started");
+		runtime.admit("a@b", "a@b/never");
+		runtime.time += TransferRuntime.LEASE_TIMEOUT - 1;
+		runtime.expire();
+		Assert.assertEquals(2, runtime.getServing());
+		runtime.time += 2;
+		runtime.expire();
+		Assert.assertEquals(1, runtime.getServing());
+	}
+
+	@Test
+	public void testPreparingDoesntExpire() throws Exception {
+		runtime.admit("a@b", "a@b/f");
+		runtime.preparing("a@b/f");
+		runtime.time += 10 * TransferRuntime.LEASE_TIMEOUT;
+		runtime.expire();
+		Assert.assertEquals(1, runtime.getServing());
+
+		// the lease starts over
+		runtime.prepared("a@b/f");
+		runtime.time += TransferRuntime.LEASE_TIMEOUT - 1;
+		runtime.expire();
+		Assert.assertEquals(1, runtime.getServing());
+		runtime.time += 2;
+		runtime.expire();
+		Assert.assertEquals(0, runtime.getServing());
+	}
+}
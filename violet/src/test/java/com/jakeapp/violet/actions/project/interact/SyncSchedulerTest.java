@@ -0,0 +1,114 @@
+package com.jakeapp.violet.actions.project.interact;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.violet.model.User;
+
+public class SyncSchedulerTest {
+
+	private static final long TIMEOUT = 5000;
+
+	/**
+	 * syncs only when allowed to, and counts them
+	 */
+	private static class GatedScheduler extends SyncScheduler {
+
+		private final Semaphore started = new Semaphore(0);
+
+		private final Semaphore allowed = new Semaphore(0);
+
+		private volatile boolean succeeding = true;
+
+		private volatile int syncs = 0;
+
+		GatedScheduler() {
+			super(null, null);
+		}
+
+		@Override
+		protected boolean logsync(User user) throws Exception {
+			syncs++;
+			started.release();
+			allowed.acquire();
+			return succeeding;
+		}
+
+		@Override
+		protected boolean isOnline(User user) {
+			return true;
+		}
+	}
+
+	private GatedScheduler scheduler;
+
+	private User peer = new User("peer@localhost");
+
+	@Before
+	public void setUp() throws Exception {
+		scheduler = new GatedScheduler();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		scheduler.allowed.release(100);
+		scheduler.stop();
+	}
+
+	@Test
+	public void testPokesCoalesce() throws Exception {
+		scheduler.poke(peer);
+		Assert.assertTrue(scheduler.started.tryAcquire(TIMEOUT,
+				TimeUnit.MILLISECONDS));
+		for (int i = 0; i < 10; i++)
+			scheduler.poke(peer);
+		Assert.assertEquals(1, scheduler.getProgress().getRunning());
+
+		// the pokes meanwhile cost one more sync
+		scheduler.allowed.release();
+		Assert.assertTrue(scheduler.started.tryAcquire(TIMEOUT,
+				TimeUnit.MILLISECONDS));
+		scheduler.allowed.release();
+		Assert.assertFalse(scheduler.started.tryAcquire(500,
+				TimeUnit.MILLISECONDS));
+		Assert.assertEquals(2, scheduler.syncs);
+		Assert.assertEquals(2, scheduler.getProgress().getSucceeded());
+	}
+
+	@Test
+	public void testFailedSyncBacksOff() throws Exception {
+		scheduler.succeeding = false;
+		scheduler.poke(peer);
+		Assert.assertTrue(scheduler.started.tryAcquire(TIMEOUT,
+				TimeUnit.MILLISECONDS));
+		scheduler.allowed.release();
+
+		// the retry waits for the backoff, pokes meanwhile wait for it
+		scheduler.poke(peer);
+		Assert.assertFalse(scheduler.started.tryAcquire(
+				SyncScheduler.MIN_BACKOFF / 4, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, scheduler.syncs);
+		Assert.assertEquals(1, scheduler.getProgress().getFailed());
+		Assert.assertEquals(1, scheduler.getProgress().getQueued());
+	}
+
+	@Test
+	public void testBackoffGrowsWithJitter() throws Exception {
+		long previous = 0;
+		for (int failures = 1; failures < 30; failures++) {
+			long backoff = Math.min(SyncScheduler.MIN_BACKOFF << Math.min(
+					failures - 1, 16), SyncScheduler.MAX_BACKOFF);
+			long delay = scheduler.getBackoff(failures);
+			Assert.assertTrue(delay >= backoff / 2);
+			Assert.assertTrue(delay <= backoff);
+			Assert.assertTrue(backoff >= previous);
+			previous = backoff;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.jakeapp.violet.actions.project.interact.pull;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.violet.actions.project.interact.SimpleUserOrderStrategy;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.User;
+
+public class FailoverFileRequestActionTest {
+
+	private JakeObject fo = new JakeObject("/my/path.txt");
+
+	private LogEntry le = new LogEntry(null, null, new User("a@b"), fo,
+			"blabla", "bla", true);
+
+	private ProjectModel model;
+
+	private FailoverFileRequestAction gate;
+
+	@Before
+	public void setUp() throws Exception {
+		model = mock(ProjectModel.class);
+		gate = new FailoverFileRequestAction(model, fo,
+				new SimpleUserOrderStrategy(), false);
+	}
+
+	private FileRequestAction request(String user) {
+		return new FileRequestAction(model, new User(user), le, false);
+	}
+
+	@Test
+	public void testFirstToAgreeSends() throws Exception {
+		FileRequestAction first = request("first@b");
+		FileRequestAction second = request("second@b");
+		Assert.assertTrue(gate.negotiated(first));
+		Assert.assertFalse(gate.negotiated(second));
+
+		// the cancelled one doesn't get another chance
+		gate.finished(second, null, new Exception("cancelled"));
+		Assert.assertFalse(gate.negotiated(request("third@b")));
+	}
+
+	@Test
+	public void testNextMaySendWhenTheFirstFailed() throws Exception {
+		FileRequestAction first = request("first@b");
+		FileRequestAction second = request("second@b");
+		Assert.assertTrue(gate.negotiated(first));
+		gate.finished(first, null, new Exception("connection lost"));
+		Assert.assertTrue(gate.negotiated(second));
+	}
+
+	@Test
+	public void testNobodySendsWhenDone() throws Exception {
+		FileRequestAction first = request("first@b");
+		Assert.assertTrue(gate.negotiated(first));
+		gate.finished(first, new File("received"), null);
+		Assert.assertFalse(gate.negotiated(request("late@b")));
+	}
+}
@@ -0,0 +1,226 @@
+package com.jakeapp.violet.actions.project.interact.pull;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jakeapp.availablelater.AvailableLaterWaiter;
+import com.jakeapp.jake.fss.FSService;
+import com.jakeapp.jake.fss.ProjectDir;
+import com.jakeapp.jake.ics.ICService;
+import com.jakeapp.jake.ics.UserId;
+import com.jakeapp.jake.ics.exceptions.NotLoggedInException;
+import com.jakeapp.jake.ics.filetransfer.AdditionalFileTransferData;
+import com.jakeapp.jake.ics.filetransfer.FileRequestFileMapper;
+import com.jakeapp.jake.ics.filetransfer.IncomingTransferListener;
+import com.jakeapp.jake.ics.filetransfer.methods.ITransferMethod;
+import com.jakeapp.jake.ics.filetransfer.methods.ITransferMethodFactory;
+import com.jakeapp.jake.ics.filetransfer.negotiate.FileRequest;
+import com.jakeapp.jake.ics.filetransfer.negotiate.INegotiationSuccessListener;
+import com.jakeapp.jake.ics.filetransfer.runningtransfer.Status;
+import com.jakeapp.jake.ics.impl.sockets.filetransfer.FileTransfer;
+import com.jakeapp.jake.ics.msgservice.IMsgService;
+import com.jakeapp.jake.ics.status.IStatusService;
+import com.jakeapp.jake.test.TmpdirEnabledTestCase;
+import com.jakeapp.violet.actions.global.MockUserIdFactory;
+import com.jakeapp.violet.context.ProjectModel;
+import com.jakeapp.violet.model.ChunkManifest;
+import com.jakeapp.violet.model.JakeObject;
+import com.jakeapp.violet.model.LogEntry;
+import com.jakeapp.violet.model.PeerStats;
+import com.jakeapp.violet.model.User;
+import com.jakeapp.violet.protocol.files.IRequestMarshaller;
+import com.jakeapp.violet.protocol.files.RequestFileMessage;
+import com.jakeapp.violet.protocol.files.RequestFileMessage.RequestType;
+import com.jakeapp.violet.protocol.files.RequestMarshaller;
+
+public class SwarmFileRequestActionTest extends TmpdirEnabledTestCase {
+
+	private IRequestMarshaller rm = new RequestMarshaller();
+
+	private JakeObject fo = new JakeObject("/my/big.bin");
+
+	private User good = new User("good@localhost");
+
+	private User broken = new User("broken@localhost");
+
+	private byte[] content = new byte[12 * 1024 * 1024];
+
+	private ChunkManifest manifest;
+
+	private LogEntry le;
+
+	private ProjectModel model;
+
+	/**
+	 * the requests the users got
+	 */
+	private final List<RequestFileMessage> requests = new ArrayList<RequestFileMessage>();
+
+	@Before
+	public void setUp() throws Exception {
+		super.setup();
+		new Random(19).nextBytes(content);
+		FSService fss = new FSService();
+		fss.setRootPath(new ProjectDir(tmpdir));
+		String how = fss.calculateHash(new ByteArrayInputStream(content))
+				.toString();
+		le = new LogEntry(null, null, good, fo, "big", how, true);
+		manifest = ChunkManifest.of(how, new ByteArrayInputStream(content));
+		Assert.assertTrue(manifest.getChunks().size() > 4);
+
+		model = mock(ProjectModel.class);
+		when(model.getFss()).thenReturn(fss);
+		when(model.getPeerStats()).thenReturn(
+				new PeerStats(new File(tmpdir, "peers")));
+		ICService ics = mock(ICService.class);
+		when(ics.getStatusService()).thenReturn(mock(IStatusService.class));
+		when(ics.getMsgService()).thenReturn(mock(IMsgService.class));
+		when(ics.getTransferMethodFactory()).thenReturn(
+				new ITransferMethodFactory() {
+
+					@Override
+					public ITransferMethod getTransferMethod(
+							IMsgService negotiationService, UserId user) {
+						return new ServingTransferMethod();
+					}
+				});
+		when(model.getIcs()).thenReturn(ics);
+	}
+
+	/**
+	 * answers like the users would, the broken user sends garbage chunks
+	 */
+	private class ServingTransferMethod implements ITransferMethod {
+
+		@Override
+		public void request(final FileRequest inrequest,
+				INegotiationSuccessListener nsl) {
+			final File file;
+			try {
+				file = serve(inrequest);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			nsl.succeeded(new FileTransfer() {
+
+				{
+					this.request = inrequest;
+					this.localFile = file;
+					this.request.setData(new AdditionalFileTransferData(
+							this.localFile));
+					this.status = Status.complete;
+					this.amountWritten = file.length();
+				}
+
+				@Override
+				public Boolean isReceiving() {
+					return true;
+				}
+			});
+		}
+
+		@Override
+		public void startServing(IncomingTransferListener l,
+				FileRequestFileMapper mapper) throws NotLoggedInException {
+		}
+
+		@Override
+		public void stopServing() {
+		}
+	}
+
+	private File serve(FileRequest fr) throws IOException {
+		RequestFileMessage req = rm.decodeRequestFileMessage(fr.getFileName(),
+				fr.getPeer());
+		synchronized (requests) {
+			requests.add(req);
+		}
+		File file = File.createTempFile("served", "chunks", tmpdir);
+		OutputStream os = new FileOutputStream(file);
+		try {
+			if (req.getType() == RequestType.MANIFEST) {
+				GZIPOutputStream zos = new GZIPOutputStream(os);
+				manifest.write(zos);
+				zos.finish();
+			} else {
+				String[] range = req.getIdentifier().split(
+						RequestFileMessage.CHUNK_SEPARATOR);
+				int offset = Integer.parseInt(range[1]);
+				int length = Integer.parseInt(range[2]);
+				if (fr.getPeer().getUserId().equals(broken.getUserId()))
+					os.write(new byte[length]);
+				else
+					os.write(content, offset, length);
+			}
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	private File download(User... peers) throws Exception {
+		SwarmFileRequestAction action = new SwarmFileRequestAction(model, le,
+				Arrays.asList(peers), false);
+		action.setRequestMarshaller(rm);
+		action.setUserids(new MockUserIdFactory());
+		return AvailableLaterWaiter.await(action);
+	}
+
+	private int count(RequestType type) {
+		int n = 0;
+		for (RequestFileMessage req : requests) {
+			if (req.getType() == type)
+				n++;
+		}
+		return n;
+	}
+
+	private void assertContent(File file) throws IOException {
+		Assert.assertEquals(content.length, file.length());
+		byte[] b = new byte[content.length];
+		FileInputStream is = new FileInputStream(file);
+		try {
+			int off = 0;
+			int n;
+			while (off < b.length && (n = is.read(b, off, b.length - off)) >= 0)
+				off += n;
+		} finally {
+			is.close();
+		}
+		Assert.assertTrue(Arrays.equals(content, b));
+	}
+
+	@Test
+	public void testRequestsRunsOfChunks() throws Exception {
+		assertContent(download(good, new User("other@localhost")));
+
+		// both were asked for the manifest
+		Assert.assertEquals(2, count(RequestType.MANIFEST));
+		Assert.assertTrue(count(RequestType.CHUNK) < manifest.getChunks()
+				.size());
+	}
+
+	@Test
+	public void testBrokenChunksAreRequestedAgain() throws Exception {
+		assertContent(download(broken, good));
+
+		Assert.assertTrue(count(RequestType.CHUNK) > 1);
+	}
+}
@@ -12,7 +12,7 @@ public class MockProjectModel extends ProjectModel {
 	public MockProjectModel(IFSService fss, Log log,
 			ProjectPreferences preferences, ICService ics,
 			IFileTransferService transfer) {
-		super(fss, log, preferences, ics, transfer);
+		super(fss, log, preferences, ics, transfer, null, null, null, null);
 	}
 
 }